@@ -1,4 +1,5 @@
 import application.CommunicationsController;
+import application.DownloadManager;
 import application.EditConfigurationsController;
 import application.ManageSharedFilesController;
 import domain.Directory;
@@ -26,18 +27,23 @@ import javafx.scene.input.KeyCodeCombination;
 import javafx.scene.input.KeyCombination;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import presentation.*;
+import settings.AppSettings;
 import settings.Application;
 import util.Constants;
 import util.OsUtils;
+import util.StringUtil;
 
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
@@ -123,8 +129,15 @@ public class P2PFileShareApp extends javafx.application.Application {
         DatagramSocket udpSocket = null;
         ServerSocket tcpSocket = null;
         try {
-            udpSocket = new DatagramSocket(Application.settings().getUdpPort());
-            tcpSocket = new ServerSocket(Application.settings().getTcpPort());
+            // Open the UDP socket through a channel so datagrams are received into a reused direct buffer
+            // (an IPv4 one for multicast discovery, so it can join IPv4 groups)
+            udpSocket = AppSettings.MULTICAST_DISCOVERY.equals(Application.settings().getDiscoveryMode())
+                    ? DatagramChannel.open(StandardProtocolFamily.INET).socket()
+                    : DatagramChannel.open().socket();
+            udpSocket.bind(new InetSocketAddress(Application.settings().getUdpPort()));
+            // Open the TCP server through a channel so accepted sockets can stream files with zero-copy
+            tcpSocket = ServerSocketChannel.open().socket();
+            tcpSocket.bind(new InetSocketAddress(Application.settings().getTcpPort()));
         } catch (IOException e) {
             Logger.getLogger(P2PFileShareApp.class.getName()).log(Level.SEVERE, "Open sockets failed.", e);
 
@@ -208,7 +221,8 @@ public class P2PFileShareApp extends javafx.application.Application {
         sharedTableView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
         downloadTableView = new DirectoryTableView(dwlDir);
         downloadTableView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
-        remoteTableView = new RemoteFilenamesTableView(filenames.getList());
+        remoteTableView = new RemoteFilenamesTableView(filenames);
+        remoteTableView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
 
         // Setup file choosers
         configureFileChoosers();
@@ -287,6 +301,7 @@ public class P2PFileShareApp extends javafx.application.Application {
                     try {
                         editConfigurationController.edit(config);
                         communicationsController.saveKnownIpsList();
+                        Application.settings().reload(); // The upload rate limits apply right away
                     } catch (IOException e) {
                         System.out.println("Couldn't save config file. :(");
                     }
@@ -330,7 +345,9 @@ public class P2PFileShareApp extends javafx.application.Application {
         downloadItem.setOnAction(event -> {
             Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
             alert.setTitle("Download Confirmation");
-            alert.setHeaderText("Downloading file: " + remoteTableView.getSelectionModel().getSelectedItem().getFilename());
+            List<RemoteFilename> selected = remoteTableView.getSelectionModel().getSelectedItems();
+            alert.setHeaderText((selected.size() == 1) ? "Downloading file: " + selected.get(0).getFilename()
+                    : "Downloading " + selected.size() + " files");
             alert.setContentText("Are you sure you want to download?");
             Optional<ButtonType> result = alert.showAndWait();
             result.ifPresent(button -> {
@@ -650,44 +667,93 @@ public class P2PFileShareApp extends javafx.application.Application {
     }
 
     /**
-     * Creates a downloading dialog while the download is happening
+     * Queues downloads and shows a downloading dialog with their progress until they finish
      *
-     * @param filename the file's name to download
-     * @param newFile  the downloaded file location
+     * @param items  the remote files to download
+     * @param target the downloaded file location (one file) or folder (several files); if null the downloads folder
      */
-    private void downloadDialog(RemoteFilename filename, File newFile) {
+    private void downloadDialog(List<RemoteFilename> items, File target) {
 
-        String tmp = filename.getFilename();
+        String tmp = (items.size() == 1) ? items.get(0).getFilename() : items.size() + " files";
         if (tmp.length() > 20) tmp = tmp.substring(0, 20);
-        wd = new DownloadingDialog(mainStage.getOwner(), "Downloading " + tmp + "...");
+        DownloadingDialog<Integer> dialog = new DownloadingDialog<>(mainStage.getOwner(), "Downloading " + tmp + "...");
+        wd = dialog;
         wd.addTaskEndNotification(result -> {
             System.out.println("DOWNLOAD STATUS: " + result);
             wd = null; // don't keep the object, cleanup
             if ((Integer) result < 0) {
                 Alert alert = new Alert(Alert.AlertType.WARNING);
                 alert.setTitle(WARNING_PANE_TITLE);
-                alert.setHeaderText("Failed to download file");
+                alert.setHeaderText((items.size() == 1) ? "Failed to download file" : "Failed to download some files");
                 alert.setContentText("The file wasn't downloaded.");
                 alert.showAndWait();
             }
         });
+
+        // Queue the downloads and follow their progress
+        List<DownloadManager.Download> downloads = (items.size() == 1)
+                ? Collections.singletonList(communicationsController.queueDownload(items.get(0), target))
+                : communicationsController.queueDownloads(items, target);
+        Observer progressObserver = (observable, arg) -> {
+            //noinspection SuspiciousMethodCalls
+            if (downloads.contains(arg)) Platform.runLater(() -> showProgress(dialog, downloads));
+        };
+        communicationsController.addDownloadObserver(progressObserver);
+
         //noinspection unchecked
         wd.exec(1, inputParam -> {
             veil.setVisible(true);
-            // Download
+            boolean completed = true;
             try {
-                communicationsController.downloadFile(filename, newFile);
-                downloadTableView.setData();
-                downloadTableView.refresh();
-                Thread.sleep(2 * 1000); // So we can see the dialog if download is to fast ;)
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
-                veil.setVisible(false);
-                return -1;
+                for (DownloadManager.Download download : downloads) {
+                    completed &= download.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                completed = false;
+            } finally {
+                communicationsController.deleteDownloadObserver(progressObserver);
             }
+            downloadTableView.setData();
+            downloadTableView.refresh();
             veil.setVisible(false);
-            return 0;
+            return completed ? 0 : -1;
         });
+        showProgress(dialog, downloads);
+    }
+
+    /**
+     * Shows the overall progress, throughput and time left of downloads in a downloading dialog
+     *
+     * @param dialog    the downloading dialog
+     * @param downloads the downloads
+     */
+    private static void showProgress(DownloadingDialog<Integer> dialog, List<DownloadManager.Download> downloads) {
+
+        long size = 0;
+        long received = 0;
+        double throughput = 0;
+        boolean sizeKnown = true;
+        for (DownloadManager.Download download : downloads) {
+            if (download.getState() == DownloadManager.State.FAILED) continue;
+            if (download.getFileSize() < 0) sizeKnown = false;
+            size += Math.max(0, download.getFileSize());
+            received += download.getReceived();
+            throughput += download.getThroughput();
+        }
+
+        if (!sizeKnown) {
+            dialog.progressProperty().set(ProgressIndicator.INDETERMINATE_PROGRESS);
+            dialog.detailProperty().set("Waiting for peers...");
+            return;
+        }
+        dialog.progressProperty().set((size == 0) ? 1 : Math.min(1, (double) received / size));
+        String detail = StringUtil.formatBytes(received) + " of " + StringUtil.formatBytes(size);
+        if (throughput > 0) {
+            detail += " - " + StringUtil.formatBytes((long) throughput) + "/s - "
+                    + StringUtil.formatDuration((long) Math.ceil((size - received) / throughput)) + " left";
+        }
+        dialog.detailProperty().set(detail);
     }
 
     /**
@@ -789,22 +855,27 @@ public class P2PFileShareApp extends javafx.application.Application {
         System.out.println("Download");
         // Download
         veil.setVisible(true);
-        RemoteFilename item = remoteTableView.getSelectionModel().getSelectedItem();
-        downloadDialog(item, null);
+        List<RemoteFilename> items = new ArrayList<>(remoteTableView.getSelectionModel().getSelectedItems());
+        downloadDialog(items, null);
         veil.setVisible(false);
     }
 
     /**
-     * Downloads a remote file to a specific folder
+     * Downloads the selected remote files to a specific location (a file for one, a folder for several)
      */
     private void downloadTo() {
         System.out.println("Download to");
         veil.setVisible(true);
-        File file = downloadFileChooser.showSaveDialog(mainStage);
-        if (file != null) {
-            RemoteFilename item = remoteTableView.getSelectionModel().getSelectedItem();
-            downloadDialog(item, file);
+        List<RemoteFilename> items = new ArrayList<>(remoteTableView.getSelectionModel().getSelectedItems());
+        File target;
+        if (items.size() == 1) {
+            target = downloadFileChooser.showSaveDialog(mainStage);
+        } else {
+            DirectoryChooser folderChooser = new DirectoryChooser();
+            folderChooser.setTitle("Download To..");
+            target = folderChooser.showDialog(mainStage);
         }
+        if (target != null) downloadDialog(items, target);
         veil.setVisible(false);
     }
 
@@ -11,7 +11,7 @@ import util.StringUtil;
 
 import java.io.*;
 import java.net.*;
-import java.util.Properties;
+import java.util.*;
 
 /**
  * Controller to handle TCP/UDP communications.
@@ -22,6 +22,8 @@ public class CommunicationsController {
 
     private UdpCommunication udp = null;
     private TcpCommunication tcp = null;
+    private RemoteFilenameList remoteFilenames = null;
+    private DownloadManager downloadManager = null;
 
     /**
      * Creates a communications controller
@@ -40,6 +42,8 @@ public class CommunicationsController {
 
         udp = new UdpCommunication(udpSocket, sharedDir, filenames, tcpPort);
         tcp = new TcpCommunication(tcpSocket, sharedDir, downloadDir);
+        remoteFilenames = filenames;
+        downloadManager = new DownloadManager(tcp, filenames);
     }
 
     /**
@@ -58,7 +62,8 @@ public class CommunicationsController {
     }
 
     /**
-     * Downloads a remote file.
+     * Downloads a remote file (from every peer announcing the same content, or a file with the same name if the
+     * content is unknown). Content already in the downloads folder isn't downloaded again.
      *
      * @param remoteFilename the remote filename
      * @param newFile        the file object to store the download (if null creates in default folder)
@@ -68,7 +73,79 @@ public class CommunicationsController {
     public void downloadFile(RemoteFilename remoteFilename, File newFile) throws IOException, IllegalArgumentException {
 
         if (tcp != null)
-            tcp.download(remoteFilename.getFilename(), remoteFilename.getHost(), remoteFilename.getTcpPort(), newFile);
+            tcp.download(remoteFilenames.getSources(remoteFilename), newFile);
+    }
+
+    /**
+     * Downloads several remote files to the default folder, pipelining the requests to each peer through
+     * one keep-alive connection. Content already in the downloads folder is skipped.
+     *
+     * @param remoteFilenames the remote filenames
+     * @return the names of the files that weren't available
+     * @throws IOException I/O error
+     */
+    public List<String> downloadFiles(List<RemoteFilename> remoteFilenames) throws IOException {
+
+        List<String> unavailable = new ArrayList<>();
+        if (tcp == null) return unavailable;
+
+        // Group the files by peer
+        Map<InetSocketAddress, List<String>> requests = new LinkedHashMap<>();
+        for (RemoteFilename remoteFilename :
+                remoteFilenames) {
+            File localCopy = tcp.findDownloaded(remoteFilename);
+            if (localCopy != null) {
+                System.out.println("Already downloaded the file: " + remoteFilename.getFilename() + " (as: " + localCopy.getName() + ")");
+                continue;
+            }
+            InetSocketAddress peer = new InetSocketAddress(remoteFilename.getHost(), remoteFilename.getTcpPort());
+            requests.computeIfAbsent(peer, k -> new ArrayList<>()).add(remoteFilename.getFilename());
+        }
+        for (Map.Entry<InetSocketAddress, List<String>> entry :
+                requests.entrySet()) {
+            unavailable.addAll(tcp.downloadFiles(entry.getKey().getAddress(), entry.getKey().getPort(), entry.getValue()));
+        }
+        return unavailable;
+    }
+
+    /**
+     * Queues a remote file in the download manager
+     *
+     * @param remoteFilename the remote filename
+     * @param newFile        the file object to store the download (if null creates in default folder)
+     * @return the queued download
+     */
+    public DownloadManager.Download queueDownload(RemoteFilename remoteFilename, File newFile) {
+        return downloadManager.submit(remoteFilename, newFile);
+    }
+
+    /**
+     * Queues several remote files in the download manager
+     *
+     * @param remoteFilenames the remote filenames
+     * @param folder          the folder to store the downloads (if null the default folder)
+     * @return the queued downloads
+     */
+    public List<DownloadManager.Download> queueDownloads(List<RemoteFilename> remoteFilenames, File folder) {
+        return downloadManager.submit(remoteFilenames, folder);
+    }
+
+    /**
+     * Adds an observer of the downloads' state and progress (notified with a DownloadManager.Download)
+     *
+     * @param observer the observer
+     */
+    public void addDownloadObserver(Observer observer) {
+        downloadManager.addObserver(observer);
+    }
+
+    /**
+     * Removes an observer of the downloads
+     *
+     * @param observer the observer
+     */
+    public void deleteDownloadObserver(Observer observer) {
+        downloadManager.deleteObserver(observer);
     }
 
     /**
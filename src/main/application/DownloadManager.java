@@ -0,0 +1,416 @@
+package application;
+
+import domain.RemoteFilename;
+import domain.RemoteFilenameList;
+import networking.TcpCommunication;
+import networking.TransferListener;
+import settings.Application;
+import util.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queues downloads and runs them with a limit of downloads at once, overall (max.downloads) and from the same peer
+ * (max.downloads.per.peer).
+ * <p>
+ * A download fetches from every other source announcing the same content that has a free slot when it starts (taking
+ * that slot too), so a swarm download never exceeds the limit of any of its peers; a file whose content isn't known yet
+ * is only fetched from its own peer. The slot of a source the download stops using (it didn't answer, announced another
+ * file size or failed too often) is freed right away.
+ * <p>
+ * A queued download starts as soon as both limits allow it, even if downloads queued before it wait for a busy peer.
+ * Observers are notified with the download (a DownloadManager.Download) whenever its state changes and, while it runs,
+ * with its progress, throughput and estimated time left at most every PROGRESS_EVENT_INTERVAL.
+ * Observers are notified on the download threads.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public class DownloadManager extends Observable {
+
+    private static final long PROGRESS_EVENT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final double THROUGHPUT_SMOOTHING = 0.3; // weight of the last sample in the throughput average
+
+    private final TcpCommunication tcp;
+    private final RemoteFilenameList remoteFilenames;
+    private final Deque<Download> pending;
+    private final Map<InetSocketAddress, Integer> runningByPeer;
+    private final Object events;
+    private int running;
+
+    /**
+     * Creates a download manager
+     *
+     * @param tcp             the TCP communication that downloads the files
+     * @param remoteFilenames the remote filenames (to find every source of a file)
+     */
+    public DownloadManager(TcpCommunication tcp, RemoteFilenameList remoteFilenames) {
+
+        this.tcp = tcp;
+        this.remoteFilenames = remoteFilenames;
+        this.pending = new ArrayDeque<>();
+        this.runningByPeer = new HashMap<>();
+        this.events = new Object();
+    }
+
+    /**
+     * Queues a download
+     *
+     * @param remoteFilename the remote file
+     * @param toFile         the location of the download file (if null the downloads folder)
+     * @return the queued download
+     */
+    public Download submit(RemoteFilename remoteFilename, File toFile) {
+        return submit(Collections.singletonList(remoteFilename), null, toFile).get(0);
+    }
+
+    /**
+     * Queues a batch of downloads to the same folder
+     *
+     * @param remoteFilenames the remote files
+     * @param folder          the folder to download to (if null the downloads folder)
+     * @return the queued downloads (in the same order)
+     */
+    public List<Download> submit(List<RemoteFilename> remoteFilenames, File folder) {
+        return submit(remoteFilenames, folder, null);
+    }
+
+    /**
+     * Queues a batch of downloads
+     *
+     * @param remoteFilenames the remote files
+     * @param folder          the folder to download to (if null the downloads folder)
+     * @param toFile          the location of the only download file (null to keep the remote filename)
+     * @return the queued downloads
+     */
+    private List<Download> submit(List<RemoteFilename> remoteFilenames, File folder, File toFile) {
+
+        List<Download> downloads = new ArrayList<>();
+        for (RemoteFilename remoteFilename : remoteFilenames) {
+            File target = (toFile != null) ? toFile
+                    : (folder == null) ? null : new File(folder, remoteFilename.getFilename());
+            downloads.add(new Download(remoteFilename, target));
+        }
+        synchronized (this) {
+            pending.addAll(downloads);
+        }
+        for (Download download : downloads) publish(download);
+        schedule();
+        return downloads;
+    }
+
+    /**
+     * Obtains the number of downloads waiting to start
+     *
+     * @return the number of queued downloads
+     */
+    public synchronized int getQueuedCount() {
+        return pending.size();
+    }
+
+    /**
+     * Starts every queued download the limits allow
+     */
+    private void schedule() {
+
+        List<Download> started = new ArrayList<>();
+        synchronized (this) {
+            int maxDownloads = Application.settings().getMaxDownloads();
+            int maxPeerDownloads = Application.settings().getMaxPeerDownloads();
+            Iterator<Download> iterator = pending.iterator();
+            while (running < maxDownloads && iterator.hasNext()) {
+                Download download = iterator.next();
+                if (runningByPeer.getOrDefault(download.peer, 0) >= maxPeerDownloads) continue; // Busy peer: try the next
+                iterator.remove();
+                running++;
+                download.sources = reserveSources(download.remoteFilename, maxPeerDownloads);
+                started.add(download);
+            }
+        }
+        for (Download download : started) Threads.execute(new DownloadTask(download));
+    }
+
+    /**
+     * Picks the sources of a starting download, one per peer with a free slot (the remote file's own peer first), and
+     * takes their slots (caller holds the lock). Only the sources the download will fetch from are picked: the ones
+     * announcing the same content, or just the remote file's own peer if its content isn't known.
+     *
+     * @param remoteFilename   the remote file (its peer has a free slot)
+     * @param maxPeerDownloads the limit of downloads at once from the same peer
+     * @return the sources
+     */
+    private List<RemoteFilename> reserveSources(RemoteFilename remoteFilename, int maxPeerDownloads) {
+
+        List<RemoteFilename> sources = new ArrayList<>();
+        Set<InetSocketAddress> peers = new HashSet<>();
+        for (RemoteFilename source : remoteFilenames.getSources(remoteFilename)) {
+            if (!source.equals(remoteFilename)
+                    && (remoteFilename.getContent() == null || !remoteFilename.getContent().equals(source.getContent()))) {
+                continue;
+            }
+            InetSocketAddress peer = new InetSocketAddress(source.getHost(), source.getTcpPort());
+            if (runningByPeer.getOrDefault(peer, 0) >= maxPeerDownloads || !peers.add(peer)) continue;
+            runningByPeer.merge(peer, 1, Integer::sum);
+            sources.add(source);
+        }
+        return sources;
+    }
+
+    /**
+     * Frees the slot of a source's peer (caller holds the lock)
+     *
+     * @param source the source
+     */
+    private void release(RemoteFilename source) {
+
+        runningByPeer.computeIfPresent(new InetSocketAddress(source.getHost(), source.getTcpPort()),
+                (peer, count) -> (count > 1) ? count - 1 : null);
+    }
+
+    /**
+     * Frees the slot of a source a running download stopped using and starts the next downloads
+     *
+     * @param download the download
+     * @param source   the dropped source
+     */
+    private void dropped(Download download, RemoteFilename source) {
+
+        synchronized (this) {
+            if (!download.sources.remove(source)) return;
+            release(source);
+        }
+        schedule();
+    }
+
+    /**
+     * Frees the slots of a finished download and starts the next ones
+     *
+     * @param download the finished download
+     */
+    private void finished(Download download) {
+
+        synchronized (this) {
+            running--;
+            for (RemoteFilename source : download.sources) release(source);
+        }
+        schedule();
+    }
+
+    /**
+     * Notifies the observers of a download's change
+     *
+     * @param download the download
+     */
+    private void publish(Download download) {
+
+        synchronized (events) {
+            setChanged();
+            notifyObservers(download);
+        }
+    }
+
+    /**
+     * The states of a download
+     */
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    /**
+     * A queued, running or finished download and its progress
+     */
+    public final class Download implements TransferListener {
+
+        private final RemoteFilename remoteFilename;
+        private final File toFile;
+        private final InetSocketAddress peer;
+        private final CountDownLatch done;
+        private List<RemoteFilename> sources; // Holding a slot of their peer while running (guarded by the manager)
+        private State state;
+        private String error;
+        private long fileSize;
+        private long received;
+        private long lastEvent;
+        private long sampleTime;
+        private long sampleBytes;
+        private double throughput;
+
+        private Download(RemoteFilename remoteFilename, File toFile) {
+
+            this.remoteFilename = remoteFilename;
+            this.toFile = toFile;
+            this.peer = new InetSocketAddress(remoteFilename.getHost(), remoteFilename.getTcpPort());
+            this.done = new CountDownLatch(1);
+            this.state = State.QUEUED;
+            this.fileSize = -1;
+        }
+
+        public RemoteFilename getRemoteFilename() {
+            return remoteFilename;
+        }
+
+        public synchronized State getState() {
+            return state;
+        }
+
+        public synchronized String getError() {
+            return error;
+        }
+
+        /**
+         * Obtains the file size
+         *
+         * @return the file size or -1 if it isn't known yet
+         */
+        public synchronized long getFileSize() {
+            return fileSize;
+        }
+
+        /**
+         * Obtains the bytes of the file received so far (including the ones received by earlier attempts)
+         *
+         * @return the received bytes
+         */
+        public synchronized long getReceived() {
+            return received;
+        }
+
+        /**
+         * Obtains the progress
+         *
+         * @return the fraction of the file received (0 to 1) or -1 if the file size isn't known yet
+         */
+        public synchronized double getProgress() {
+
+            if (state == State.COMPLETED) return 1;
+            if (fileSize < 0) return -1;
+            return (fileSize == 0) ? 1 : Math.min(1, (double) received / fileSize);
+        }
+
+        /**
+         * Obtains the recent throughput (a moving average)
+         *
+         * @return the throughput in bytes per second (0 if not running)
+         */
+        public synchronized double getThroughput() {
+            return (state == State.RUNNING) ? throughput : 0;
+        }
+
+        /**
+         * Obtains the estimated time left
+         *
+         * @return the time left in seconds or -1 if unknown
+         */
+        public synchronized long getEta() {
+
+            if (state == State.COMPLETED) return 0;
+            if (state != State.RUNNING || fileSize < 0 || throughput <= 0) return -1;
+            return (long) Math.ceil((fileSize - received) / throughput);
+        }
+
+        /**
+         * Waits for the download to finish
+         *
+         * @return true if it completed, false if it failed
+         * @throws InterruptedException interrupted while waiting
+         */
+        public boolean await() throws InterruptedException {
+
+            done.await();
+            return getState() == State.COMPLETED;
+        }
+
+        @Override
+        public void onStarted(long fileSize, long offset) {
+
+            synchronized (this) {
+                this.fileSize = fileSize;
+                this.received = offset;
+                this.sampleTime = System.nanoTime();
+                this.sampleBytes = offset;
+            }
+            publish(this);
+        }
+
+        @Override
+        public void onReceived(long bytes) {
+
+            synchronized (this) {
+                received += bytes;
+                long now = System.nanoTime();
+                if (now - lastEvent < PROGRESS_EVENT_INTERVAL) return;
+                lastEvent = now;
+                double sample = (received - sampleBytes) * 1e9 / Math.max(1, now - sampleTime);
+                throughput = (throughput == 0) ? sample : THROUGHPUT_SMOOTHING * sample + (1 - THROUGHPUT_SMOOTHING) * throughput;
+                sampleTime = now;
+                sampleBytes = received;
+            }
+            publish(this);
+        }
+
+        /**
+         * Changes the state of the download and notifies the observers
+         *
+         * @param state the new state
+         * @param error the error message (failed downloads) or null
+         */
+        private void setState(State state, String error) {
+
+            synchronized (this) {
+                this.state = state;
+                this.error = error;
+                if (state == State.RUNNING) lastEvent = System.nanoTime();
+                if (state == State.COMPLETED && fileSize >= 0) received = fileSize;
+            }
+            publish(this);
+            if (state == State.COMPLETED || state == State.FAILED) done.countDown();
+        }
+
+        @Override
+        public void onSourceDropped(RemoteFilename source) {
+            dropped(this, source);
+        }
+
+        @Override
+        public String toString() {
+            return remoteFilename.getFilename() + " (" + getState() + ")";
+        }
+    }
+
+    /**
+     * Runs a download
+     */
+    private class DownloadTask implements Runnable {
+
+        private final Download download;
+
+        private DownloadTask(Download download) {
+            this.download = download;
+        }
+
+        @Override
+        public void run() {
+
+            download.setState(State.RUNNING, null);
+            List<RemoteFilename> sources;
+            synchronized (DownloadManager.this) {
+                sources = new ArrayList<>(download.sources); // Dropped sources are removed meanwhile
+            }
+            try {
+                tcp.download(sources, download.toFile, download);
+                download.setState(State.COMPLETED, null);
+            } catch (IOException | RuntimeException e) {
+                Logger.getLogger(DownloadManager.class.getName()).log(Level.WARNING, "Download failed.", e);
+                download.setState(State.FAILED, e.getMessage());
+            } finally {
+                finished(download);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package domain;
+
+import javafx.collections.ModifiableObservableListBase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Represents an observable list that can apply several removals and additions as one change notification.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ *
+ * @param <E> the type of the elements
+ */
+public class BatchObservableList<E> extends ModifiableObservableListBase<E> {
+
+    private final List<E> delegate = new ArrayList<>();
+
+    /**
+     * Removes and adds elements, firing a single change to the listeners.
+     *
+     * @param removed the elements to remove (should be a set for large batches)
+     * @param added   the elements to add at the end of the list
+     */
+    public void applyBatch(Collection<?> removed, Collection<? extends E> added) {
+
+        beginChange();
+        try {
+            if (!removed.isEmpty()) removeAll(removed);
+            if (!added.isEmpty()) addAll(added);
+        } finally {
+            endChange();
+        }
+    }
+
+    @Override
+    public E get(int index) {
+        return delegate.get(index);
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    protected void doAdd(int index, E element) {
+        delegate.add(index, element);
+    }
+
+    @Override
+    protected E doSet(int index, E element) {
+        return delegate.set(index, element);
+    }
+
+    @Override
+    protected E doRemove(int index) {
+        return delegate.remove(index);
+    }
+}
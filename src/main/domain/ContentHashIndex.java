@@ -0,0 +1,226 @@
+package domain;
+
+import util.ByteUtil;
+import util.Constants;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents the on-disk index of the content hashes of a directory's files (filename, size, modification time, hash).
+ * <p>
+ * Files are hashed by a background pool once they stay unchanged for Constants.HASH_QUIET_TIME (so a file being copied
+ * is hashed once, at the end); a file has at most one hash queued, which hashes its latest version. The index is saved
+ * shortly after changes (several changes are saved together) so the next start only rehashes the files whose size or
+ * modification time changed.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+class ContentHashIndex {
+
+    private static final String HEADER = "# content hash index v1 (" + Constants.CONTENT_HASH_ALGORITHM + ")";
+    private static final String SEPARATOR = "\t";
+
+    private final File indexFile;
+    private final ExecutorService hashingPool;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean saveScheduled;
+    private final Map<String, Long> requested;
+    private final Runnable onSaved;
+
+    /**
+     * Creates a content hash index
+     *
+     * @param indexFile the file where the index is kept
+     * @param onSaved   the action to run after each save (on the saver thread)
+     */
+    ContentHashIndex(File indexFile, Runnable onSaved) {
+
+        this.indexFile = indexFile;
+        this.onSaved = onSaved;
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.hashingPool = Executors.newFixedThreadPool(threads, daemonThreads("content-hasher"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("hash-index-scheduler"));
+        this.saveScheduled = new AtomicBoolean(false);
+        this.requested = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Loads the saved index
+     *
+     * @param directory the indexed directory
+     * @return the saved entries (keyed by the lower case filename), empty if there is no index yet
+     */
+    Map<String, Directory.Entry> load(File directory) {
+
+        Map<String, Directory.Entry> entries = new HashMap<>();
+        if (!indexFile.isFile()) return entries;
+
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+
+                if (line.startsWith("#")) continue;
+                String[] fields = line.split(SEPARATOR, 4);
+                if (fields.length < 4) continue;
+                File file = new File(directory, fields[3]);
+                entries.put(fields[3].toLowerCase(),
+                        new Directory.Entry(file, Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            Logger.getLogger(ContentHashIndex.class.getName()).log(Level.WARNING, "Reading the hash index failed (files will be rehashed).", e);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * Hashes a file in the background once it stops changing (a request for a file already queued only delays it)
+     *
+     * @param key      the catalog key of the file
+     * @param latest   supplies the file's current catalog entry (or null if it was removed)
+     * @param onHashed the action to run with the hashed entry and its hash (on a hashing thread)
+     */
+    void submit(String key, Supplier<Directory.Entry> latest, BiConsumer<Directory.Entry, String> onHashed) {
+
+        if (requested.put(key, System.nanoTime()) != null) return; // The queued hash will take the latest version
+        scheduler.schedule(new HashRequest(key, latest, onHashed), Constants.HASH_QUIET_TIME, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Saves the index soon (changes requested meanwhile are saved together)
+     *
+     * @param snapshot supplies the entries to save when the save runs
+     */
+    void requestSave(Supplier<Collection<Directory.Entry>> snapshot) {
+
+        if (!saveScheduled.compareAndSet(false, true)) return;
+
+        scheduler.schedule(() -> {
+            saveScheduled.set(false);
+            save(snapshot.get());
+            onSaved.run();
+        }, Constants.HASH_INDEX_SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the entries with a known hash (to a temporary file first, so a crash never leaves a truncated index)
+     *
+     * @param entries the entries
+     */
+    private void save(Collection<Directory.Entry> entries) {
+
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Directory.Entry entry : entries) {
+                    if (entry.getContentHash() == null) continue;
+                    writer.write(entry.getContentHash() + SEPARATOR + entry.getSize() + SEPARATOR
+                            + entry.getLastModified() + SEPARATOR + entry.getFile().getName());
+                    writer.newLine();
+                }
+            }
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Logger.getLogger(ContentHashIndex.class.getName()).log(Level.WARNING, "Saving the hash index failed.", e);
+        }
+    }
+
+    /**
+     * Computes the content hash of a file
+     *
+     * @param file the file
+     * @return the hash (hexadecimal)
+     * @throws IOException I/O error
+     */
+    static String hash(File file) throws IOException {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(Constants.CONTENT_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Digest algorithm not available.", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Constants.TRANSFER_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return ByteUtil.toHex(digest.digest());
+    }
+
+    /**
+     * Waits for a file to stay unchanged and then hashes its current version
+     */
+    private class HashRequest implements Runnable {
+
+        private final String key;
+        private final Supplier<Directory.Entry> latest;
+        private final BiConsumer<Directory.Entry, String> onHashed;
+
+        private HashRequest(String key, Supplier<Directory.Entry> latest, BiConsumer<Directory.Entry, String> onHashed) {
+            this.key = key;
+            this.latest = latest;
+            this.onHashed = onHashed;
+        }
+
+        @Override
+        public void run() {
+
+            Long requestedAt = requested.get(key);
+            long quiet = TimeUnit.MILLISECONDS.toNanos(Constants.HASH_QUIET_TIME) - (System.nanoTime() - requestedAt);
+            if (quiet > 0 || !requested.remove(key, requestedAt)) {
+                // Changed meanwhile: wait again
+                scheduler.schedule(this, Math.max(quiet, 0), TimeUnit.NANOSECONDS);
+                return;
+            }
+            hashingPool.execute(() -> {
+                Directory.Entry entry = latest.get();
+                if (entry == null || entry.getContentHash() != null) return; // Removed or already hashed
+                try {
+                    onHashed.accept(entry, hash(entry.getFile()));
+                } catch (IOException e) {
+                    // Deleted or locked meanwhile: a watch event will follow
+                    Logger.getLogger(ContentHashIndex.class.getName()).log(Level.FINE, "Hashing a file failed.", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates a factory of named daemon threads
+     *
+     * @param name the threads name
+     * @return the thread factory
+     */
+    private static ThreadFactory daemonThreads(String name) {
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
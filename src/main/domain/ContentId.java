@@ -0,0 +1,74 @@
+package domain;
+
+/**
+ * Identifies the content of a file (its size and content hash), regardless of its name or of who shares it.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public final class ContentId {
+
+    private final long size;
+    private final String hash;
+
+    /**
+     * Creates a content identifier.
+     *
+     * @param size the file size in bytes
+     * @param hash the content hash (hexadecimal)
+     */
+    public ContentId(long size, String hash) {
+
+        if (hash == null) throw new IllegalArgumentException("Content hash is required.");
+        this.size = size;
+        this.hash = hash.toLowerCase();
+    }
+
+    /**
+     * Obtains the content identifier of a directory entry
+     *
+     * @param entry the directory entry
+     * @return the content identifier or null if the file wasn't hashed yet
+     */
+    public static ContentId of(Directory.Entry entry) {
+
+        return (entry == null || entry.getContentHash() == null) ? null : new ContentId(entry.getSize(), entry.getContentHash());
+    }
+
+    /**
+     * Obtains the file size
+     *
+     * @return the file size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Obtains the content hash
+     *
+     * @return the content hash (hexadecimal)
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ContentId that = (ContentId) o;
+
+        return size == that.size && hash.equals(that.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * hash.hashCode() + Long.hashCode(size);
+    }
+
+    @Override
+    public String toString() {
+        return hash + " (" + size + " bytes)";
+    }
+}
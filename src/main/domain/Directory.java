@@ -1,12 +1,16 @@
 package domain;
 
 import settings.Application;
+import util.Constants;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.file.*;
-import java.util.Observable;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,13 +19,27 @@ import static java.nio.file.StandardWatchEventKinds.*;
 /**
  * Represents the directory that will update if any changes to directory.
  * <p>
+ * The accepted files are kept in an in-memory catalog (keyed by the lower case filename) that is built once and
+ * then updated from the watch service events, so looking up a file never lists the directory.
+ * <p>
+ * The content hash of each file is computed in the background and kept in an on-disk index inside the directory,
+ * so after a restart only the files whose size or modification time changed are hashed again.
+ * <p>
  * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
  */
 public class Directory extends Observable {
 
+    /**
+     * The argument observers are notified with when only content hashes changed (no file was added or removed)
+     */
+    public static final String CONTENT_HASHES_UPDATED = "content hashes updated";
+
     private final WatchService watcher;
     private final Path directory;
     private final FileFilter fileFilter;
+    private final Set<String> acceptedExtensions;
+    private final ConcurrentMap<String, Entry> catalog;
+    private final ContentHashIndex hashIndex;
     private final Thread watchThread;
 
     /**
@@ -40,8 +58,18 @@ public class Directory extends Observable {
         directory = Paths.get(dirPath);
         this.watcher = FileSystems.getDefault().newWatchService();
         this.directory.register(this.watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        this.acceptedExtensions = new HashSet<>();
+        for (String ext : Application.settings().getFileExtensions()) {
+            acceptedExtensions.add(".".concat(ext.trim().toLowerCase()));
+        }
         this.fileFilter = new MyFileFilter();
+        this.catalog = new ConcurrentHashMap<>();
+        this.hashIndex = new ContentHashIndex(new File(dir, Constants.HASH_INDEX_FILENAME), () -> {
+            setChanged();
+            notifyObservers(CONTENT_HASHES_UPDATED);
+        });
         this.watchThread = new Thread(new WatchDirTask());
+        rescan(hashIndex.load(dir)); // After registering, so no change is missed
     }
 
     /**
@@ -78,9 +106,20 @@ public class Directory extends Observable {
      */
     public File[] getFiles() {
 
-        File folder = this.directory.toFile();
+        List<File> files = new ArrayList<>(catalog.size());
+        for (Entry entry : catalog.values()) {
+            files.add(entry.getFile());
+        }
+        return files.toArray(new File[files.size()]);
+    }
 
-        return folder.listFiles(this.fileFilter);
+    /**
+     * Obtains the catalog entries of the files in the directory
+     *
+     * @return the catalog entries (a snapshot)
+     */
+    public List<Entry> getEntries() {
+        return new ArrayList<>(catalog.values());
     }
 
     /**
@@ -91,39 +130,193 @@ public class Directory extends Observable {
      */
     public File getFile(String filename) {
 
-        File folder = this.directory.toFile();
-        File[] files = folder.listFiles(this.fileFilter);
+        Entry entry = getEntry(filename);
+        return (entry == null) ? null : entry.getFile();
+    }
+
+    /**
+     * Obtains the catalog entry of a specific file in the directory (case insensitive).
+     *
+     * @param filename the requested file name
+     * @return the catalog entry or null if not available
+     */
+    public Entry getEntry(String filename) {
+
+        return catalog.get(filename.toLowerCase());
+    }
+
+    /**
+     * Obtains the content hash of a specific file in the directory (case insensitive).
+     *
+     * @param filename the requested file name
+     * @return the content hash (hexadecimal) or null if not available or not hashed yet
+     */
+    public String getContentHash(String filename) {
+
+        Entry entry = getEntry(filename);
+        return (entry == null) ? null : entry.getContentHash();
+    }
+
+    /**
+     * Looks for a file with a given content (a file not hashed yet is never found).
+     *
+     * @param content the content identifier
+     * @return the catalog entry of a file with that content or null if there is none
+     */
+    public Entry findByContent(ContentId content) {
+
+        for (Entry entry : catalog.values()) {
+            if (content.equals(ContentId.of(entry)) && entry.getFile().isFile()) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Rebuilds the whole catalog from a directory listing, keeping the known hashes of unchanged files
+     * and hashing the others in the background.
+     *
+     * @param known the previously known entries (keyed by the lower case filename)
+     */
+    private void rescan(Map<String, Entry> known) {
+
+        Map<String, Entry> entries = new HashMap<>();
+        File[] files = directory.toFile().listFiles(this.fileFilter);
         if (files != null) {
-            for (File file :
-                    files) {
+            for (File file : files) {
+                String key = file.getName().toLowerCase();
+                Entry entry = new Entry(file, file.length(), file.lastModified(), null);
+                Entry previous = known.get(key);
+                entries.put(key, entry.isSameContent(previous) ? entry.withContentHash(previous.getContentHash()) : entry);
+            }
+        }
+        catalog.keySet().retainAll(entries.keySet());
+        catalog.putAll(entries);
 
-                if (file.getName().equalsIgnoreCase(filename)) return file;
+        for (Entry entry : entries.values()) {
+            if (entry.getContentHash() == null) hash(entry.getFile().getName().toLowerCase());
+        }
+        hashIndex.requestSave(catalog::values);
+    }
+
+    /**
+     * Hashes a file in the background and records its hash, unless the file changed meanwhile
+     *
+     * @param key the catalog key of the file
+     */
+    private void hash(String key) {
+
+        hashIndex.submit(key, () -> catalog.get(key), (entry, contentHash) -> {
+            Entry updated = catalog.computeIfPresent(key,
+                    (k, current) -> current.isSameFile(entry) ? current.withContentHash(contentHash) : current);
+            if (updated != null && contentHash.equals(updated.getContentHash())) hashIndex.requestSave(catalog::values);
+        });
+    }
+
+    /**
+     * Updates the catalog entry of a created, modified or deleted file
+     *
+     * @param filename the name of the changed file
+     */
+    private void updateEntry(Path filename) {
+
+        String key = filename.toString().toLowerCase();
+        File file = directory.resolve(filename).toFile();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (attributes.isRegularFile() && isAccepted(key)) {
+                Entry entry = new Entry(file, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+                Entry previous = catalog.get(key);
+                if (entry.isSameFile(previous)) return; // Nothing changed (ex. a repeated modify event)
+                catalog.put(key, entry);
+                hash(key);
+                return;
             }
+        } catch (IOException e) {
+            // Deleted (or no longer readable)
+        }
+        if (catalog.computeIfPresent(key, (k, entry) -> entry.getFile().getName().equals(file.getName()) ? null : entry) == null) {
+            hashIndex.requestSave(catalog::values);
         }
-        return null;
     }
 
     /**
-     * A inner class that implements the Java FileFilter interface to exclude directories.
+     * Checks if a filename has one of the accepted extensions
+     *
+     * @param filename the lower case filename
+     * @return true if accepted, false otherwise
      */
-    private class MyFileFilter implements FileFilter {
-        public boolean accept(File file) {
+    private boolean isAccepted(String filename) {
 
-            if (!file.isFile()) return false;
+        int dot = filename.lastIndexOf('.');
+        return dot >= 0 && acceptedExtensions.contains(filename.substring(dot));
+    }
 
-            String filename = file.getName().toLowerCase();
+    /**
+     * Represents a file of the directory catalog
+     */
+    public static final class Entry {
+
+        private final File file;
+        private final long size;
+        private final long lastModified;
+        private final String contentHash;
+
+        Entry(File file, long size, long lastModified, String contentHash) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+        }
 
-            String[] acceptedExts = Application.settings().getFileExtensions();
+        private Entry withContentHash(String contentHash) {
+            return new Entry(file, size, lastModified, contentHash);
+        }
 
-            for (String ext :
-                    acceptedExts) {
+        /**
+         * Checks if another entry is the same file with the same size & modification time
+         *
+         * @param other the other entry (may be null)
+         * @return true if the same file version, false otherwise
+         */
+        private boolean isSameFile(Entry other) {
+            return other != null && file.getName().equals(other.file.getName())
+                    && size == other.size && lastModified == other.lastModified;
+        }
 
-                String dotExt = ".".concat(ext);
+        /**
+         * Checks if another entry is the same file version and its content hash is known
+         *
+         * @param other the other entry (may be null)
+         * @return true if the other entry's hash applies to this one, false otherwise
+         */
+        private boolean isSameContent(Entry other) {
+            return isSameFile(other) && other.contentHash != null;
+        }
 
-                if (filename.endsWith(dotExt)) return true;
-            }
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
 
-            return false;
+        public String getContentHash() {
+            return contentHash;
+        }
+    }
+
+    /**
+     * A inner class that implements the Java FileFilter interface to exclude directories.
+     */
+    private class MyFileFilter implements FileFilter {
+        public boolean accept(File file) {
+
+            return file.isFile() && isAccepted(file.getName().toLowerCase());
         }
     }
 
@@ -151,11 +344,20 @@ public class Directory extends Observable {
                     for (WatchEvent<?> event : key.pollEvents()) {
                         WatchEvent.Kind<?> kind = event.kind();
 
-                        @SuppressWarnings("unchecked")
-                        WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                        Path fileName = ev.context();
+                        if (kind == OVERFLOW) {
+                            // Events were lost: list the directory again
+                            System.out.println(kind.name() + ": " + directory.getFileName());
+                            rescan(new HashMap<>(catalog));
+                        } else {
+
+                            @SuppressWarnings("unchecked")
+                            WatchEvent<Path> ev = (WatchEvent<Path>) event;
+                            Path fileName = ev.context();
+                            if (fileName.toString().startsWith(Constants.HASH_INDEX_FILENAME)) continue; // Own index
 
-                        System.out.println(kind.name() + ": " + directory.getFileName() + " -> " + fileName);
+                            System.out.println(kind.name() + ": " + directory.getFileName() + " -> " + fileName);
+                            updateEntry(fileName);
+                        }
 
                         // Notify Observers
                         setChanged();
@@ -0,0 +1,196 @@
+package domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents a hashed timing wheel that expires items after a time limit, using a single thread for any number of items.
+ * <p>
+ * Items are placed in the slot of their deadline. Refreshing an item only moves its deadline forward
+ * (no slot change); when the slot is reached the item is either expired or moved to the slot of its new deadline.
+ * Each item keeps one mutable deadline while tracked, so refreshing allocates nothing.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ *
+ * @param <T> the type of the expiring items (must implement equals & hashCode)
+ */
+public class ExpiryWheel<T> {
+
+    private static final int WHEEL_SIZE = 512;
+    private static final long EXPIRED = Long.MIN_VALUE; // deadline of an item being expired
+
+    private final long tickMillis;
+    private final Consumer<T> onExpire;
+    private final Map<T, AtomicLong> deadlines;
+    private final List<Set<T>> slots;
+    private final ScheduledExecutorService ticker;
+    private long lastTick;
+
+    /**
+     * Creates an expiry wheel and starts its ticking thread.
+     *
+     * @param tickMillis the wheel resolution (in milliseconds)
+     * @param onExpire   the action to run (on the wheel thread) for each expired item
+     */
+    public ExpiryWheel(long tickMillis, Consumer<T> onExpire) {
+
+        this.tickMillis = tickMillis;
+        this.onExpire = onExpire;
+        this.deadlines = new ConcurrentHashMap<>();
+        this.slots = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            slots.add(ConcurrentHashMap.newKeySet());
+        }
+        this.lastTick = System.currentTimeMillis() / tickMillis;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "expiry-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts tracking an item (does nothing if already tracked).
+     *
+     * @param item      the item
+     * @param ttlMillis the time limit (in milliseconds)
+     * @return true if the item wasn't tracked, false otherwise
+     */
+    public boolean schedule(T item, long ttlMillis) {
+
+        long deadline = System.currentTimeMillis() + ttlMillis;
+        AtomicLong holder = new AtomicLong(deadline);
+        AtomicLong found = deadlines.putIfAbsent(item, holder);
+        if (found != null && (found.get() != EXPIRED || !deadlines.replace(item, found, holder))) return false;
+        slots.get(slotOf(deadline)).add(item);
+
+        return true;
+    }
+
+    /**
+     * Resets the time limit of a tracked item.
+     *
+     * @param item      the item
+     * @param ttlMillis the new time limit (in milliseconds)
+     * @return true if the item is tracked, false otherwise
+     */
+    public boolean refresh(T item, long ttlMillis) {
+
+        AtomicLong holder = deadlines.get(item);
+        if (holder == null) return false;
+        long deadline = System.currentTimeMillis() + ttlMillis;
+        long current;
+        do {
+            current = holder.get();
+            if (current == EXPIRED) return false;
+        } while (!holder.compareAndSet(current, deadline));
+        return true;
+    }
+
+    /**
+     * Stops tracking an item without expiring it.
+     *
+     * @param item the item
+     */
+    public void cancel(T item) {
+
+        deadlines.remove(item); // The slot entry is dropped when its slot is reached
+    }
+
+    /**
+     * Obtains the number of tracked items
+     *
+     * @return the number of tracked items
+     */
+    public int size() {
+        return deadlines.size();
+    }
+
+    /**
+     * Stops the wheel thread
+     */
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * Obtains the slot index of a deadline (the first tick at or after the deadline)
+     *
+     * @param deadline the deadline (in epoch milliseconds)
+     * @return the slot index
+     */
+    private int slotOf(long deadline) {
+        return (int) (((deadline + tickMillis - 1) / tickMillis) % WHEEL_SIZE);
+    }
+
+    /**
+     * Processes every slot passed since the last tick
+     */
+    private void advance() {
+
+        try {
+            long now = System.currentTimeMillis();
+            long currentTick = now / tickMillis;
+            long firstTick = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1);
+            for (long tick = firstTick; tick <= currentTick; tick++) {
+                processSlot((int) (tick % WHEEL_SIZE), now);
+            }
+            lastTick = currentTick;
+        } catch (RuntimeException e) {
+            Logger.getLogger(ExpiryWheel.class.getName()).log(Level.WARNING, "Expiry wheel tick failed.", e);
+        }
+    }
+
+    /**
+     * Expires the items of a slot that reached their deadline and moves refreshed ones to their new slot.
+     *
+     * @param index the slot index
+     * @param now   the current time (in epoch milliseconds)
+     */
+    private void processSlot(int index, long now) {
+
+        Set<T> slot = slots.get(index);
+        for (T item : slot) {
+
+            AtomicLong holder = deadlines.get(item);
+            long deadline = (holder == null) ? EXPIRED : holder.get();
+            if (deadline == EXPIRED) {
+                slot.remove(item); // Cancelled
+            } else if (deadline <= now) {
+                slot.remove(item);
+                if (holder.compareAndSet(deadline, EXPIRED)) {
+                    deadlines.remove(item, holder);
+                    onExpire.accept(item);
+                } else {
+                    reinsert(item); // Refreshed meanwhile
+                }
+            } else if (slotOf(deadline) != index) {
+                slot.remove(item);
+                slots.get(slotOf(deadline)).add(item); // Refreshed
+            }
+        }
+    }
+
+    /**
+     * Places a tracked item in the slot of its current deadline
+     *
+     * @param item the item
+     */
+    private void reinsert(T item) {
+
+        AtomicLong holder = deadlines.get(item);
+        long deadline = (holder == null) ? EXPIRED : holder.get();
+        if (deadline != EXPIRED) slots.get(slotOf(deadline)).add(item);
+    }
+}
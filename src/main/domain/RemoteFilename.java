@@ -1,16 +1,15 @@
 package domain;
 
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
-import settings.Application;
 
 import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
 import java.util.Observable;
-import java.util.TimerTask;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -20,17 +19,17 @@ import java.util.concurrent.TimeUnit;
  */
 public class RemoteFilename extends Observable {
 
-    private static final int THREAD_POOL_SIZE = 10;
     // JavaFX
     private final StringProperty filenameProperty;
     private final StringProperty usernameProperty;
+    private final ObjectProperty<List<RemoteFilename>> sourcesProperty;
     private final String filename;
     private final String username;
     private final InetAddress host;
     private final Integer tcpPort;
-    private final ScheduledExecutorService scheduler;
-    private Boolean active;
-    private ScheduledFuture<?> futureTask;
+    private final ContentId content;
+    private final int hash;
+    private volatile boolean active;
 
     /**
      * Creates a available remote file name.
@@ -41,20 +40,34 @@ public class RemoteFilename extends Observable {
      * @param tcpPort     the user's tcp port to connect
      */
     public RemoteFilename(String filename, String username, InetAddress hostAddress, Integer tcpPort) {
+        this(filename, username, hostAddress, tcpPort, null);
+    }
+
+    /**
+     * Creates a available remote file name with known content.
+     *
+     * @param filename    the file's name
+     * @param username    the user's name that hosts the file
+     * @param hostAddress the user's host IPv4 address
+     * @param tcpPort     the user's tcp port to connect
+     * @param content     the file's content identifier (null if not announced)
+     */
+    public RemoteFilename(String filename, String username, InetAddress hostAddress, Integer tcpPort, ContentId content) {
 
         this.filename = filename;
         this.username = username;
         this.host = hostAddress;
         this.tcpPort = tcpPort;
+        this.content = content;
+
+        hash = computeHash();
 
         filenameProperty = new SimpleStringProperty(filename);
         usernameProperty = new SimpleStringProperty(username);
+        sourcesProperty = new SimpleObjectProperty<>(Collections.singletonList(this));
 
-        // active state;
+        // active state (the timeout is tracked by the list's expiry wheel)
         active = true;
-        // Instantiate scheduler
-        scheduler = Executors.newScheduledThreadPool(THREAD_POOL_SIZE);
-        futureTask = null;
     }
 
     /**
@@ -75,6 +88,25 @@ public class RemoteFilename extends Observable {
         return usernameProperty;
     }
 
+    /**
+     * Obtain the javaFX sources property: every peer that can serve the file, kept up to date (on the UI thread)
+     * while the file is shown in the list's view
+     *
+     * @return javaFX sources property
+     */
+    public ReadOnlyObjectProperty<List<RemoteFilename>> sourcesProperty() {
+        return sourcesProperty;
+    }
+
+    /**
+     * Sets the peers that can serve the file (on the UI thread)
+     *
+     * @param sources the sources (this remote file first)
+     */
+    void setSources(List<RemoteFilename> sources) {
+        sourcesProperty.set(Collections.unmodifiableList(sources));
+    }
+
     /**
      * Obtain the file's name
      *
@@ -112,76 +144,35 @@ public class RemoteFilename extends Observable {
     }
 
     /**
-     * Check if remote file is active
+     * Obtain the file's content identifier (size & hash), if the peer announced it
      *
-     * @return true if active, false otherwise
-     */
-    boolean isInactive() {
-        return this.active;
-    }
-
-    /**
-     * Resets the filename refresh time limit
-     */
-    void refresh() {
-
-        if (futureTask != null) {
-            cancel();
-        }
-        activate();
-        System.out.println("[Refresh] " + filename);
-    }
-
-    /**
-     * Activates the timeout limit
-     */
-    void activate() {
-
-        if (futureTask == null) {
-            futureTask = scheduler.schedule(
-                    new ChangeStateTimerTask(this),
-                    Application.settings().getFileRefreshTime(),
-                    TimeUnit.SECONDS);
-            System.out.println("[Activate] " + filename);
-        }
-    }
-
-    /**
-     * Cancels the timeout limit
+     * @return the content identifier or null if unknown
      */
-    private void cancel() {
-
-        if (futureTask != null) {
-            futureTask.cancel(true);
-            futureTask = null;
-            System.out.println("[Cancel] " + filename);
-        }
+    public ContentId getContent() {
+        return content;
     }
 
     /**
-     * Shutdown the remote file timeout scheduler
+     * Check if remote file is inactive (timed out)
+     *
+     * @return true if inactive, false otherwise
      */
-    private void shutdown() {
-
-        cancel();
-        scheduler.shutdownNow();
-        System.out.println("[Shutdown] " + filename);
+    boolean isInactive() {
+        return !this.active;
     }
 
     /**
-     * Deactivates the timeout scheduler
+     * Deactivates the remote file (its refresh time limit was reached) and notifies the observers
      */
-    private void deactivate() {
+    void deactivate() {
 
         this.active = false;
-        // Shutdown
-        shutdown();
+        System.out.println("[Deactivate] " + filename);
         // Notify observers
         setChanged();
         notifyObservers();
     }
 
-
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -194,34 +185,18 @@ public class RemoteFilename extends Observable {
 
     @Override
     public int hashCode() {
-        int result = filename.hashCode();
-        result = 31 * result + username.hashCode();
-        result = 31 * result + host.hashCode();
-        return result;
+        return hash;
     }
 
     /**
-     * Private TimerTask to run state change
+     * Computes the hash code once (items are looked up in hash indexes for every received announcement)
+     *
+     * @return the hash code
      */
-    private class ChangeStateTimerTask extends TimerTask {
-
-        private final RemoteFilename item;
-
-        /**
-         * Creates timer task for the remote file
-         *
-         * @param remoteFilename remote file name
-         */
-        private ChangeStateTimerTask(RemoteFilename remoteFilename) {
-
-            item = remoteFilename;
-        }
-
-        @Override
-        public void run() {
-
-            System.out.println("[Deactivate]" + item.filename);
-            item.deactivate();
-        }
+    private int computeHash() {
+        int result = filename.hashCode();
+        result = 31 * result + username.hashCode();
+        result = 31 * result + host.hashCode();
+        return result;
     }
 }
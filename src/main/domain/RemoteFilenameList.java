@@ -1,30 +1,88 @@
 package domain;
 
-import javafx.collections.FXCollections;
+import javafx.application.Platform;
 import javafx.collections.ObservableList;
+import settings.Application;
 
-import java.util.Collection;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Represents a container of filename items.
  * <p>
+ * The items are indexed in a concurrent hash map keyed by (filename, username, host), so adding, refreshing and
+ * removing an item is constant-time. The observable list is only a view of the index for the UI: additions and
+ * removals are queued by the network/expiry threads and applied on the UI thread as one batched change, at most
+ * once per UI frame interval (refreshes don't touch the view at all).
+ * <p>
+ * Items announced with their content (size & hash) are also grouped by content: the view shows each content once
+ * (one item of the group represents it) and the whole group are the sources to download it from, whatever the
+ * filename each peer shares it with. Each shown item's sources property follows its group (updated with the view).
+ * <p>
  * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
  */
 public class RemoteFilenameList implements Observer {
 
-    private final ObservableList<RemoteFilename> list;
+    private static final long EXPIRY_TICK = 1000; // milliseconds
+    private static final long UI_FRAME_INTERVAL = 100; // milliseconds
+
+    private final ConcurrentMap<RemoteFilename, RemoteFilename> index;
+    private final ConcurrentMap<String, Set<RemoteFilename>> filenameIndex;
+    // Content groups (changed under contentLock)
+    private final Object contentLock;
+    private final ConcurrentMap<ContentId, Set<RemoteFilename>> contentIndex;
+    private final Map<ContentId, RemoteFilename> representatives;
+    private final BatchObservableList<RemoteFilename> list;
+    private final ExpiryWheel<RemoteFilename> expiryWheel;
+    private final long refreshTime;
+    // UI update pipeline
+    private final Executor uiExecutor;
+    private final Queue<RemoteFilename> pendingAdds;
+    private final Queue<RemoteFilename> pendingRemoves;
+    private final Set<RemoteFilename> changedSources;
+    private final AtomicBoolean flushScheduled;
+    private final ScheduledExecutorService flushScheduler;
+    private volatile long lastFlush;
 
     /**
-     * Creates a remote file list manager
+     * Creates a remote file list manager that updates its view on the JavaFX application thread
      */
     public RemoteFilenameList() {
-        this.list = FXCollections.observableArrayList();
+        this(Platform::runLater);
+    }
+
+    /**
+     * Creates a remote file list manager
+     *
+     * @param uiExecutor the executor that runs the view updates (the UI thread)
+     */
+    public RemoteFilenameList(Executor uiExecutor) {
+        this.index = new ConcurrentHashMap<>();
+        this.filenameIndex = new ConcurrentHashMap<>();
+        this.contentLock = new Object();
+        this.contentIndex = new ConcurrentHashMap<>();
+        this.representatives = new HashMap<>();
+        this.list = new BatchObservableList<>();
+        this.expiryWheel = new ExpiryWheel<>(EXPIRY_TICK, RemoteFilename::deactivate);
+        this.refreshTime = Application.settings().getFileRefreshTime() * 1000L;
+        this.uiExecutor = uiExecutor;
+        this.pendingAdds = new ConcurrentLinkedQueue<>();
+        this.pendingRemoves = new ConcurrentLinkedQueue<>();
+        this.changedSources = ConcurrentHashMap.newKeySet();
+        this.flushScheduled = new AtomicBoolean(false);
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "remote-list-ui-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lastFlush = 0;
     }
 
     /**
-     * Adds a remote file to the list and activates/refreshes the timeout scheduler for the added file
+     * Adds a remote file to the list and activates/refreshes its timeout in the shared expiry wheel
      *
      * @param item the remote file to add
      * @return true if file is added, false if resfreshed or if file was inactive
@@ -34,19 +92,23 @@ public class RemoteFilenameList implements Observer {
         if (item.isInactive()) {
             return false;
         }
-        // If list already contains item refresh scheduler
-        int index = list.indexOf(item);
-        if (index >= 0) {
+        // If list already contains item refresh its timeout
+        RemoteFilename found = index.putIfAbsent(item, item);
+        if (found != null) {
 
-            RemoteFilename found = list.get(index);
-            found.refresh();
+            expiryWheel.refresh(found, refreshTime);
             return false;
         }
 
         // If it's a new item add to list
+        filenameIndex.computeIfAbsent(item.getFilename(), k -> ConcurrentHashMap.newKeySet()).add(item);
         item.addObserver(this);
-        item.activate();
-        return this.list.add(item);
+        expiryWheel.schedule(item, refreshTime);
+        System.out.println("[Activate] " + item.getFilename());
+        if (item.getContent() == null || joinContentGroup(item)) pendingAdds.add(item);
+        changedSources.add(item);
+        requestFlush();
+        return true;
     }
 
     /**
@@ -62,6 +124,18 @@ public class RemoteFilenameList implements Observer {
         }
     }
 
+    /**
+     * Resets the timeout of a remote file already in the list.
+     *
+     * @param item the remote file to refresh
+     * @return true if refreshed, false if the file isn't in the list (never added or timed out)
+     */
+    public boolean refresh(RemoteFilename item) {
+
+        RemoteFilename found = index.get(item);
+        return found != null && expiryWheel.refresh(found, refreshTime);
+    }
+
     /**
      * Removes a remote file from the list.
      *
@@ -70,11 +144,109 @@ public class RemoteFilenameList implements Observer {
      */
     public void remove(RemoteFilename item) {
 
-        this.list.remove(item);
+        RemoteFilename found = index.remove(item);
+        if (found == null) return;
+
+        filenameIndex.computeIfPresent(found.getFilename(), (k, set) -> {
+            set.remove(found);
+            return set.isEmpty() ? null : set;
+        });
+        expiryWheel.cancel(found);
+        changedSources.add(found);
+        if (found.getContent() == null) {
+            pendingRemoves.add(found);
+        } else {
+            leaveContentGroup(found);
+        }
+        requestFlush();
     }
 
     /**
-     * Obtains the list
+     * Adds an item to the group of its content
+     *
+     * @param item the item (with known content)
+     * @return true if it's the first of the group (so it represents the content in the view), false otherwise
+     */
+    private boolean joinContentGroup(RemoteFilename item) {
+
+        synchronized (contentLock) {
+            contentIndex.computeIfAbsent(item.getContent(), k -> ConcurrentHashMap.newKeySet()).add(item);
+            return representatives.putIfAbsent(item.getContent(), item) == null;
+        }
+    }
+
+    /**
+     * Removes an item from the group of its content; if it represented the content in the view, another item of
+     * the group takes its place
+     *
+     * @param item the item (with known content)
+     */
+    private void leaveContentGroup(RemoteFilename item) {
+
+        synchronized (contentLock) {
+            ContentId content = item.getContent();
+            Set<RemoteFilename> group = contentIndex.get(content);
+            if (group != null) {
+                group.remove(item);
+                if (group.isEmpty()) contentIndex.remove(content);
+            }
+            if (representatives.get(content) != item) return;
+
+            pendingRemoves.add(item);
+            if (group == null || group.isEmpty()) {
+                representatives.remove(content);
+            } else {
+                RemoteFilename next = group.iterator().next();
+                representatives.put(content, next);
+                pendingAdds.add(next);
+            }
+        }
+    }
+
+    /**
+     * Obtains the indexed remote file equal to an item (same filename, username & host).
+     *
+     * @param item the remote file to look for
+     * @return the indexed remote file or null if not in the list
+     */
+    public RemoteFilename get(RemoteFilename item) {
+        return index.get(item);
+    }
+
+    /**
+     * Obtains the number of remote files
+     *
+     * @return the number of remote files
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Obtains every active remote file that can serve the same file as an item (the item included), i.e. all the
+     * peers that can serve it: the ones announcing the same content (under any name) if the item's content is known,
+     * otherwise the ones announcing the same name (except those announcing a different content).
+     *
+     * @param item the remote file
+     * @return the remote files with the same content (or name)
+     */
+    public List<RemoteFilename> getSources(RemoteFilename item) {
+
+        List<RemoteFilename> sources = new ArrayList<>();
+        sources.add(item);
+        Set<RemoteFilename> candidates = (item.getContent() != null)
+                ? contentIndex.getOrDefault(item.getContent(), Collections.emptySet())
+                : filenameIndex.getOrDefault(item.getFilename(), Collections.emptySet());
+        for (RemoteFilename other : candidates) {
+            if (!other.equals(item) && (item.getContent() != null || other.getContent() == null)) {
+                sources.add(other);
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Obtains the list (a view updated on the UI thread)
      *
      * @return the remote file list
      */
@@ -82,6 +254,72 @@ public class RemoteFilenameList implements Observer {
         return this.list;
     }
 
+    /**
+     * Schedules a view update, unless one is already pending, no sooner than one frame after the last one
+     */
+    private void requestFlush() {
+
+        if (!flushScheduled.compareAndSet(false, true)) return;
+
+        long delay = Math.max(0, lastFlush + UI_FRAME_INTERVAL - System.currentTimeMillis());
+        flushScheduler.schedule(() -> {
+            try {
+                uiExecutor.execute(this::flush);
+            } catch (RuntimeException e) {
+                flushScheduled.set(false);
+                Logger.getLogger(RemoteFilenameList.class.getName()).log(Level.WARNING, "Scheduling a view update failed.", e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies every queued addition and removal to the view as one change (runs on the UI thread)
+     */
+    private void flush() {
+
+        flushScheduled.set(false);
+        lastFlush = System.currentTimeMillis();
+
+        // Pending removals counted by instance: an equal item replacing a shown one is a different row
+        Map<RemoteFilename, Integer> removed = new IdentityHashMap<>();
+        for (RemoteFilename item = pendingRemoves.poll(); item != null; item = pendingRemoves.poll()) {
+            removed.merge(item, 1, Integer::sum);
+        }
+        List<RemoteFilename> added = new ArrayList<>();
+        for (RemoteFilename item = pendingAdds.poll(); item != null; item = pendingAdds.poll()) {
+            // Added & removed within the same frame: never show it (an equal item replacing it is still shown)
+            Integer removals = removed.get(item);
+            if (removals == null) added.add(item);
+            else if (removals == 1) removed.remove(item);
+            else removed.put(item, removals - 1);
+        }
+        if (!removed.isEmpty() || !added.isEmpty()) list.applyBatch(removed.keySet(), added);
+        updateSources();
+    }
+
+    /**
+     * Updates the sources property of the shown items whose group gained or lost a member (runs on the UI thread)
+     */
+    private void updateSources() {
+
+        Set<RemoteFilename> shown = new HashSet<>();
+        for (Iterator<RemoteFilename> iterator = changedSources.iterator(); iterator.hasNext(); ) {
+            RemoteFilename item = iterator.next();
+            iterator.remove();
+            if (item.getContent() != null) {
+                synchronized (contentLock) {
+                    RemoteFilename representative = representatives.get(item.getContent());
+                    if (representative != null) shown.add(representative);
+                }
+            } else {
+                for (RemoteFilename other : filenameIndex.getOrDefault(item.getFilename(), Collections.emptySet())) {
+                    if (other.getContent() == null) shown.add(other);
+                }
+            }
+        }
+        for (RemoteFilename item : shown) item.setSources(getSources(item));
+    }
+
     @Override
     public void update(Observable o, Object arg) {
 
@@ -104,11 +342,11 @@ public class RemoteFilenameList implements Observer {
 
         RemoteFilenameList that = (RemoteFilenameList) o;
 
-        return list.equals(that.list);
+        return index.keySet().equals(that.index.keySet());
     }
 
     @Override
     public int hashCode() {
-        return list.hashCode();
+        return index.keySet().hashCode();
     }
 }
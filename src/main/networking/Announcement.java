@@ -0,0 +1,123 @@
+package networking;
+
+import domain.ContentId;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents a received catalog announcement packet (version 2 of the remote filename list protocol).
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public final class Announcement {
+
+    /**
+     * The announcement types
+     */
+    public enum Type {
+        /**
+         * The whole catalog (possibly split in several parts)
+         */
+        FULL,
+        /**
+         * The changes from the previous catalog version (possibly split in several parts)
+         */
+        DELTA,
+        /**
+         * "Still alive at this catalog version"
+         */
+        HEARTBEAT,
+        /**
+         * A request for the receiver's whole catalog
+         */
+        RESYNC
+    }
+
+    private final Type type;
+    private final InetAddress host;
+    private final int tcpPort;
+    private final String username;
+    private final int catalogVersion;
+    private final int partIndex;
+    private final int partCount;
+    private final List<String> added;
+    private final List<String> removed;
+    private final Map<String, ContentId> contents;
+
+    /**
+     * Creates an announcement.
+     *
+     * @param type           the announcement type
+     * @param host           the sender's address
+     * @param tcpPort        the sender's tcp port
+     * @param username       the sender's user name
+     * @param catalogVersion the sender's catalog version
+     * @param partIndex      the index of this part
+     * @param partCount      the number of parts of this announcement
+     * @param added          the added (or, in a full announcement, all) filenames
+     * @param removed        the removed filenames
+     * @param contents       the announced content of the added filenames (only the ones the sender hashed)
+     */
+    Announcement(Type type, InetAddress host, int tcpPort, String username, int catalogVersion,
+                 int partIndex, int partCount, List<String> added, List<String> removed,
+                 Map<String, ContentId> contents) {
+        this.type = type;
+        this.host = host;
+        this.tcpPort = tcpPort;
+        this.username = username;
+        this.catalogVersion = catalogVersion;
+        this.partIndex = partIndex;
+        this.partCount = partCount;
+        this.added = added;
+        this.removed = removed;
+        this.contents = contents;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public InetAddress getHost() {
+        return host;
+    }
+
+    public int getTcpPort() {
+        return tcpPort;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public int getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    public int getPartIndex() {
+        return partIndex;
+    }
+
+    public int getPartCount() {
+        return partCount;
+    }
+
+    public List<String> getAdded() {
+        return added;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Obtains the announced content of an added filename
+     *
+     * @param filename the added filename
+     * @return the content identifier or null if the sender didn't announce it
+     */
+    public ContentId getContent(String filename) {
+        return contents.get(filename);
+    }
+}
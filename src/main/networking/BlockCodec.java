@@ -0,0 +1,167 @@
+package networking;
+
+import settings.AppSettings;
+import settings.Application;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the body of a file transfer as a sequence of independent Deflate blocks (fast level).
+ * <p>
+ * Each block of up to BLOCK_SIZE file bytes is sent as a frame: length (int) followed by the frame bytes.
+ * A positive length is a deflated block; a negative length is a block stored as it is (it didn't shrink, so the
+ * receiver doesn't pay for inflating it); a zero length ends the body. A codec is not thread-safe: each
+ * connection (or download) uses its own.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+final class BlockCodec {
+
+    static final int BLOCK_SIZE = 64 * 1024; // file bytes per frame
+    private static final int FRAME_HEADER_SIZE = Integer.BYTES;
+
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final byte[] compressed;
+    private final ByteBuffer frame;
+
+    /**
+     * Creates a codec
+     */
+    BlockCodec() {
+
+        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.inflater = new Inflater();
+        this.compressed = new byte[BLOCK_SIZE];
+        this.frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + BLOCK_SIZE);
+    }
+
+    /**
+     * Obtains the codecs this peer accepts for its downloads (as sent in its requests)
+     *
+     * @return the accepted codecs (FileTransferProtocol.CODEC_* flags)
+     */
+    static byte acceptedCodecs() {
+
+        return AppSettings.DEFLATE_COMPRESSION.equals(Application.settings().getTransferCompression())
+                ? FileTransferProtocol.CODEC_DEFLATE : FileTransferProtocol.CODEC_NONE;
+    }
+
+    /**
+     * Chooses the codec to send a file with: Deflate if the requester accepts it, this peer has compression enabled
+     * and the file type isn't already compressed.
+     *
+     * @param request  the request
+     * @param filename the requested file's name
+     * @return the codec (FileTransferProtocol.CODEC_NONE or CODEC_DEFLATE)
+     */
+    static byte choose(FileTransferProtocol.Request request, String filename) {
+
+        if ((request.getAcceptedCodecs() & FileTransferProtocol.CODEC_DEFLATE) == 0
+                || !AppSettings.DEFLATE_COMPRESSION.equals(Application.settings().getTransferCompression())) {
+            return FileTransferProtocol.CODEC_NONE;
+        }
+        int dot = filename.lastIndexOf('.');
+        String extension = (dot < 0) ? "" : filename.substring(dot + 1).toLowerCase();
+        return bypassedExtensions().contains(extension) ? FileTransferProtocol.CODEC_NONE : FileTransferProtocol.CODEC_DEFLATE;
+    }
+
+    /**
+     * Obtains the (lower case) extensions of the file types sent without compression
+     *
+     * @return the extensions
+     */
+    private static Set<String> bypassedExtensions() {
+
+        Set<String> extensions = new HashSet<>();
+        for (String extension : Application.settings().getCompressionBypassExtensions()) {
+            extensions.add(extension.trim().toLowerCase());
+        }
+        return extensions;
+    }
+
+    /**
+     * Encodes a block of file bytes into a frame
+     *
+     * @param block  the file bytes
+     * @param length the number of bytes (at most BLOCK_SIZE)
+     * @return the frame (ready to be read; valid until the next call)
+     */
+    ByteBuffer encode(byte[] block, int length) {
+
+        deflater.reset();
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+        int compressedSize = deflater.deflate(compressed, 0, compressed.length);
+
+        frame.clear();
+        if (deflater.finished() && compressedSize < length) {
+            frame.putInt(compressedSize);
+            frame.put(compressed, 0, compressedSize);
+        } else {
+            frame.putInt(-length); // Didn't shrink: store it
+            frame.put(block, 0, length);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes the frame that ends a body
+     *
+     * @return the end frame (ready to be read)
+     */
+    static ByteBuffer endFrame() {
+
+        ByteBuffer end = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        end.putInt(0);
+        end.flip();
+        return end;
+    }
+
+    /**
+     * Receives and decodes the next frame of a body
+     *
+     * @param in    the connection input
+     * @param block the array to decode the file bytes to (BLOCK_SIZE bytes at least)
+     * @return the number of file bytes decoded or -1 if it was the end frame
+     * @throws IOException I/O error or invalid frame
+     */
+    int decode(DataInputStream in, byte[] block) throws IOException {
+
+        int frameSize = in.readInt();
+        if (frameSize == 0) return -1;
+        if (frameSize < -BLOCK_SIZE || frameSize > BLOCK_SIZE) throw new IOException("Invalid compressed frame.");
+        if (frameSize < 0) {
+            in.readFully(block, 0, -frameSize);
+            return -frameSize;
+        }
+
+        in.readFully(compressed, 0, frameSize);
+        inflater.reset();
+        inflater.setInput(compressed, 0, frameSize);
+        try {
+            int length = inflater.inflate(block, 0, BLOCK_SIZE);
+            if (!inflater.finished()) throw new IOException("Invalid compressed frame.");
+            return length;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed frame.", e);
+        }
+    }
+
+    /**
+     * Releases the native compression resources
+     */
+    void end() {
+
+        deflater.end();
+        inflater.end();
+    }
+}
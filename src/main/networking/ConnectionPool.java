@@ -0,0 +1,207 @@
+package networking;
+
+import util.Constants;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps idle keep-alive connections to peers so later requests skip the TCP handshake and slow start.
+ * <p>
+ * Connections idle for longer than Constants.CONNECTION_IDLE_TIME are closed (before the peer's own timeout), and a
+ * request on a connection that receives nothing for Constants.READ_TIMEOUT fails.
+ * Peers that don't understand keep-alive requests are remembered so they are only asked in version 2, and peers that
+ * don't understand ranged requests either so they are only asked in version 1 (whole files).
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+class ConnectionPool {
+
+    private static final int MAX_IDLE_PER_PEER = 4;
+
+    private final Map<InetSocketAddress, Deque<PeerConnection>> idle;
+    private final Set<InetSocketAddress> legacyPeers;
+    private final Set<InetSocketAddress> rangelessPeers;
+    private final ScheduledExecutorService cleaner;
+
+    /**
+     * Creates an empty connection pool
+     */
+    ConnectionPool() {
+
+        this.idle = new ConcurrentHashMap<>();
+        this.legacyPeers = ConcurrentHashMap.newKeySet();
+        this.rangelessPeers = ConcurrentHashMap.newKeySet();
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::closeExpired,
+                Constants.CONNECTION_IDLE_TIME, Constants.CONNECTION_IDLE_TIME, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Obtains a connection to a peer, reusing an idle one if possible.
+     *
+     * @param peer the peer's address
+     * @return the connection (exclusively owned by the caller until released or closed)
+     * @throws IOException I/O error connecting
+     */
+    PeerConnection acquire(InetSocketAddress peer) throws IOException {
+
+        Deque<PeerConnection> connections = idle.get(peer);
+        if (connections != null) {
+            PeerConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                if (!connection.isExpired()) return connection;
+                connection.close();
+            }
+        }
+        return new PeerConnection(peer);
+    }
+
+    /**
+     * Gives back a connection whose last response was completely read, so it can be reused.
+     *
+     * @param connection the connection
+     */
+    void release(PeerConnection connection) {
+
+        connection.touch();
+        Deque<PeerConnection> connections = idle.computeIfAbsent(connection.getPeer(), k -> new ConcurrentLinkedDeque<>());
+        if (connections.size() >= MAX_IDLE_PER_PEER) {
+            connection.close();
+        } else {
+            connections.addFirst(connection); // Most recently used first
+        }
+    }
+
+    /**
+     * Checks if a peer only understands single-request connections
+     *
+     * @param peer the peer's address
+     * @return true if it's a legacy peer, false otherwise
+     */
+    boolean isLegacy(InetSocketAddress peer) {
+        return legacyPeers.contains(peer);
+    }
+
+    /**
+     * Remembers that a peer only understands single-request connections
+     *
+     * @param peer the peer's address
+     */
+    void markLegacy(InetSocketAddress peer) {
+        legacyPeers.add(peer);
+    }
+
+    /**
+     * Checks if a peer only understands whole file requests
+     *
+     * @param peer the peer's address
+     * @return true if it's a version 1 peer, false otherwise
+     */
+    boolean isRangeless(InetSocketAddress peer) {
+        return rangelessPeers.contains(peer);
+    }
+
+    /**
+     * Remembers that a peer only understands whole file requests
+     *
+     * @param peer the peer's address
+     */
+    void markRangeless(InetSocketAddress peer) {
+        rangelessPeers.add(peer);
+    }
+
+    /**
+     * Closes every idle connection that expired
+     */
+    private void closeExpired() {
+
+        for (Deque<PeerConnection> connections : idle.values()) {
+            Iterator<PeerConnection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                PeerConnection connection = iterator.next();
+                if (connection.isExpired() && connections.remove(connection)) connection.close();
+            }
+        }
+    }
+
+    /**
+     * Represents an open connection to a peer
+     */
+    static final class PeerConnection implements Closeable {
+
+        private final InetSocketAddress peer;
+        private final SocketChannel channel;
+        private final DataOutputStream output;
+        private final DataInputStream input;
+        private boolean reused;
+        private volatile long lastUsed;
+
+        private PeerConnection(InetSocketAddress peer) throws IOException {
+
+            this.peer = peer;
+            this.channel = SocketChannel.open(peer);
+            Socket socket = channel.socket();
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true); // Small pipelined requests shouldn't wait for acks
+            socket.setSoTimeout(Constants.READ_TIMEOUT); // A stalled peer fails the request instead of blocking it
+            this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.input = new DataInputStream(socket.getInputStream());
+            this.reused = false;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        InetSocketAddress getPeer() {
+            return peer;
+        }
+
+        DataOutputStream getOutput() {
+            return output;
+        }
+
+        DataInputStream getInput() {
+            return input;
+        }
+
+        /**
+         * Checks if the connection was already used for a previous request (the peer may have closed it meanwhile)
+         *
+         * @return true if reused, false if new
+         */
+        boolean isReused() {
+            return reused;
+        }
+
+        private void touch() {
+            reused = true;
+            lastUsed = System.currentTimeMillis();
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - lastUsed > Constants.CONNECTION_IDLE_TIME || !channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Logger.getLogger(ConnectionPool.class.getName()).log(Level.WARNING, "Closing a connection failed.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package networking;
+
+import util.Constants;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.IntConsumer;
+
+/**
+ * Represents the application protocol used over TCP to request a file (or a range of a file) from a peer.
+ * <p>
+ * Version 1 request: filename length (int), filename bytes. Response: file size (long) followed by the file bytes.
+ * <p>
+ * Version 2 request: version marker (negative int), filename length (int), filename bytes, offset (long),
+ * length (long, negative for "until the end of file"). Response: file size (long), accepted offset (long),
+ * length (long) followed by that many file bytes. Version 1 requests are still accepted by the server, and sent by
+ * the client to peers that close the connection on a version 2 request (they read the marker as a filename length).
+ * <p>
+ * Version 3 (keep-alive) requests and responses are laid out as in version 2, but the connection stays open
+ * after the response: the client may send (or pipeline) further requests and the server answers them in order,
+ * back-to-back, until the client closes the connection or it is idle for too long.
+ * <p>
+ * Version 4 (verified) requests are keep-alive requests whose responses are followed by a trailer: the SHA-256
+ * digest of the bytes of the range, computed by the server while streaming them.
+ * <p>
+ * Version 5 (compressed) requests are verified requests followed by the codecs the client accepts (1 byte of
+ * CODEC_* flags). The response header is followed by the codec the server chose (1 byte): with CODEC_NONE the
+ * range is sent as in version 4, with CODEC_DEFLATE it is sent as Deflate frames (see BlockCodec). The digest
+ * trailer is always computed over the file bytes.
+ * <p>
+ * Version 6 (queued) requests are laid out as compressed requests. While the server has no free upload slot for
+ * the request it sends queue notices instead of the response header: QUEUED (long) followed by the position in its
+ * upload queue (int), again every Constants.QUEUE_NOTICE_INTERVAL (so the client's read timeout doesn't expire while it
+ * waits); the header follows once the request gets a slot.
+ * A response covers at most Constants.UPLOAD_SLICE_SIZE bytes, so the client requests the rest of a larger range
+ * again (and is queued again, behind the requests that came meanwhile).
+ * <p>
+ * A negative file size in any response means the file is not available.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public final class FileTransferProtocol {
+
+    public static final int LEGACY_VERSION = 1;
+    public static final int RANGE_VERSION = 2;
+    public static final int KEEP_ALIVE_VERSION = 3;
+    public static final int VERIFIED_VERSION = 4;
+    public static final int COMPRESSED_VERSION = 5;
+    public static final int QUEUED_VERSION = 6;
+    public static final byte CODEC_NONE = 0;
+    public static final byte CODEC_DEFLATE = 1;
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    public static final int DIGEST_SIZE = 32; // bytes
+    public static final long UNAVAILABLE = -1;
+    public static final long QUEUED = -2;
+    public static final long UNTIL_END = -1;
+    public static final int MAX_FILENAME_SIZE = 4096; // bytes
+    public static final int MAX_REQUEST_SIZE = 2 * Integer.BYTES + MAX_FILENAME_SIZE + 2 * Long.BYTES + 1;
+
+    /**
+     * The caller references the static methods using <tt>FileTransferProtocol.writeRequest</tt>,
+     * and so on. Thus, the caller should be prevented from constructing objects of
+     * this class, by declaring this private constructor.
+     */
+    private FileTransferProtocol() {
+        //this prevents even the native class from
+        //calling this constructor as well :
+        throw new AssertionError();
+    }
+
+    /**
+     * Sends a whole file request (version 1).
+     *
+     * @param out      the connection output
+     * @param filename the requested file's name
+     * @throws IOException I/O error
+     */
+    public static void writeLegacyRequest(DataOutputStream out, String filename) throws IOException {
+
+        byte[] filenameBytes = filename.getBytes();
+        out.writeInt(filenameBytes.length);
+        out.write(filenameBytes, 0, filenameBytes.length);
+        out.flush();
+    }
+
+    /**
+     * Receives the response header of a version 1 request (the whole file follows).
+     *
+     * @param in the connection input
+     * @return the response header
+     * @throws IOException I/O error
+     */
+    public static Response readLegacyResponse(DataInputStream in) throws IOException {
+
+        long fileSize = in.readLong();
+        return new Response(fileSize, new Range(0, Math.max(0, fileSize)), CODEC_NONE);
+    }
+
+    /**
+     * Sends a ranged file request (version 2).
+     *
+     * @param out      the connection output
+     * @param filename the requested file's name
+     * @param offset   the position of the first requested byte
+     * @param length   the number of requested bytes (or UNTIL_END)
+     * @throws IOException I/O error
+     */
+    public static void writeRequest(DataOutputStream out, String filename, long offset, long length)
+            throws IOException {
+
+        writeRequest(out, RANGE_VERSION, filename, offset, length);
+        out.flush();
+    }
+
+    /**
+     * Writes (without flushing, so requests can be pipelined) a ranged file request.
+     *
+     * @param out      the connection output
+     * @param version  the request version (RANGE_VERSION up to VERIFIED_VERSION)
+     * @param filename the requested file's name
+     * @param offset   the position of the first requested byte
+     * @param length   the number of requested bytes (or UNTIL_END)
+     * @throws IOException I/O error
+     */
+    public static void writeRequest(DataOutputStream out, int version, String filename, long offset, long length)
+            throws IOException {
+
+        writeRequest(out, version, filename, offset, length, CODEC_NONE);
+    }
+
+    /**
+     * Writes (without flushing, so requests can be pipelined) a ranged file request.
+     *
+     * @param out      the connection output
+     * @param version  the request version
+     * @param filename the requested file's name
+     * @param offset   the position of the first requested byte
+     * @param length   the number of requested bytes (or UNTIL_END)
+     * @param codecs   the accepted codecs (CODEC_* flags; only sent in COMPRESSED_VERSION requests)
+     * @throws IOException I/O error
+     */
+    public static void writeRequest(DataOutputStream out, int version, String filename, long offset, long length,
+                                    byte codecs) throws IOException {
+
+        byte[] filenameBytes = filename.getBytes();
+        out.writeInt(-version);
+        out.writeInt(filenameBytes.length);
+        out.write(filenameBytes, 0, filenameBytes.length);
+        out.writeLong(offset);
+        out.writeLong(length);
+        if (version >= COMPRESSED_VERSION) out.writeByte(codecs);
+    }
+
+    /**
+     * Receives a file request of any supported version.
+     *
+     * @param in the connection input
+     * @return the received request
+     * @throws IOException           I/O error
+     * @throws IllegalStateException request does not abide by this protocol
+     */
+    public static Request readRequest(DataInputStream in) throws IOException, IllegalStateException {
+
+        int first = in.readInt();
+        if (first >= 0) {
+            // Version 1: the first int is the filename length
+            return new Request(LEGACY_VERSION, readFilename(in, first), 0, UNTIL_END, CODEC_NONE);
+        }
+        if (-first < RANGE_VERSION || -first > QUEUED_VERSION) {
+            throw new IllegalStateException("Request does not abide by this protocol.");
+        }
+        String filename = readFilename(in, in.readInt());
+        long offset = in.readLong();
+        long length = in.readLong();
+        byte codecs = (-first >= COMPRESSED_VERSION) ? in.readByte() : CODEC_NONE;
+        if (offset < 0) throw new IllegalStateException("Request offset is negative.");
+
+        return new Request(-first, filename, offset, length, codecs);
+    }
+
+    /**
+     * Parses a file request of any supported version from the bytes received so far (non-blocking servers).
+     *
+     * @param in the received bytes (in read mode); on success its position moves past the request,
+     *           otherwise it is left unchanged
+     * @return the received request or null if more bytes are needed
+     * @throws IllegalStateException request does not abide by this protocol
+     */
+    public static Request parseRequest(ByteBuffer in) throws IllegalStateException {
+
+        int start = in.position();
+        if (in.remaining() < Integer.BYTES) return null;
+
+        int first = in.getInt();
+        int version = LEGACY_VERSION;
+        int filenameSize = first;
+        if (first < 0) {
+            if (-first < RANGE_VERSION || -first > QUEUED_VERSION) {
+                throw new IllegalStateException("Request does not abide by this protocol.");
+            }
+            if (in.remaining() < Integer.BYTES) {
+                in.position(start);
+                return null;
+            }
+            version = -first;
+            filenameSize = in.getInt();
+        }
+        if (filenameSize < 0 || filenameSize > MAX_FILENAME_SIZE) {
+            throw new IllegalStateException("Filename length is invalid.");
+        }
+        int rangeSize = (version == LEGACY_VERSION) ? 0 : 2 * Long.BYTES + (version >= COMPRESSED_VERSION ? 1 : 0);
+        if (in.remaining() < filenameSize + rangeSize) {
+            in.position(start);
+            return null;
+        }
+
+        byte[] stringBytes = new byte[filenameSize];
+        in.get(stringBytes);
+        String filename = new String(stringBytes);
+        if (version == LEGACY_VERSION) return new Request(LEGACY_VERSION, filename, 0, UNTIL_END, CODEC_NONE);
+
+        long offset = in.getLong();
+        long length = in.getLong();
+        byte codecs = (version >= COMPRESSED_VERSION) ? in.get() : CODEC_NONE;
+        if (offset < 0) throw new IllegalStateException("Request offset is negative.");
+
+        return new Request(version, filename, offset, length, codecs);
+    }
+
+    /**
+     * Sends the response header for a request, in the version the request was made.
+     *
+     * @param out      the connection output
+     * @param request  the request being answered
+     * @param fileSize the total file size (or UNAVAILABLE)
+     * @param range    the range that will be sent (ignored if unavailable)
+     * @param codec    the codec the range will be sent with (only sent in COMPRESSED_VERSION responses)
+     * @throws IOException I/O error
+     */
+    public static void writeResponse(DataOutputStream out, Request request, long fileSize, Range range, byte codec)
+            throws IOException {
+
+        ByteBuffer header = encodeResponse(request, fileSize, range, codec);
+        out.write(header.array(), 0, header.limit());
+        out.flush();
+    }
+
+    /**
+     * Sends a queue notice (queued requests only).
+     *
+     * @param out      the connection output
+     * @param position the request's position in the upload queue
+     * @throws IOException I/O error
+     */
+    public static void writeQueued(DataOutputStream out, int position) throws IOException {
+
+        ByteBuffer notice = encodeQueued(position);
+        out.write(notice.array(), 0, notice.limit());
+        out.flush();
+    }
+
+    /**
+     * Encodes a queue notice (queued requests only).
+     *
+     * @param position the request's position in the upload queue
+     * @return the notice (a heap buffer ready to be read)
+     */
+    public static ByteBuffer encodeQueued(int position) {
+
+        ByteBuffer notice = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+        notice.putLong(QUEUED);
+        notice.putInt(position);
+        notice.flip();
+
+        return notice;
+    }
+
+    /**
+     * Encodes the response header for a request, in the version the request was made.
+     *
+     * @param request  the request being answered
+     * @param fileSize the total file size (or UNAVAILABLE)
+     * @param range    the range that will be sent (ignored if unavailable)
+     * @param codec    the codec the range will be sent with (only sent in COMPRESSED_VERSION responses)
+     * @return the header (a heap buffer ready to be read)
+     */
+    public static ByteBuffer encodeResponse(Request request, long fileSize, Range range, byte codec) {
+
+        ByteBuffer header = ByteBuffer.allocate(3 * Long.BYTES + 1);
+        header.putLong(fileSize);
+        if (request.getVersion() >= RANGE_VERSION) {
+            header.putLong(fileSize < 0 ? 0 : range.getOffset());
+            header.putLong(fileSize < 0 ? 0 : range.getLength());
+        }
+        if (request.getVersion() >= COMPRESSED_VERSION) header.put(fileSize < 0 ? CODEC_NONE : codec);
+        header.flip();
+
+        return header;
+    }
+
+    /**
+     * Receives the response header of a version 2 request.
+     *
+     * @param in the connection input
+     * @return the response header
+     * @throws IOException I/O error
+     */
+    public static Response readResponse(DataInputStream in) throws IOException {
+        return readResponse(in, RANGE_VERSION);
+    }
+
+    /**
+     * Receives the response header of a request.
+     *
+     * @param in      the connection input
+     * @param version the request version (RANGE_VERSION or later)
+     * @return the response header
+     * @throws IOException I/O error
+     */
+    public static Response readResponse(DataInputStream in, int version) throws IOException {
+        return readResponse(in, version, null);
+    }
+
+    /**
+     * Receives the response header of a request, and the queue notices before it.
+     *
+     * @param in       the connection input
+     * @param version  the request version (RANGE_VERSION or later)
+     * @param onQueued the action to run with the position of each queue notice (or null)
+     * @return the response header
+     * @throws IOException I/O error
+     */
+    public static Response readResponse(DataInputStream in, int version, IntConsumer onQueued) throws IOException {
+
+        long fileSize = in.readLong();
+        while (fileSize == QUEUED && version >= QUEUED_VERSION) {
+            int position = in.readInt();
+            if (onQueued != null) onQueued.accept(position);
+            fileSize = in.readLong();
+        }
+        long offset = in.readLong();
+        long length = in.readLong();
+        byte codec = (version >= COMPRESSED_VERSION) ? in.readByte() : CODEC_NONE;
+        if (codec != CODEC_NONE && codec != CODEC_DEFLATE) throw new IOException("Unknown codec: " + codec);
+
+        return new Response(fileSize, new Range(offset, length), codec);
+    }
+
+    /**
+     * Resolves the range that can be served for a request on a file of a given size.
+     * An offset beyond the end of the file means the requester holds different content, so it restarts from zero.
+     * Queued requests are served at most Constants.UPLOAD_SLICE_SIZE bytes per response.
+     *
+     * @param request  the request
+     * @param fileSize the file size
+     * @return the range to send
+     */
+    public static Range resolveRange(Request request, long fileSize) {
+
+        long offset = (request.getOffset() > fileSize) ? 0 : request.getOffset();
+        long available = fileSize - offset;
+        long length = (request.getLength() < 0) ? available : Math.min(request.getLength(), available);
+        if (request.isQueued()) length = Math.min(length, Constants.UPLOAD_SLICE_SIZE);
+
+        return new Range(offset, length);
+    }
+
+    /**
+     * Creates the digest used to verify the bytes of a range
+     *
+     * @return a new digest
+     */
+    public static MessageDigest newDigest() {
+
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Digest algorithm not available.", e); // Every JRE provides SHA-256
+        }
+    }
+
+    /**
+     * Reads a filename with a known byte length
+     *
+     * @param in     the connection input
+     * @param length the filename length in bytes
+     * @return the filename
+     * @throws IOException I/O error
+     */
+    private static String readFilename(DataInputStream in, int length) throws IOException {
+
+        if (length < 0) throw new IllegalStateException("Filename length is negative.");
+        byte[] stringBytes = new byte[length];
+        in.readFully(stringBytes, 0, stringBytes.length);
+
+        return new String(stringBytes);
+    }
+
+    /**
+     * Represents a received file request.
+     */
+    public static final class Request {
+
+        private final int version;
+        private final String filename;
+        private final long offset;
+        private final long length;
+        private final byte acceptedCodecs;
+
+        private Request(int version, String filename, long offset, long length, byte acceptedCodecs) {
+            this.version = version;
+            this.filename = filename;
+            this.offset = offset;
+            this.length = length;
+            this.acceptedCodecs = acceptedCodecs;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public boolean isKeepAlive() {
+            return version >= KEEP_ALIVE_VERSION;
+        }
+
+        public boolean isVerified() {
+            return version >= VERIFIED_VERSION;
+        }
+
+        public boolean isQueued() {
+            return version >= QUEUED_VERSION;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public byte getAcceptedCodecs() {
+            return acceptedCodecs;
+        }
+    }
+
+    /**
+     * Represents a file response header.
+     */
+    public static final class Response {
+
+        private final long fileSize;
+        private final Range range;
+        private final byte codec;
+
+        private Response(long fileSize, Range range, byte codec) {
+            this.fileSize = fileSize;
+            this.range = range;
+            this.codec = codec;
+        }
+
+        public boolean isAvailable() {
+            return fileSize >= 0;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public Range getRange() {
+            return range;
+        }
+
+        public byte getCodec() {
+            return codec;
+        }
+    }
+
+    /**
+     * Represents a range of bytes of a file.
+     */
+    public static final class Range {
+
+        private final long offset;
+        private final long length;
+
+        public Range(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
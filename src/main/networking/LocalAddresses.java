@@ -0,0 +1,64 @@
+package networking;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the addresses of the local network interfaces, so checking if a received packet was sent by this host is a
+ * hash lookup instead of listing every interface (a native call chain per interface, slow on hosts with many bridges
+ * and VPN adapters). The addresses are listed again with refresh, periodically (interfaces may come and go).
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public final class LocalAddresses {
+
+    private volatile Set<InetAddress> addresses;
+
+    /**
+     * Creates the set of local addresses (listing them)
+     */
+    public LocalAddresses() {
+
+        addresses = Collections.emptySet();
+        refresh();
+    }
+
+    /**
+     * Checks if an address belongs to a local interface (as of the last refresh)
+     *
+     * @param address the address to check
+     * @return true if it is local, false otherwise
+     */
+    public boolean contains(InetAddress address) {
+        return addresses.contains(address);
+    }
+
+    /**
+     * Lists the addresses of the local interfaces again (keeps the previous ones if listing fails)
+     *
+     * @return true if the addresses changed, false otherwise
+     */
+    public boolean refresh() {
+
+        try {
+            Set<InetAddress> current = new HashSet<>();
+            Enumeration<NetworkInterface> list = NetworkInterface.getNetworkInterfaces();
+            while (list != null && list.hasMoreElements()) {
+                current.addAll(Collections.list(list.nextElement().getInetAddresses()));
+            }
+            if (current.equals(addresses)) return false;
+            addresses = Collections.unmodifiableSet(current);
+            return true;
+        } catch (SocketException e) {
+            Logger.getLogger(LocalAddresses.class.getName()).log(Level.WARNING, "Listing local addresses failed.", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,557 @@
+package networking;
+
+import networking.MembershipMessage.State;
+import networking.MembershipMessage.Type;
+import networking.MembershipMessage.Update;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the set of peers running the app through SWIM-style gossip, so the traffic of each peer stays bounded
+ * whatever the number of peers (instead of every peer announcing itself to every other one).
+ * <p>
+ * Every probe interval (PROBE_INTERVAL, unless started with another one) a peer pings one member (round-robin over a
+ * shuffled list). Without an answer within PING_TIMEOUT_PERCENT of the interval, INDIRECT_PROBES other members are asked to ping it; without an answer by the next probe it becomes
+ * suspect, and dead if it doesn't refute the suspicion (with a higher incarnation) within a time growing with the
+ * logarithm of the number of members. Changes (joins, suspicions, deaths, new catalog versions) are piggybacked on
+ * the probes, each one sent RETRANSMIT_MULTIPLIER * log2(members) times, so they reach every peer in O(log N) rounds.
+ * <p>
+ * A peer that heard nothing for ISOLATION_PROBES intervals is probably the one cut off, so the suspicions and deaths it
+ * raises meanwhile aren't gossiped (as Lifeguard's local health awareness): once back, it's only told to refute.
+ * <p>
+ * A peer only becomes a member once it answers (or sends) a membership message, so peers of older versions keep
+ * being announced to directly. Incarnations start at the current time in seconds, so a restarted peer overrides
+ * what the others remember about it.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public final class Membership {
+
+    private static final long PROBE_INTERVAL = 1000; // milliseconds
+    private static final int PING_TIMEOUT_PERCENT = 30; // of the probe interval
+    private static final int INDIRECT_PROBES = 3;
+    private static final int RETRANSMIT_MULTIPLIER = 3;
+    private static final int SUSPICION_MULTIPLIER = 5;
+    private static final int MAX_PIGGYBACK = 16; // updates per message
+    private static final long JOIN_PROBE_INTERVAL = 60000; // milliseconds between join probes to the same peer
+    private static final long DEAD_RETENTION = 120000; // milliseconds a dead member is remembered
+    private static final int ISOLATION_PROBES = 2; // probe intervals without any message
+
+    /**
+     * Sends the encoded membership messages
+     */
+    public interface Transport {
+
+        /**
+         * Sends a datagram
+         *
+         * @param data the payload
+         * @param host the destination address
+         * @param port the destination UDP port
+         */
+        void send(byte[] data, InetAddress host, int port);
+    }
+
+    /**
+     * Receives the membership changes (outside the membership lock)
+     */
+    public interface Listener {
+
+        /**
+         * A member joined or announced another catalog version
+         *
+         * @param member the member
+         */
+        void onCatalogVersion(Update member);
+
+        /**
+         * A member was declared dead
+         *
+         * @param host the member's address
+         */
+        void onDead(InetAddress host);
+    }
+
+    private final Transport transport;
+    private final Listener listener;
+    private final Predicate<InetAddress> isLocal;
+    private final Random random;
+    private final Map<InetAddress, Member> members;
+    private final List<Gossip> gossip;
+    private final List<Member> probeOrder;
+    private final Map<Integer, Relay> relays;
+    private final Map<InetAddress, Long> joinProbes;
+    private long probeInterval;
+    private int probeIndex;
+    private int incarnation;
+    private int catalogVersion;
+    private int sequence;
+    private long lastReceived;
+    // Current probe
+    private Member probed;
+    private int probeSequence;
+    private boolean acknowledged;
+
+    /**
+     * Creates the membership (it starts probing with start())
+     *
+     * @param transport      the transport of the messages
+     * @param listener       the listener of the membership changes
+     * @param isLocal        checks if an address belongs to this host
+     * @param catalogVersion the own catalog version
+     */
+    public Membership(Transport transport, Listener listener, Predicate<InetAddress> isLocal, int catalogVersion) {
+
+        this.transport = transport;
+        this.listener = listener;
+        this.isLocal = isLocal;
+        this.random = new Random();
+        this.members = new HashMap<>();
+        this.gossip = new ArrayList<>();
+        this.probeOrder = new ArrayList<>();
+        this.relays = new HashMap<>();
+        this.joinProbes = new HashMap<>();
+        this.probeInterval = PROBE_INTERVAL;
+        this.incarnation = (int) (System.currentTimeMillis() / 1000);
+        this.catalogVersion = catalogVersion;
+        this.sequence = random.nextInt();
+        this.lastReceived = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts probing a member every PROBE_INTERVAL
+     *
+     * @param timer the timer to run the probes on
+     */
+    public void start(Timer timer) {
+        start(timer, PROBE_INTERVAL);
+    }
+
+    /**
+     * Starts probing a member every probe interval (the failure detection timeouts scale with it)
+     *
+     * @param timer         the timer to run the probes on
+     * @param probeInterval the probe interval in milliseconds
+     */
+    public void start(Timer timer, long probeInterval) {
+
+        synchronized (this) {
+            this.probeInterval = probeInterval;
+        }
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    probe(timer);
+                } catch (RuntimeException e) {
+                    Logger.getLogger(Membership.class.getName()).log(Level.WARNING, "Membership probe failed.", e);
+                }
+            }
+        }, probeInterval, probeInterval);
+    }
+
+    /**
+     * Announces another own catalog version (spread as a new incarnation)
+     *
+     * @param catalogVersion the catalog version
+     */
+    public synchronized void setCatalogVersion(int catalogVersion) {
+
+        if (catalogVersion == this.catalogVersion) return;
+        this.catalogVersion = catalogVersion;
+        incarnation++;
+    }
+
+    /**
+     * Invites a peer that isn't a member (a known address or a peer heard from) by pinging it, at most once every
+     * JOIN_PROBE_INTERVAL; it joins when it answers
+     *
+     * @param host the peer's address
+     * @param port the peer's UDP port
+     */
+    public synchronized void invite(InetAddress host, int port) {
+
+        Member member = members.get(host);
+        if (member != null && member.state != State.DEAD) return;
+        long now = System.currentTimeMillis();
+        Long last = joinProbes.get(host);
+        if (last != null && now - last < JOIN_PROBE_INTERVAL) return;
+        joinProbes.put(host, now);
+        send(Type.PING, nextSequence(), host, port, null, 0);
+    }
+
+    /**
+     * Checks if a peer is a member (alive or suspect)
+     *
+     * @param host the peer's address
+     * @return true if it's a member, false otherwise
+     */
+    public synchronized boolean isMember(InetAddress host) {
+
+        Member member = members.get(host);
+        return member != null && member.state != State.DEAD;
+    }
+
+    /**
+     * Obtains the members (alive or suspect)
+     *
+     * @return what this peer believes about each member
+     */
+    public synchronized List<Update> getMembers() {
+
+        List<Update> list = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member.state != State.DEAD) list.add(member.toUpdate());
+        }
+        return list;
+    }
+
+    /**
+     * Handles a received membership message
+     *
+     * @param message the message
+     */
+    public void handle(MembershipMessage message) {
+
+        List<Runnable> events = new ArrayList<>();
+        synchronized (this) {
+            lastReceived = System.currentTimeMillis();
+            // A message is proof that its sender is alive (at the incarnation it announces)
+            Member sender = members.get(message.getHost());
+            Update refute = (sender != null && sender.state != State.ALIVE) ? sender.toUpdate() : null;
+            if (refute != null && refute.getIncarnation() == message.getIncarnation()) {
+                change(sender, State.ALIVE, message.getIncarnation(), message.getCatalogVersion(), events);
+            } else {
+                apply(new Update(message.getHost(), message.getPort(), State.ALIVE, message.getIncarnation(),
+                        message.getCatalogVersion()), events);
+            }
+            for (Update update : message.getUpdates()) apply(update, events);
+            // Only the sender is told it was suspected (or dead) so it refutes for the others; gossiping it would
+            // spread a stale belief
+
+            switch (message.getType()) {
+                case PING:
+                    send(Type.ACK, message.getSequence(), message.getHost(), message.getPort(), null, 0, refute);
+                    refute = null;
+                    break;
+                case PING_REQ:
+                    if (message.getTarget() != null) {
+                        int relaySequence = nextSequence();
+                        relays.put(relaySequence, new Relay(message.getHost(), message.getPort(), message.getSequence()));
+                        send(Type.PING, relaySequence, message.getTarget(), message.getTargetPort(), null, 0);
+                    }
+                    break;
+                case ACK:
+                    if (probed != null && message.getSequence() == probeSequence) {
+                        acknowledged = true;
+                    } else {
+                        Relay relay = relays.remove(message.getSequence());
+                        if (relay != null) send(Type.ACK, relay.sequence, relay.host, relay.port, null, 0);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (refute != null) send(Type.PING, nextSequence(), message.getHost(), message.getPort(), null, 0, refute);
+        }
+        for (Runnable event : events) event.run();
+    }
+
+    /**
+     * Ends the current probe (suspecting an unresponsive member), declares the overdue suspects dead and probes the
+     * next member
+     *
+     * @param timer the timer to schedule the indirect probe on
+     */
+    private void probe(Timer timer) {
+
+        List<Runnable> events = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (probed != null && !acknowledged && probed.state == State.ALIVE) {
+                change(probed, State.SUSPECT, probed.incarnation, probed.catalogVersion, events);
+            }
+            long suspicionTimeout = SUSPICION_MULTIPLIER * probeInterval
+                    * Math.max(1, (long) Math.ceil(Math.log10(members.size() + 1)));
+            Iterator<Member> iterator = members.values().iterator();
+            List<Member> overdue = new ArrayList<>();
+            while (iterator.hasNext()) {
+                Member member = iterator.next();
+                if (member.state == State.SUSPECT && now - member.since > suspicionTimeout) overdue.add(member);
+                if (member.state == State.DEAD && now - member.since > DEAD_RETENTION) iterator.remove();
+            }
+            for (Member member : overdue) change(member, State.DEAD, member.incarnation, member.catalogVersion, events);
+            relays.clear(); // Unanswered relays from the previous period
+            joinProbes.values().removeIf(time -> now - time > JOIN_PROBE_INTERVAL);
+
+            probed = nextTarget();
+            acknowledged = false;
+            if (probed != null) {
+                probeSequence = nextSequence();
+                send(Type.PING, probeSequence, probed.host, probed.port, null, 0);
+                int sequence = probeSequence;
+                timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        probeIndirectly(sequence);
+                    }
+                }, probeInterval * PING_TIMEOUT_PERCENT / 100);
+            }
+        }
+        for (Runnable event : events) event.run();
+    }
+
+    /**
+     * Asks other members to ping the probed member if it didn't answer yet
+     *
+     * @param sequence the probe's sequence number
+     */
+    private synchronized void probeIndirectly(int sequence) {
+
+        if (probed == null || acknowledged || sequence != probeSequence) return;
+        List<Member> helpers = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member != probed && member.state == State.ALIVE) helpers.add(member);
+        }
+        Collections.shuffle(helpers, random);
+        for (Member helper : helpers.subList(0, Math.min(INDIRECT_PROBES, helpers.size()))) {
+            send(Type.PING_REQ, sequence, helper.host, helper.port, probed.host, probed.port);
+        }
+    }
+
+    /**
+     * Picks the next member to probe: round-robin over the members, shuffled every round (caller holds the lock)
+     *
+     * @return the member or null if there is none
+     */
+    private Member nextTarget() {
+
+        while (probeIndex < probeOrder.size()) {
+            Member member = probeOrder.get(probeIndex++);
+            if (member.state != State.DEAD && members.get(member.host) == member) return member;
+        }
+        probeOrder.clear();
+        for (Member member : members.values()) {
+            if (member.state != State.DEAD) probeOrder.add(member);
+        }
+        Collections.shuffle(probeOrder, random);
+        probeIndex = 0;
+        return probeOrder.isEmpty() ? null : probeOrder.get(probeIndex++);
+    }
+
+    /**
+     * Applies what a peer believes about a member, keeping the most recent belief: a higher incarnation wins,
+     * suspicion wins over being alive at the same incarnation, death wins over anything (caller holds the lock)
+     *
+     * @param update the belief
+     * @param events the listener calls to make once the lock is released
+     */
+    private void apply(Update update, List<Runnable> events) {
+
+        if (isLocal.test(update.getHost())) {
+            // Refute a suspicion (or death) about this peer with a newer incarnation
+            if (update.getState() != State.ALIVE && update.getIncarnation() >= incarnation) {
+                incarnation = update.getIncarnation() + 1;
+            }
+            return;
+        }
+
+        Member member = members.get(update.getHost());
+        if (member == null) {
+            if (update.getState() == State.DEAD) return;
+            member = new Member(update.getHost(), update.getPort());
+            members.put(member.host, member);
+            change(member, update.getState(), update.getIncarnation(), update.getCatalogVersion(), events);
+            return;
+        }
+
+        boolean newer = update.getIncarnation() > member.incarnation;
+        switch (update.getState()) {
+            case ALIVE:
+                if (newer) {
+                    member.port = update.getPort();
+                    change(member, State.ALIVE, update.getIncarnation(), update.getCatalogVersion(), events);
+                }
+                break;
+            case SUSPECT:
+                if (newer || (member.state == State.ALIVE && update.getIncarnation() == member.incarnation)) {
+                    change(member, State.SUSPECT, update.getIncarnation(), update.getCatalogVersion(), events);
+                }
+                break;
+            case DEAD:
+                if (member.state != State.DEAD && update.getIncarnation() >= member.incarnation) {
+                    change(member, State.DEAD, update.getIncarnation(), member.catalogVersion, events);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Changes what this peer believes about a member and gossips it, unless it's a failure raised while this peer
+     * seems isolated (caller holds the lock)
+     *
+     * @param member         the member
+     * @param state          the new state
+     * @param incarnation    the new incarnation
+     * @param catalogVersion the new catalog version
+     * @param events         the listener calls to make once the lock is released
+     */
+    private void change(Member member, State state, int incarnation, int catalogVersion, List<Runnable> events) {
+
+        State previous = member.state;
+        boolean versionChanged = previous == null || previous == State.DEAD || member.catalogVersion != catalogVersion;
+        member.state = state;
+        member.incarnation = incarnation;
+        member.catalogVersion = catalogVersion;
+        member.since = System.currentTimeMillis();
+        if ((previous == null || previous == State.DEAD) && state != State.DEAD) {
+            probeOrder.add(probeIndex + random.nextInt(probeOrder.size() - probeIndex + 1), member); // Probed this round
+        }
+
+        boolean isolated = member.since - lastReceived > ISOLATION_PROBES * probeInterval;
+        Update update = (state != State.ALIVE && isolated) ? member.toUpdate() : gossip(member);
+
+        if (state != previous) {
+            Logger.getLogger(Membership.class.getName()).log(Level.FINE, "Member " + member.host.getHostAddress()
+                    + " is " + state + " (" + members.size() + " known).");
+        }
+        if (state == State.DEAD) {
+            events.add(() -> listener.onDead(update.getHost()));
+        } else if (versionChanged) {
+            events.add(() -> listener.onCatalogVersion(update));
+        }
+    }
+
+    /**
+     * Gossips what this peer believes about a member, replacing an older update about it (caller holds the lock)
+     *
+     * @param member the member
+     * @return the gossiped update
+     */
+    private Update gossip(Member member) {
+
+        Update update = member.toUpdate();
+        gossip.removeIf(item -> item.update.getHost().equals(member.host));
+        gossip.add(new Gossip(update));
+        return update;
+    }
+
+    /**
+     * Sends a membership message with the least gossiped updates piggybacked (caller holds the lock)
+     *
+     * @param type       the message type
+     * @param sequence   the sequence number
+     * @param host       the destination address
+     * @param port       the destination UDP port
+     * @param target     the peer to probe (PING_REQ) or null
+     * @param targetPort the UDP port of the peer to probe
+     */
+    private void send(Type type, int sequence, InetAddress host, int port, InetAddress target, int targetPort) {
+        send(type, sequence, host, port, target, targetPort, null);
+    }
+
+    /**
+     * Sends a membership message with the least gossiped updates piggybacked, and an update meant for its destination
+     * only (caller holds the lock)
+     *
+     * @param type       the message type
+     * @param sequence   the sequence number
+     * @param host       the destination address
+     * @param port       the destination UDP port
+     * @param target     the peer to probe (PING_REQ) or null
+     * @param targetPort the UDP port of the peer to probe
+     * @param direct     the update for the destination or null
+     */
+    private void send(Type type, int sequence, InetAddress host, int port, InetAddress target, int targetPort,
+                      Update direct) {
+
+        List<Update> updates = piggyback();
+        if (direct != null) {
+            updates = new ArrayList<>(updates);
+            updates.add(0, direct);
+        }
+        MembershipMessage message = new MembershipMessage(type, sequence, null, 0, incarnation, catalogVersion,
+                target, targetPort, updates);
+        transport.send(MembershipProtocol.encode(message), host, port);
+    }
+
+    /**
+     * Picks the updates to piggyback: the least sent ones, dropping those sent enough times (caller holds the lock)
+     *
+     * @return the updates
+     */
+    private List<Update> piggyback() {
+
+        if (gossip.isEmpty()) return Collections.emptyList();
+        int limit = RETRANSMIT_MULTIPLIER * (32 - Integer.numberOfLeadingZeros(members.size() + 1));
+        gossip.sort(Comparator.comparingInt(item -> item.transmissions));
+        List<Update> updates = new ArrayList<>();
+        for (Gossip item : gossip.subList(0, Math.min(MAX_PIGGYBACK, gossip.size()))) {
+            updates.add(item.update);
+            item.transmissions++;
+        }
+        gossip.removeIf(item -> item.transmissions >= limit);
+        return updates;
+    }
+
+    private int nextSequence() {
+        return ++sequence;
+    }
+
+    /**
+     * A member and what this peer believes about it (guarded by the membership lock)
+     */
+    private static final class Member {
+
+        private final InetAddress host;
+        private int port;
+        private State state;
+        private int incarnation;
+        private int catalogVersion;
+        private long since;
+
+        private Member(InetAddress host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        private Update toUpdate() {
+            return new Update(host, port, state, incarnation, catalogVersion);
+        }
+    }
+
+    /**
+     * An update being gossiped and the number of times it was sent
+     */
+    private static final class Gossip {
+
+        private final Update update;
+        private int transmissions;
+
+        private Gossip(Update update) {
+            this.update = update;
+        }
+    }
+
+    /**
+     * A ping sent for another member (PING_REQ), to relay its acknowledgement
+     */
+    private static final class Relay {
+
+        private final InetAddress host;
+        private final int port;
+        private final int sequence;
+
+        private Relay(InetAddress host, int port, int sequence) {
+            this.host = host;
+            this.port = port;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package networking;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Represents a gossip membership message (version 3 of the UDP protocol): a probe, its acknowledgement or a request
+ * to probe another peer, always carrying the sender's own incarnation and catalog version and a few piggybacked
+ * membership updates about other peers.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public final class MembershipMessage {
+
+    /**
+     * The message types
+     */
+    public enum Type {
+        /**
+         * "Are you alive?" (answered with an ACK of the same sequence number)
+         */
+        PING,
+        /**
+         * The answer to a PING (sent to the requester of a PING_REQ when relayed)
+         */
+        ACK,
+        /**
+         * A request to PING the target for the sender, which didn't get an answer itself
+         */
+        PING_REQ
+    }
+
+    /**
+     * The states of a member
+     */
+    public enum State {
+        ALIVE, SUSPECT, DEAD
+    }
+
+    private final Type type;
+    private final int sequence;
+    private final InetAddress host;
+    private final int port;
+    private final int incarnation;
+    private final int catalogVersion;
+    private final InetAddress target;
+    private final int targetPort;
+    private final List<Update> updates;
+
+    /**
+     * Creates a membership message.
+     *
+     * @param type           the message type
+     * @param sequence       the probe sequence number
+     * @param host           the sender's address (null when sending)
+     * @param port           the sender's UDP port (0 when sending)
+     * @param incarnation    the sender's incarnation
+     * @param catalogVersion the sender's catalog version
+     * @param target         the peer to probe (PING_REQ) or null
+     * @param targetPort     the UDP port of the peer to probe (PING_REQ) or 0
+     * @param updates        the piggybacked membership updates
+     */
+    public MembershipMessage(Type type, int sequence, InetAddress host, int port, int incarnation, int catalogVersion,
+                             InetAddress target, int targetPort, List<Update> updates) {
+        this.type = type;
+        this.sequence = sequence;
+        this.host = host;
+        this.port = port;
+        this.incarnation = incarnation;
+        this.catalogVersion = catalogVersion;
+        this.target = target;
+        this.targetPort = targetPort;
+        this.updates = updates;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public InetAddress getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getIncarnation() {
+        return incarnation;
+    }
+
+    public int getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    public InetAddress getTarget() {
+        return target;
+    }
+
+    public int getTargetPort() {
+        return targetPort;
+    }
+
+    public List<Update> getUpdates() {
+        return updates;
+    }
+
+    /**
+     * What a peer believes about a member: its state at an incarnation, and the catalog version it announced
+     */
+    public static final class Update {
+
+        private final InetAddress host;
+        private final int port;
+        private final State state;
+        private final int incarnation;
+        private final int catalogVersion;
+
+        /**
+         * Creates a membership update.
+         *
+         * @param host           the member's address
+         * @param port           the member's UDP port
+         * @param state          the member's state
+         * @param incarnation    the member's incarnation
+         * @param catalogVersion the member's catalog version
+         */
+        public Update(InetAddress host, int port, State state, int incarnation, int catalogVersion) {
+            this.host = host;
+            this.port = port;
+            this.state = state;
+            this.incarnation = incarnation;
+            this.catalogVersion = catalogVersion;
+        }
+
+        public InetAddress getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getIncarnation() {
+            return incarnation;
+        }
+
+        public int getCatalogVersion() {
+            return catalogVersion;
+        }
+    }
+}
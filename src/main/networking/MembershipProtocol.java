@@ -0,0 +1,164 @@
+package networking;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Represents the gossip membership protocol (version 3 of the UDP protocol), to parse a datagram packet into a
+ * MembershipMessage, and vice-versa.
+ * <p>
+ * Layout: id, version, type, sequence number (4 bytes), sender incarnation (4 bytes), sender catalog version
+ * (4 bytes), target IPv4 address (4 bytes, zero if none), target port (2 bytes), update count and the updates
+ * (IPv4 address, port (2 bytes), state, incarnation (4 bytes), catalog version (4 bytes)). Only IPv4 members are
+ * gossiped, as the rest of the UDP protocol.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public final class MembershipProtocol {
+
+    static final int PROTOCOL_ID = 1;
+    static final int PROTOCOL_VERSION = 3;
+
+    private static final int ADDRESS_SIZE = 4;
+    private static final int HEADER_SIZE = 3 + 4 + 4 + 4 + ADDRESS_SIZE + 2 + 1;
+    private static final int UPDATE_SIZE = ADDRESS_SIZE + 2 + 1 + 4 + 4;
+    private static final int MAX_UPDATES = 255;
+
+    /**
+     * The caller references the static methods using <tt>MembershipProtocol.encode</tt>,
+     * and so on. Thus, the caller should be prevented from constructing objects of
+     * this class, by declaring this private constructor.
+     */
+    private MembershipProtocol() {
+        //this prevents even the native class from
+        //calling this constructor as well :
+        throw new AssertionError();
+    }
+
+    /**
+     * Checks if a packet is a membership message
+     *
+     * @param bytes  the packet data
+     * @param length the packet length
+     * @return true if it is a membership message, false otherwise
+     */
+    public static boolean isMessage(byte[] bytes, int length) {
+        return length > 1 && bytes[0] == PROTOCOL_ID && bytes[1] == PROTOCOL_VERSION;
+    }
+
+    /**
+     * Encodes a membership message (the sender's address and port are the packet's source)
+     *
+     * @param message the message
+     * @return the datagram packet's data
+     */
+    public static byte[] encode(MembershipMessage message) {
+
+        List<MembershipMessage.Update> updates = new ArrayList<>();
+        for (MembershipMessage.Update update : message.getUpdates()) {
+            if (update.getHost() instanceof Inet4Address && updates.size() < MAX_UPDATES) updates.add(update);
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + updates.size() * UPDATE_SIZE);
+        data.put((byte) PROTOCOL_ID);
+        data.put((byte) PROTOCOL_VERSION);
+        data.put((byte) message.getType().ordinal());
+        data.putInt(message.getSequence());
+        data.putInt(message.getIncarnation());
+        data.putInt(message.getCatalogVersion());
+        boolean target = message.getTarget() instanceof Inet4Address;
+        data.put(target ? message.getTarget().getAddress() : new byte[ADDRESS_SIZE]);
+        data.putShort((short) (target ? message.getTargetPort() : 0));
+        data.put((byte) updates.size());
+        for (MembershipMessage.Update update : updates) {
+            data.put(update.getHost().getAddress());
+            data.putShort((short) update.getPort());
+            data.put((byte) update.getState().ordinal());
+            data.putInt(update.getIncarnation());
+            data.putInt(update.getCatalogVersion());
+        }
+        return data.array();
+    }
+
+    /**
+     * Parses a membership message
+     *
+     * @param bytes  the packet data
+     * @param length the packet length
+     * @param host   the sender's address
+     * @param port   the sender's UDP port
+     * @return the message
+     * @throws IllegalStateException packet does not abide by this protocol
+     */
+    public static MembershipMessage parse(byte[] bytes, int length, InetAddress host, int port)
+            throws IllegalStateException {
+
+        if (!isMessage(bytes, length)) {
+            throw new IllegalStateException("Packet does not abide by this protocol.");
+        }
+        try {
+            ByteBuffer data = ByteBuffer.wrap(bytes, 0, length);
+            data.position(2);
+            MembershipMessage.Type type = valueOf(MembershipMessage.Type.values(), data.get());
+            int sequence = data.getInt();
+            int incarnation = data.getInt();
+            int catalogVersion = data.getInt();
+            InetAddress target = readAddress(data);
+            int targetPort = Short.toUnsignedInt(data.getShort());
+            if (target.isAnyLocalAddress()) target = null;
+
+            int count = Byte.toUnsignedInt(data.get());
+            List<MembershipMessage.Update> updates = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                InetAddress member = readAddress(data);
+                int memberPort = Short.toUnsignedInt(data.getShort());
+                MembershipMessage.State state = valueOf(MembershipMessage.State.values(), data.get());
+                updates.add(new MembershipMessage.Update(member, memberPort, state, data.getInt(), data.getInt()));
+            }
+            return new MembershipMessage(type, sequence, host, port, incarnation, catalogVersion,
+                    target, targetPort, updates);
+
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalStateException("Packet is truncated.", e);
+        }
+    }
+
+    /**
+     * Reads an IPv4 address
+     *
+     * @param data the packet data
+     * @return the address
+     */
+    private static InetAddress readAddress(ByteBuffer data) {
+
+        byte[] address = new byte[ADDRESS_SIZE];
+        data.get(address);
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Invalid address: " + Arrays.toString(address), e);
+        }
+    }
+
+    /**
+     * Obtains an enum constant by its encoded ordinal
+     *
+     * @param values  the enum constants
+     * @param ordinal the encoded ordinal
+     * @param <E>     the enum type
+     * @return the enum constant
+     * @throws IllegalStateException unknown ordinal
+     */
+    private static <E extends Enum<E>> E valueOf(E[] values, byte ordinal) {
+
+        int index = Byte.toUnsignedInt(ordinal);
+        if (index >= values.length) throw new IllegalStateException("Unknown value: " + index);
+        return values[index];
+    }
+}
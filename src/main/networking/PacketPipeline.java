@@ -0,0 +1,223 @@
+package networking;
+
+import util.Constants;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands the received datagrams from the receiver thread to a pool of workers that parse and apply them, so a burst of
+ * announcements is drained from the socket as fast as it arrives instead of overflowing its receive buffer.
+ * <p>
+ * Each worker owns a bounded single producer/single consumer ring of preallocated packet slots (lock-free: the
+ * receiver only moves the tail, the worker only moves the head). Packets are assigned to a worker by sender address,
+ * so the packets of a peer are applied in the order they arrived. A packet that finds its ring full is dropped and
+ * counted, as the socket would have dropped it anyway.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+final class PacketPipeline {
+
+    /**
+     * Applies a received packet (on a worker thread)
+     */
+    interface Handler {
+
+        /**
+         * Handles a packet; the view is only valid until this method returns
+         *
+         * @param packet the packet view
+         * @param host   the sender's address
+         * @param port   the sender's UDP port
+         */
+        void handle(RemoteFilenameListProtocol.PacketView packet, InetAddress host, int port);
+    }
+
+    private final Worker[] workers;
+    private final Handler handler;
+    private final AtomicLong dropped;
+    private final AtomicLong peakQueued;
+
+    /**
+     * Creates a packet pipeline (the workers start with start())
+     *
+     * @param workerCount the number of workers
+     * @param capacity    the number of packets each worker can hold waiting (rounded up to a power of two)
+     * @param handler     the packet handler
+     */
+    PacketPipeline(int workerCount, int capacity, Handler handler) {
+
+        this.handler = handler;
+        this.dropped = new AtomicLong();
+        this.peakQueued = new AtomicLong();
+        int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.workers = new Worker[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) workers[i] = new Worker(slots);
+    }
+
+    /**
+     * Starts the workers
+     */
+    void start() {
+
+        for (int i = 0; i < workers.length; i++) {
+            Thread thread = new Thread(workers[i], "udp-worker-" + i);
+            thread.setDaemon(true);
+            workers[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues a received packet to the worker of its sender (called by the receiver thread only)
+     *
+     * @param packet the packet data (from its position to its limit, copied)
+     * @param host   the sender's address
+     * @param port   the sender's UDP port
+     * @return true if queued, false if dropped (the worker's ring is full)
+     */
+    boolean offer(ByteBuffer packet, InetAddress host, int port) {
+
+        Worker worker = workers[Math.floorMod(host.hashCode(), workers.length)];
+        int queued = worker.offer(packet, host, port);
+        if (queued < 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (queued > peakQueued.get()) peakQueued.set(queued); // Only the receiver thread writes it
+        return true;
+    }
+
+    /**
+     * Obtains the number of packets dropped because a ring was full
+     *
+     * @return the number of dropped packets
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Obtains the number of packets waiting for a worker
+     *
+     * @return the number of queued packets
+     */
+    int getQueued() {
+
+        int queued = 0;
+        for (Worker worker : workers) queued += worker.size();
+        return queued;
+    }
+
+    /**
+     * Obtains the most packets a ring held at once (to size the rings)
+     *
+     * @return the peak number of packets queued to a worker
+     */
+    long getPeakQueued() {
+        return peakQueued.get();
+    }
+
+    /**
+     * Obtains the number of packets each worker can hold waiting
+     *
+     * @return the ring capacity
+     */
+    int getCapacity() {
+        return workers[0].slots.length;
+    }
+
+    /**
+     * A worker and its ring of packets
+     */
+    private final class Worker implements Runnable {
+
+        private final ByteBuffer[] slots;
+        private final InetAddress[] hosts;
+        private final int[] ports;
+        private final int mask;
+        private final AtomicLong head; // next packet to handle (written by the worker)
+        private final AtomicLong tail; // next free slot (written by the receiver)
+        private final RemoteFilenameListProtocol.PacketView view;
+        private volatile boolean idle;
+        private Thread thread;
+
+        private Worker(int capacity) {
+
+            this.slots = new ByteBuffer[capacity];
+            this.hosts = new InetAddress[capacity];
+            this.ports = new int[capacity];
+            this.mask = capacity - 1;
+            this.head = new AtomicLong();
+            this.tail = new AtomicLong();
+            this.view = new RemoteFilenameListProtocol.PacketView();
+
+            ByteBuffer memory = ByteBuffer.allocateDirect(capacity * Constants.PAYLOAD_SIZE);
+            for (int i = 0; i < capacity; i++) {
+                memory.limit((i + 1) * Constants.PAYLOAD_SIZE).position(i * Constants.PAYLOAD_SIZE);
+                slots[i] = memory.slice();
+            }
+        }
+
+        /**
+         * Copies a packet into the next free slot and wakes the worker if it's idle
+         *
+         * @param packet the packet data
+         * @param host   the sender's address
+         * @param port   the sender's UDP port
+         * @return the number of queued packets (including this one) or -1 if the ring is full
+         */
+        private int offer(ByteBuffer packet, InetAddress host, int port) {
+
+            long next = tail.get();
+            int queued = (int) (next - head.get());
+            if (queued == slots.length) return -1;
+
+            int index = (int) (next & mask);
+            ByteBuffer slot = slots[index];
+            slot.clear();
+            slot.put(packet).flip();
+            hosts[index] = host;
+            ports[index] = port;
+            tail.set(next + 1); // Publishes the slot
+            if (idle) LockSupport.unpark(thread);
+            return queued + 1;
+        }
+
+        private int size() {
+            return (int) (tail.get() - head.get());
+        }
+
+        @Override
+        public void run() {
+
+            //noinspection InfiniteLoopStatement
+            while (true) {
+
+                long next = head.get();
+                if (next == tail.get()) {
+                    // Park until the receiver publishes a packet (it checks idle after moving the tail)
+                    idle = true;
+                    if (next == tail.get()) LockSupport.park(this);
+                    idle = false;
+                    continue;
+                }
+
+                int index = (int) (next & mask);
+                view.wrap(slots[index]);
+                InetAddress host = hosts[index];
+                hosts[index] = null;
+                try {
+                    handler.handle(view, host, ports[index]);
+                } catch (RuntimeException e) {
+                    Logger.getLogger(PacketPipeline.class.getName()).log(Level.WARNING, "Handling a packet failed.", e);
+                }
+                head.lazySet(next + 1); // Frees the slot
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package networking;
+
+import domain.ContentId;
+import domain.RemoteFilename;
+import domain.RemoteFilenameList;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the catalog version and filenames announced by each peer and applies catalog announcements
+ * (full catalogs, deltas and heartbeats) and version 1 file lists to the remote filename list.
+ * <p>
+ * Heartbeats and file lists are applied straight from the received packet: a known peer's identity is compared
+ * byte by byte and file list names are looked up by their encoded bytes, so only new files allocate anything.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+class PeerCatalogs {
+
+    private static final long RESYNC_MIN_INTERVAL = 5000; // milliseconds
+
+    private final RemoteFilenameList filenames;
+    private final Map<InetAddress, PeerCatalog> catalogs;
+
+    /**
+     * Creates the peer catalogs
+     *
+     * @param filenames the remote filename list to update
+     */
+    PeerCatalogs(RemoteFilenameList filenames) {
+
+        this.filenames = filenames;
+        this.catalogs = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Applies an announcement received from a peer.
+     *
+     * @param announcement the announcement
+     * @return true if the peer's whole catalog should be requested (unknown version or a gap was detected)
+     */
+    boolean apply(Announcement announcement) {
+
+        PeerCatalog catalog = catalog(announcement.getHost());
+        synchronized (catalog) {
+            catalog.identify(announcement.getUsername(), announcement.getTcpPort());
+
+            switch (announcement.getType()) {
+                case HEARTBEAT:
+                    if (catalog.isAt(announcement.getCatalogVersion())) {
+                        catalog.refreshAll();
+                        return false;
+                    }
+                    return catalog.shouldResync();
+                case DELTA:
+                    if (!catalog.isAt(announcement.getCatalogVersion() - 1) && !catalog.isAssembling(announcement)) {
+                        return catalog.shouldResync();
+                    }
+                    catalog.assemble(announcement);
+                    return false;
+                case FULL:
+                    catalog.assemble(announcement);
+                    return false;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Applies a heartbeat received from a peer, read in place.
+     *
+     * @param host   the peer's address
+     * @param packet the heartbeat packet
+     * @return true if the peer's whole catalog should be requested (unknown version or a gap was detected)
+     */
+    boolean applyHeartbeat(InetAddress host, RemoteFilenameListProtocol.PacketView packet) {
+
+        PeerCatalog catalog = catalog(host);
+        synchronized (catalog) {
+            catalog.identify(packet);
+            if (catalog.isAt(packet.getCatalogVersion())) {
+                catalog.refreshAll();
+                return false;
+            }
+            return catalog.shouldResync();
+        }
+    }
+
+    /**
+     * Applies a version 1 file list received from a peer, read in place: the files already known are refreshed and
+     * only the new ones are decoded and added.
+     *
+     * @param host   the peer's address
+     * @param packet the file list packet
+     * @return the number of new files
+     */
+    int applyList(InetAddress host, RemoteFilenameListProtocol.PacketView packet) {
+
+        PeerCatalog catalog = catalog(host);
+        synchronized (catalog) {
+            catalog.identify(packet);
+            int added = 0;
+            while (packet.nextRecord()) {
+                if (catalog.refreshListed(packet)) added++;
+            }
+            return added;
+        }
+    }
+
+    /**
+     * Obtains the catalog of a peer, creating it on its first announcement
+     *
+     * @param host the peer's address
+     * @return the catalog
+     */
+    private PeerCatalog catalog(InetAddress host) {
+
+        PeerCatalog catalog = catalogs.get(host); // No lambda on the path of every packet
+        return (catalog != null) ? catalog : catalogs.computeIfAbsent(host, PeerCatalog::new);
+    }
+
+    /**
+     * Refreshes the files of a peer known (through gossip) to be alive at a catalog version.
+     *
+     * @param host           the peer's address
+     * @param catalogVersion the peer's catalog version
+     * @return true if the peer's whole catalog should be requested (unknown or another version)
+     */
+    boolean refresh(InetAddress host, int catalogVersion) {
+
+        PeerCatalog catalog = catalog(host);
+        synchronized (catalog) {
+            if (catalog.isAt(catalogVersion)) {
+                catalog.refreshAll();
+                return false;
+            }
+            return catalog.shouldResync();
+        }
+    }
+
+    /**
+     * Obtains the catalog version known of a peer
+     *
+     * @param host the peer's address
+     * @return the catalog version or 0 if its catalog isn't known
+     */
+    int getVersion(InetAddress host) {
+
+        PeerCatalog catalog = catalogs.get(host);
+        if (catalog == null) return 0;
+        synchronized (catalog) {
+            return catalog.known ? catalog.version : 0;
+        }
+    }
+
+    /**
+     * Forgets a peer and removes every file it announced.
+     *
+     * @param host the peer's address
+     */
+    void forget(InetAddress host) {
+
+        PeerCatalog catalog = catalogs.remove(host);
+        if (catalog != null) {
+            synchronized (catalog) {
+                catalog.clear();
+            }
+        }
+    }
+
+    /**
+     * Represents the known catalog of a peer
+     */
+    private class PeerCatalog {
+
+        private final InetAddress host;
+        private final Map<String, RemoteFilename> entries;
+        private final RawFilenameIndex listed; // Files of version 1 file lists
+        private String username;
+        private byte[] usernameBytes;
+        private int tcpPort;
+        private boolean known;
+        private int version;
+        private long lastResyncRequest;
+        // Announcement being assembled
+        private Announcement.Type pendingType;
+        private int pendingVersion;
+        private Announcement[] parts;
+        private int receivedParts;
+
+        private PeerCatalog(InetAddress host) {
+            this.host = host;
+            this.entries = new HashMap<>();
+            this.listed = new RawFilenameIndex();
+            this.known = false;
+            this.lastResyncRequest = 0;
+        }
+
+        /**
+         * Updates the peer's identity; a new username or tcp port invalidates the known catalog
+         *
+         * @param username the announced username
+         * @param tcpPort  the announced tcp port
+         */
+        private void identify(String username, int tcpPort) {
+
+            if (!username.equals(this.username) || tcpPort != this.tcpPort) {
+                clear();
+                this.username = username;
+                this.usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+                this.tcpPort = tcpPort;
+            }
+        }
+
+        /**
+         * Updates the peer's identity from a received packet, only decoding the username if it changed
+         *
+         * @param packet the received packet
+         */
+        private void identify(RemoteFilenameListProtocol.PacketView packet) {
+
+            if (!packet.usernameEquals(usernameBytes) || packet.getTcpPort() != tcpPort) {
+                clear();
+                this.usernameBytes = packet.getUsernameBytes();
+                this.username = new String(usernameBytes, StandardCharsets.UTF_8);
+                this.tcpPort = packet.getTcpPort();
+            }
+        }
+
+        /**
+         * Refreshes the file named by the current record of a file list, adding it if it's new (or timed out)
+         *
+         * @param packet the file list packet (positioned at a record)
+         * @return true if the file was added, false if refreshed
+         */
+        private boolean refreshListed(RemoteFilenameListProtocol.PacketView packet) {
+
+            int hash = packet.nameHash();
+            RemoteFilename entry = listed.get(packet, hash);
+            if (entry != null && filenames.refresh(entry)) return false;
+
+            byte[] name = packet.getNameBytes();
+            entry = new RemoteFilename(new String(name, StandardCharsets.UTF_8), username, host, tcpPort);
+            listed.put(name, hash, entry, filenames);
+            return filenames.add(entry);
+        }
+
+        private boolean isAt(int catalogVersion) {
+            return known && version == catalogVersion;
+        }
+
+        private boolean isAssembling(Announcement announcement) {
+            return parts != null && pendingType == announcement.getType() && pendingVersion == announcement.getCatalogVersion();
+        }
+
+        /**
+         * Checks (and records) if a resync request can be sent now
+         *
+         * @return true if a resync should be requested
+         */
+        private boolean shouldResync() {
+
+            long now = System.currentTimeMillis();
+            if (now - lastResyncRequest < RESYNC_MIN_INTERVAL) return false;
+            lastResyncRequest = now;
+            return true;
+        }
+
+        /**
+         * Collects a part of a full/delta announcement and applies it once every part arrived
+         *
+         * @param announcement the announcement part
+         */
+        private void assemble(Announcement announcement) {
+
+            int partCount = Math.max(1, announcement.getPartCount());
+            if (!isAssembling(announcement) || parts.length != partCount) {
+                pendingType = announcement.getType();
+                pendingVersion = announcement.getCatalogVersion();
+                parts = new Announcement[partCount];
+                receivedParts = 0;
+            }
+            int index = announcement.getPartIndex();
+            if (index >= parts.length || parts[index] != null) return;
+            parts[index] = announcement;
+            receivedParts++;
+
+            if (receivedParts == parts.length) {
+                if (pendingType == Announcement.Type.FULL) replaceAll();
+                else applyDelta();
+                known = true;
+                version = pendingVersion;
+                parts = null;
+            }
+        }
+
+        /**
+         * Replaces the catalog by the assembled full announcement
+         */
+        private void replaceAll() {
+
+            Map<String, ContentId> names = new HashMap<>();
+            for (Announcement part : parts) {
+                for (String name : part.getAdded()) names.put(name, part.getContent(name));
+            }
+
+            Iterator<Map.Entry<String, RemoteFilename>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, RemoteFilename> entry = iterator.next();
+                if (!names.containsKey(entry.getKey())) {
+                    filenames.remove(entry.getValue());
+                    iterator.remove();
+                }
+            }
+            for (Map.Entry<String, ContentId> name : names.entrySet()) put(name.getKey(), name.getValue());
+            System.out.println("[Catalog] " + host.getHostAddress() + " v" + pendingVersion + " (" + names.size() + " files)");
+        }
+
+        /**
+         * Applies the assembled delta announcement
+         */
+        private void applyDelta() {
+
+            int added = 0;
+            int removed = 0;
+            for (Announcement part : parts) {
+                for (String name : part.getRemoved()) {
+                    RemoteFilename entry = entries.remove(name);
+                    if (entry != null) filenames.remove(entry);
+                    removed++;
+                }
+                for (String name : part.getAdded()) {
+                    put(name, part.getContent(name));
+                    added++;
+                }
+            }
+            refreshAll();
+            System.out.println("[Catalog] " + host.getHostAddress() + " v" + pendingVersion + " (+" + added + " -" + removed + ")");
+        }
+
+        /**
+         * Adds (or refreshes) a filename of the catalog to the remote filename list; a filename whose announced
+         * content changed is replaced
+         *
+         * @param name    the filename
+         * @param content the announced content (null if unknown)
+         */
+        private void put(String name, ContentId content) {
+
+            RemoteFilename entry = entries.get(name);
+            if (entry != null && !Objects.equals(entry.getContent(), content)) {
+                filenames.remove(entry);
+                entry = null;
+            }
+            if (entry == null || !filenames.refresh(entry)) {
+                entry = new RemoteFilename(name, username, host, tcpPort, content);
+                entries.put(name, entry);
+                filenames.add(entry);
+            }
+        }
+
+        /**
+         * Refreshes every filename of the catalog (re-adding the ones that timed out)
+         */
+        private void refreshAll() {
+
+            for (Map.Entry<String, RemoteFilename> entry : entries.entrySet()) {
+                RemoteFilename item = entry.getValue();
+                if (!filenames.refresh(item)) {
+                    item = new RemoteFilename(item.getFilename(), username, host, tcpPort, item.getContent());
+                    entry.setValue(item); // Not a structural change
+                    filenames.add(item);
+                }
+            }
+        }
+
+        /**
+         * Removes every filename of the catalog from the list and forgets the catalog version
+         */
+        private void clear() {
+
+            for (RemoteFilename entry : entries.values()) filenames.remove(entry);
+            entries.clear();
+            listed.clear(); // File list entries just time out, as they always did
+            known = false;
+            parts = null;
+        }
+    }
+}
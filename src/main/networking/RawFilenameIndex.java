@@ -0,0 +1,122 @@
+package networking;
+
+import domain.RemoteFilename;
+import domain.RemoteFilenameList;
+
+import java.util.Arrays;
+
+/**
+ * Finds the remote files of a peer by the encoded bytes of their names, straight from a received packet, so a
+ * refreshed file is found without decoding its name (open addressing over parallel arrays: no boxing, no entries).
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+final class RawFilenameIndex {
+
+    private static final int INITIAL_CAPACITY = 64; // a power of two
+
+    private int[] hashes;
+    private byte[][] names;
+    private RemoteFilename[] items;
+    private int size;
+
+    /**
+     * Creates an empty index
+     */
+    RawFilenameIndex() {
+        clear();
+    }
+
+    /**
+     * Looks up the remote file named as the current record of a packet
+     *
+     * @param packet the packet view (positioned at a record)
+     * @param hash   the record's name hash (PacketView.nameHash)
+     * @return the remote file or null if the name isn't indexed
+     */
+    RemoteFilename get(RemoteFilenameListProtocol.PacketView packet, int hash) {
+
+        int mask = names.length - 1;
+        for (int slot = hash & mask; names[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && packet.nameEquals(names[slot])) return items[slot];
+        }
+        return null;
+    }
+
+    /**
+     * Indexes (or replaces) a remote file by its encoded name
+     *
+     * @param name      the encoded name
+     * @param hash      the name hash (PacketView.nameHash)
+     * @param item      the remote file
+     * @param filenames the remote filename list (entries no longer in it are dropped when the index grows)
+     */
+    void put(byte[] name, int hash, RemoteFilename item, RemoteFilenameList filenames) {
+
+        int mask = names.length - 1;
+        int slot = hash & mask;
+        while (names[slot] != null) {
+            if (hashes[slot] == hash && Arrays.equals(names[slot], name)) {
+                items[slot] = item;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if ((size + 1) * 4 > names.length * 3) {
+            rehash(filenames);
+            put(name, hash, item, filenames);
+            return;
+        }
+        hashes[slot] = hash;
+        names[slot] = name;
+        items[slot] = item;
+        size++;
+    }
+
+    /**
+     * Obtains the number of indexed files
+     *
+     * @return the number of files
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes every file from the index
+     */
+    void clear() {
+
+        hashes = new int[INITIAL_CAPACITY];
+        names = new byte[INITIAL_CAPACITY][];
+        items = new RemoteFilename[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * Rebuilds the index without the files that left the list (timed out and never announced again), doubling its
+     * capacity if it's still crowded
+     *
+     * @param filenames the remote filename list
+     */
+    private void rehash(RemoteFilenameList filenames) {
+
+        int[] oldHashes = hashes;
+        byte[][] oldNames = names;
+        RemoteFilename[] oldItems = items;
+        int live = 0;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null && filenames.get(oldItems[i]) != null) live++;
+        }
+        int capacity = oldNames.length;
+        while ((live + 1) * 2 > capacity) capacity *= 2;
+
+        hashes = new int[capacity];
+        names = new byte[capacity][];
+        items = new RemoteFilename[capacity];
+        size = 0;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null && filenames.get(oldItems[i]) != null) put(oldNames[i], oldHashes[i], oldItems[i], filenames);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package networking;
 
+import domain.ContentId;
 import domain.RemoteFilename;
 import settings.Application;
 import util.ByteUtil;
@@ -7,20 +8,34 @@ import util.Constants;
 
 import java.io.File;
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 /**
  * Represents a application protocol to parse a datagram packet into a RemoteFilenameList, and vice-versa.
  * <p>
+ * Version 1 packets carry the whole list of shared filenames. Version 2 packets are catalog announcements:
+ * each peer numbers its catalog and sends either the whole catalog (FULL), the changes from the previous
+ * catalog version (DELTA), a compact "still alive at version N" (HEARTBEAT) or asks for a peer's whole
+ * catalog (RESYNC). Version 2 layout: id, version, type, tcp port (4 bytes), catalog version (4 bytes),
+ * part index (2 bytes), part count (2 bytes), username length, username, record count (2 bytes) and the
+ * records (operation, filename length, filename). Added files may be announced with their content: such records
+ * (operation 3) are followed by the file size (8 bytes) and its SHA-256 content hash (32 bytes), so receivers can
+ * tell identical content apart from identical names.
+ * <p>
+ * Peers that only speak version 1 reject any other version, so version 1 file lists are still sent to them (see
+ * discovery.legacy). Such lists end with a catalog trailer (marker and catalog version) after the counted records,
+ * which version 1 parsers never read: peers that speak version 2 take the list as a heartbeat.
+ * <p>
  * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
  */
 public final class RemoteFilenameListProtocol {
 
     private static final int PROTOCOL_ID = 1;
     private static final int PROTOCOL_VERSION = 1;
+    private static final int CATALOG_PROTOCOL_VERSION = 2;
 
     private static final int ID_INDEX = 0;
     private static final int VERSION_INDEX = 1;
@@ -34,6 +49,25 @@ public final class RemoteFilenameListProtocol {
     private static final int TCP_PORT_SIZE = FILE_COUNT_INDEX - TCP_PORT_INDEX;
     private static final int FILE_COUNT_SIZE = USERNAME_LENGTH_INDEX - FILE_COUNT_INDEX;
 
+    // Version 2 (catalog announcements)
+    private static final int TYPE_INDEX = 2;
+    private static final int CATALOG_TCP_PORT_INDEX = 3;
+    private static final int CATALOG_VERSION_INDEX = 7;
+    private static final int PART_INDEX_INDEX = 11;
+    private static final int PART_COUNT_INDEX = 13;
+    private static final int CATALOG_USERNAME_LENGTH_INDEX = 15;
+    private static final int CATALOG_USERNAME_INDEX = 16;
+    private static final int RECORD_COUNT_SIZE = 2;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_ADD_CONTENT = 3;
+    private static final int CONTENT_SIZE_SIZE = 8;
+    private static final int CONTENT_HASH_SIZE = 32;
+    private static final int MAX_NAME_SIZE = 255;
+    private static final int MAX_FILE_COUNT = 255;
+    private static final byte[] CATALOG_TRAILER_MARKER = {'C', 'A', 'T', CATALOG_PROTOCOL_VERSION};
+    private static final int CATALOG_TRAILER_SIZE = CATALOG_TRAILER_MARKER.length + 4 /* CATALOG VERSION */;
+
     /**
      * The caller references the static methods using <tt>RemoteFilenameListProtocol.EMPTY_STRING</tt>,
      * and so on. Thus, the caller should be prevented from constructing objects of
@@ -92,6 +126,505 @@ public final class RemoteFilenameListProtocol {
         return filenames;
     }
 
+    /**
+     * Checks if a packet is a catalog announcement (version 2).
+     *
+     * @param bytes  the packet data
+     * @param length the packet length
+     * @return true if it is a catalog announcement, false otherwise
+     */
+    public static boolean isAnnouncement(byte[] bytes, int length) {
+
+        return length > VERSION_INDEX && bytes[ID_INDEX] == PROTOCOL_ID && bytes[VERSION_INDEX] == CATALOG_PROTOCOL_VERSION;
+    }
+
+    /**
+     * Parses a catalog announcement packet (version 2).
+     *
+     * @param bytes       the packet data
+     * @param length      the packet length
+     * @param hostAddress the address that sent the data
+     * @return the announcement
+     * @throws IllegalStateException packet does not abide by this protocol
+     */
+    public static Announcement parseAnnouncement(byte[] bytes, int length, InetAddress hostAddress)
+            throws IllegalStateException {
+
+        if (!isAnnouncement(bytes, length)) {
+            throw new IllegalStateException("Packet does not abide by this protocol.");
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            int typeIndex = buffer.get(TYPE_INDEX);
+            if (typeIndex < 0 || typeIndex >= Announcement.Type.values().length) {
+                throw new IllegalStateException("Unknown announcement type.");
+            }
+            Announcement.Type type = Announcement.Type.values()[typeIndex];
+            int tcpPort = buffer.getInt(CATALOG_TCP_PORT_INDEX);
+            int catalogVersion = buffer.getInt(CATALOG_VERSION_INDEX);
+            int partIndex = Short.toUnsignedInt(buffer.getShort(PART_INDEX_INDEX));
+            int partCount = Short.toUnsignedInt(buffer.getShort(PART_COUNT_INDEX));
+            int usernameSize = Byte.toUnsignedInt(buffer.get(CATALOG_USERNAME_LENGTH_INDEX));
+            if (CATALOG_USERNAME_INDEX + usernameSize + RECORD_COUNT_SIZE > length) {
+                throw new IllegalStateException("Packet is truncated.");
+            }
+            String username = new String(bytes, CATALOG_USERNAME_INDEX, usernameSize, StandardCharsets.UTF_8);
+
+            buffer.position(CATALOG_USERNAME_INDEX + usernameSize);
+            int recordCount = Short.toUnsignedInt(buffer.getShort());
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            Map<String, ContentId> contents = new HashMap<>();
+            for (int i = 0; i < recordCount; i++) {
+
+                byte operation = buffer.get();
+                int filenameSize = Byte.toUnsignedInt(buffer.get());
+                if (buffer.remaining() < filenameSize) throw new IllegalStateException("Packet is truncated.");
+                String filename = new String(bytes, buffer.position(), filenameSize, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + filenameSize);
+
+                if (operation == RECORD_REMOVE) {
+                    removed.add(filename);
+                } else {
+                    added.add(filename);
+                    if (operation == RECORD_ADD_CONTENT) {
+                        long size = buffer.getLong();
+                        byte[] hash = new byte[CONTENT_HASH_SIZE];
+                        buffer.get(hash);
+                        contents.put(filename, new ContentId(size, ByteUtil.toHex(hash)));
+                    }
+                }
+            }
+            return new Announcement(type, hostAddress, tcpPort, username, catalogVersion, partIndex, partCount,
+                    added, removed, contents);
+
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalStateException("Packet is truncated.", e);
+        }
+    }
+
+    /**
+     * A reusable view of a received packet that reads its fields in place (nothing is decoded or copied until asked),
+     * so the receiver can refresh the files it already knows without allocating. Wrap each received packet, then
+     * read the fields of its version; the records of a version 1 file list are read one at a time with nextRecord.
+     * Reading a truncated packet throws an IllegalStateException (or an IndexOutOfBoundsException).
+     */
+    public static final class PacketView {
+
+        private ByteBuffer buffer;
+        private int length;
+        private int recordsLeft;
+        private int nextRecordIndex;
+        private int nameIndex;
+        private int nameSize;
+
+        /**
+         * Views a received packet
+         *
+         * @param buffer the packet data (from index 0 to its limit), read but never modified
+         */
+        public void wrap(ByteBuffer buffer) {
+
+            this.buffer = buffer;
+            this.length = buffer.limit();
+            this.nameIndex = 0;
+            this.nameSize = 0;
+            if (isFileList()) {
+                recordsLeft = Byte.toUnsignedInt(buffer.get(FILE_COUNT_INDEX));
+                nextRecordIndex = USERNAME_INDEX + Byte.toUnsignedInt(buffer.get(USERNAME_LENGTH_INDEX));
+            } else {
+                recordsLeft = 0;
+            }
+        }
+
+        /**
+         * Checks if the packet is a version 1 file list
+         *
+         * @return true if it is a file list, false otherwise
+         */
+        public boolean isFileList() {
+            return length > USERNAME_LENGTH_INDEX && buffer.get(ID_INDEX) == PROTOCOL_ID
+                    && buffer.get(VERSION_INDEX) == PROTOCOL_VERSION;
+        }
+
+        /**
+         * Checks if the packet is a catalog announcement (version 2)
+         *
+         * @return true if it is a catalog announcement, false otherwise
+         */
+        public boolean isAnnouncement() {
+            return length > VERSION_INDEX && buffer.get(ID_INDEX) == PROTOCOL_ID
+                    && buffer.get(VERSION_INDEX) == CATALOG_PROTOCOL_VERSION;
+        }
+
+        /**
+         * Checks if the packet is a gossip membership message (version 3, see MembershipProtocol)
+         *
+         * @return true if it is a membership message, false otherwise
+         */
+        public boolean isMembership() {
+            return length > VERSION_INDEX && buffer.get(ID_INDEX) == MembershipProtocol.PROTOCOL_ID
+                    && buffer.get(VERSION_INDEX) == MembershipProtocol.PROTOCOL_VERSION;
+        }
+
+        /**
+         * Checks if the packet is a version 1 file list ending with a catalog trailer (sent by a peer that speaks
+         * version 2 too)
+         *
+         * @return true if it has a catalog trailer, false otherwise
+         */
+        public boolean hasCatalogTrailer() {
+
+            if (length != Constants.PAYLOAD_SIZE || !isFileList()) return false;
+            int trailerIndex = length - CATALOG_TRAILER_SIZE;
+            for (int i = 0; i < CATALOG_TRAILER_MARKER.length; i++) {
+                if (buffer.get(trailerIndex + i) != CATALOG_TRAILER_MARKER[i]) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Checks if the packet is a catalog heartbeat
+         *
+         * @return true if it is a heartbeat, false otherwise
+         */
+        public boolean isHeartbeat() {
+            return isAnnouncement() && length > CATALOG_USERNAME_LENGTH_INDEX
+                    && buffer.get(TYPE_INDEX) == Announcement.Type.HEARTBEAT.ordinal();
+        }
+
+        /**
+         * Obtains the sender's tcp port
+         *
+         * @return the tcp port
+         */
+        public int getTcpPort() {
+            return buffer.getInt(isFileList() ? TCP_PORT_INDEX : CATALOG_TCP_PORT_INDEX);
+        }
+
+        /**
+         * Obtains the sender's catalog version (catalog announcements and file lists with a catalog trailer only)
+         *
+         * @return the catalog version
+         */
+        public int getCatalogVersion() {
+            return buffer.getInt(isFileList() ? length - Integer.BYTES : CATALOG_VERSION_INDEX);
+        }
+
+        /**
+         * Compares the sender's user name with the encoded bytes of a user name
+         *
+         * @param username the encoded user name (may be null)
+         * @return true if they are the same, false otherwise
+         */
+        public boolean usernameEquals(byte[] username) {
+            return username != null && bytesEqual(usernameIndex(), usernameSize(), username);
+        }
+
+        /**
+         * Decodes the sender's user name
+         *
+         * @return the user name
+         */
+        public String getUsername() {
+            return new String(getUsernameBytes(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Copies the encoded sender's user name
+         *
+         * @return the user name bytes
+         */
+        public byte[] getUsernameBytes() {
+            return copy(usernameIndex(), usernameSize());
+        }
+
+        /**
+         * Moves to the next filename of a version 1 file list. The list ends at the zero padding too, as older
+         * encoders counted the files of every previous packet as well.
+         *
+         * @return true if there is one, false if every filename was read
+         */
+        public boolean nextRecord() {
+
+            if (recordsLeft == 0 || nextRecordIndex >= length || buffer.get(nextRecordIndex) == 0) return false;
+            nameSize = Byte.toUnsignedInt(buffer.get(nextRecordIndex));
+            nameIndex = nextRecordIndex + 1;
+            if (nameIndex + nameSize > length) throw new IllegalStateException("Packet is truncated.");
+            nextRecordIndex = nameIndex + nameSize;
+            recordsLeft--;
+            return true;
+        }
+
+        /**
+         * Hashes the encoded filename of the current record
+         *
+         * @return the hash
+         */
+        public int nameHash() {
+
+            int hash = 1;
+            for (int i = nameIndex; i < nameIndex + nameSize; i++) hash = 31 * hash + buffer.get(i);
+            return hash;
+        }
+
+        /**
+         * Compares the filename of the current record with an encoded filename
+         *
+         * @param name the encoded filename
+         * @return true if they are the same, false otherwise
+         */
+        public boolean nameEquals(byte[] name) {
+            return bytesEqual(nameIndex, nameSize, name);
+        }
+
+        /**
+         * Decodes the filename of the current record
+         *
+         * @return the filename
+         */
+        public String getName() {
+            return new String(getNameBytes(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Copies the encoded filename of the current record
+         *
+         * @return the filename bytes
+         */
+        public byte[] getNameBytes() {
+            return copy(nameIndex, nameSize);
+        }
+
+        /**
+         * Copies the whole packet (to parse it with parseAnnouncement)
+         *
+         * @return the packet data
+         */
+        public byte[] toArray() {
+            return copy(0, length);
+        }
+
+        private int usernameIndex() {
+            return isFileList() ? USERNAME_INDEX : CATALOG_USERNAME_INDEX;
+        }
+
+        private int usernameSize() {
+
+            int size = Byte.toUnsignedInt(buffer.get(isFileList() ? USERNAME_LENGTH_INDEX : CATALOG_USERNAME_LENGTH_INDEX));
+            if (usernameIndex() + size > length) throw new IllegalStateException("Packet is truncated.");
+            return size;
+        }
+
+        private boolean bytesEqual(int index, int size, byte[] bytes) {
+
+            if (size != bytes.length) return false;
+            for (int i = 0; i < size; i++) {
+                if (buffer.get(index + i) != bytes[i]) return false;
+            }
+            return true;
+        }
+
+        private byte[] copy(int index, int size) {
+
+            byte[] bytes = new byte[size];
+            for (int i = 0; i < size; i++) bytes[i] = buffer.get(index + i);
+            return bytes;
+        }
+    }
+
+    /**
+     * Encodes a catalog announcement (version 2) into limited sized datagram payloads.
+     *
+     * @param type           the announcement type
+     * @param catalogVersion the catalog version
+     * @param added          the added filenames (all filenames for a full announcement)
+     * @param removed        the removed filenames
+     * @param tcpPort        the tcp port to connect
+     * @return a list of datagram packet's data (trimmed to their length)
+     */
+    public static List<byte[]> encodeAnnouncement(Announcement.Type type, int catalogVersion,
+                                                  Collection<String> added, Collection<String> removed,
+                                                  Integer tcpPort) {
+
+        Map<String, ContentId> addedContents = new LinkedHashMap<>();
+        for (String name : added) addedContents.put(name, null);
+        return encodeAnnouncement(type, catalogVersion, addedContents, removed, tcpPort);
+    }
+
+    /**
+     * Encodes a catalog announcement (version 2), with the content of the added files, into limited sized
+     * datagram payloads.
+     *
+     * @param type           the announcement type
+     * @param catalogVersion the catalog version
+     * @param added          the added filenames (all filenames for a full announcement) with their content
+     *                       (null if not hashed yet)
+     * @param removed        the removed filenames
+     * @param tcpPort        the tcp port to connect
+     * @return a list of datagram packet's data (trimmed to their length)
+     */
+    public static List<byte[]> encodeAnnouncement(Announcement.Type type, int catalogVersion,
+                                                  Map<String, ContentId> added, Collection<String> removed,
+                                                  Integer tcpPort) {
+
+        byte[] usrBytes = Application.settings().getUsername().getBytes(StandardCharsets.UTF_8);
+        if (usrBytes.length > MAX_NAME_SIZE) usrBytes = Arrays.copyOf(usrBytes, MAX_NAME_SIZE);
+
+        List<ByteBuffer> packets = new ArrayList<>();
+        ByteBuffer data = createAnnouncementHeader(type, catalogVersion, tcpPort, usrBytes);
+        int countIndex = data.position() - RECORD_COUNT_SIZE;
+        int count = 0;
+
+        List<String> names = new ArrayList<>(added.keySet());
+        names.addAll(removed);
+        for (int i = 0; i < names.size(); i++) {
+
+            byte[] filenameBytes = names.get(i).getBytes(StandardCharsets.UTF_8);
+            if (filenameBytes.length > MAX_NAME_SIZE) continue; // Can't be announced
+
+            ContentId content = (i < added.size()) ? added.get(names.get(i)) : null;
+            byte[] hashBytes = (content == null) ? null : ByteUtil.fromHex(content.getHash());
+            if (hashBytes != null && hashBytes.length != CONTENT_HASH_SIZE) hashBytes = null; // Other algorithm
+
+            int recordSize = filenameBytes.length + 2 /* OPERATION & LENGTH BYTES */
+                    + (hashBytes == null ? 0 : CONTENT_SIZE_SIZE + CONTENT_HASH_SIZE);
+            if (data.remaining() < recordSize) {
+                data.putShort(countIndex, (short) count);
+                packets.add(data);
+                data = createAnnouncementHeader(type, catalogVersion, tcpPort, usrBytes);
+                count = 0;
+            }
+            if (i >= added.size()) data.put(RECORD_REMOVE);
+            else data.put(hashBytes == null ? RECORD_ADD : RECORD_ADD_CONTENT);
+            data.put((byte) filenameBytes.length);
+            data.put(filenameBytes);
+            if (hashBytes != null) {
+                data.putLong(content.getSize());
+                data.put(hashBytes);
+            }
+            count++;
+        }
+        data.putShort(countIndex, (short) count);
+        packets.add(data);
+
+        // Number the parts & trim
+        List<byte[]> payloads = new ArrayList<>(packets.size());
+        for (int i = 0; i < packets.size(); i++) {
+            ByteBuffer packet = packets.get(i);
+            packet.putShort(PART_INDEX_INDEX, (short) i);
+            packet.putShort(PART_COUNT_INDEX, (short) packets.size());
+            payloads.add(Arrays.copyOf(packet.array(), packet.position()));
+        }
+        return payloads;
+    }
+
+    /**
+     * Creates a catalog announcement packet buffer with its header (record count left at zero)
+     *
+     * @param type           the announcement type
+     * @param catalogVersion the catalog version
+     * @param tcpPort        the tcp port of the peer
+     * @param usrBytes       the username bytes
+     * @return the buffer positioned after the header
+     */
+    private static ByteBuffer createAnnouncementHeader(Announcement.Type type, int catalogVersion, Integer tcpPort,
+                                                       byte[] usrBytes) {
+
+        ByteBuffer data = ByteBuffer.allocate(Constants.PAYLOAD_SIZE);
+        data.put(ByteUtil.intToByte(PROTOCOL_ID));
+        data.put(ByteUtil.intToByte(CATALOG_PROTOCOL_VERSION));
+        data.put((byte) type.ordinal());
+        data.putInt(tcpPort);
+        data.putInt(catalogVersion);
+        data.putShort((short) 0); // part index
+        data.putShort((short) 1); // part count
+        data.put((byte) usrBytes.length);
+        data.put(usrBytes);
+        data.putShort((short) 0); // record count
+
+        return data;
+    }
+
+    /**
+     * Encodes the shared filenames as version 1 file lists (read by every peer) into full sized datagram payloads,
+     * each one ending with the catalog trailer.
+     *
+     * @param filenames      the shared filenames
+     * @param tcpPort        the tcp port to connect
+     * @param catalogVersion the catalog version
+     * @return a list of datagram packet's data
+     */
+    public static List<byte[]> encodeFileList(Collection<String> filenames, Integer tcpPort, int catalogVersion) {
+
+        byte[] usrBytes = Application.settings().getUsername().getBytes(StandardCharsets.UTF_8);
+        if (usrBytes.length > MAX_NAME_SIZE) usrBytes = Arrays.copyOf(usrBytes, MAX_NAME_SIZE);
+        int recordsLimit = Constants.PAYLOAD_SIZE - CATALOG_TRAILER_SIZE;
+
+        List<byte[]> payloads = new ArrayList<>();
+        ByteBuffer data = createFileListHeader(tcpPort, usrBytes);
+        int headerSize = data.position();
+        int count = 0;
+        for (String name : filenames) {
+
+            byte[] filenameBytes = name.getBytes(StandardCharsets.UTF_8);
+            int recordSize = filenameBytes.length + 1 /* BYTE FOR FILENAME LENGTH */;
+            // Can't be listed (an empty name reads as the padding)
+            if (filenameBytes.length == 0 || filenameBytes.length > MAX_NAME_SIZE
+                    || headerSize + recordSize > recordsLimit) continue;
+
+            if (data.position() + recordSize > recordsLimit || count == MAX_FILE_COUNT) {
+                payloads.add(finishFileList(data, count, catalogVersion));
+                data = createFileListHeader(tcpPort, usrBytes);
+                count = 0;
+            }
+            data.put((byte) filenameBytes.length);
+            data.put(filenameBytes);
+            count++;
+        }
+        payloads.add(finishFileList(data, count, catalogVersion));
+
+        return payloads;
+    }
+
+    /**
+     * Creates a version 1 file list packet buffer with its header (file count left at zero)
+     *
+     * @param tcpPort  the tcp port of the peer
+     * @param usrBytes the username bytes
+     * @return the buffer positioned after the header
+     */
+    private static ByteBuffer createFileListHeader(Integer tcpPort, byte[] usrBytes) {
+
+        ByteBuffer data = ByteBuffer.allocate(Constants.PAYLOAD_SIZE);
+        data.put(ByteUtil.intToByte(PROTOCOL_ID));
+        data.put(ByteUtil.intToByte(PROTOCOL_VERSION));
+        data.putInt(tcpPort);
+        data.put((byte) 0); // file count
+        data.put((byte) usrBytes.length);
+        data.put(usrBytes);
+
+        return data;
+    }
+
+    /**
+     * Sets the file count of a version 1 file list packet and appends the catalog trailer at its end
+     *
+     * @param data           the packet buffer
+     * @param count          the file count
+     * @param catalogVersion the catalog version
+     * @return the packet's data (zero padded to its full size)
+     */
+    private static byte[] finishFileList(ByteBuffer data, int count, int catalogVersion) {
+
+        data.put(FILE_COUNT_INDEX, (byte) count);
+        data.position(Constants.PAYLOAD_SIZE - CATALOG_TRAILER_SIZE);
+        data.put(CATALOG_TRAILER_MARKER);
+        data.putInt(catalogVersion);
+
+        return data.array();
+    }
+
     /**
      * Parses a list of files into a list of limited sized byte array (Each list represents a datagram packet payload).
      *
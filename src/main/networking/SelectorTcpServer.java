@@ -0,0 +1,546 @@
+package networking;
+
+import domain.Directory;
+import util.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking TCP file server: every upload is multiplexed on a single selector thread.
+ * <p>
+ * Each connection is a small state machine (read the request, write the response header, stream the file range).
+ * A writable connection is sent at most one transfer chunk per turn, so a large upload never starves the others.
+ * Keep-alive connections go back to reading once a response is sent; pipelined requests already received are
+ * answered right away, in order. Verified requests are streamed through a buffer (instead of zero-copy) so the
+ * bytes can be hashed on the way, and the digest is sent as the response trailer. Compressed responses are
+ * deflated block by block on the way too.
+ * <p>
+ * Uploads are shaped by the upload throttle: a connection that may not send yet stops asking for writability
+ * and is woken up again once its bandwidth is available.
+ * <p>
+ * Each response waits for an upload slot of the upload scheduler: a queued connection only sends its queue notices
+ * (every Constants.QUEUE_NOTICE_INTERVAL) until its response gets a slot, and keeps reading so a client that leaves
+ * meanwhile is noticed (and its place in the queue freed) right away.
+ * <p>
+ * A connection that neither receives nor sends anything for Constants.KEEP_ALIVE_TIMEOUT (while not queued or
+ * throttled), such as a keep-alive connection abandoned by its client, is closed.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+class SelectorTcpServer implements Runnable {
+
+    private final ServerSocketChannel serverChannel;
+    private final Directory sharedDir;
+    private final UploadThrottle uploadThrottle;
+    private final Map<SelectionKey, Long> throttled; // wake up time (System.nanoTime) of each throttled connection
+    private final UploadScheduler uploadScheduler;
+    private final Set<SelectionKey> queued; // connections waiting for an upload slot
+    private final Queue<SelectionKey> granted; // queued connections that got their slot (only the selector thread releases slots)
+    private long lastQueueNotice;
+    private long nextIdleCheck; // System.nanoTime of the next idle connections check
+
+    /**
+     * Creates a non-blocking TCP server.
+     *
+     * @param serverChannel   the (bound) server socket channel
+     * @param sharedDir       the shared directory
+     * @param uploadThrottle  the upload bandwidth throttle
+     * @param uploadScheduler the upload slots scheduler
+     */
+    SelectorTcpServer(ServerSocketChannel serverChannel, Directory sharedDir, UploadThrottle uploadThrottle,
+                      UploadScheduler uploadScheduler) {
+
+        this.serverChannel = serverChannel;
+        this.sharedDir = sharedDir;
+        this.uploadThrottle = uploadThrottle;
+        this.throttled = new HashMap<>();
+        this.uploadScheduler = uploadScheduler;
+        this.queued = new HashSet<>();
+        this.granted = new ArrayDeque<>();
+    }
+
+    @Override
+    public void run() {
+
+        try (Selector selector = Selector.open()) {
+
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Waiting for peers to connect (TCP, non-blocking)...");
+
+            //noinspection InfiniteLoopStatement
+            while (true) {
+
+                startGranted();
+                long timeout = nextTimeout(wakeThrottled());
+                long idleTimeout = closeIdle(selector);
+                selector.select((timeout == 0 || idleTimeout == 0) ? Math.max(timeout, idleTimeout) : Math.min(timeout, idleTimeout));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept(selector);
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) connection.onReadable(key);
+                            else if (key.isWritable()) connection.onWritable(key);
+                        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                            Logger.getLogger(SelectorTcpServer.class.getName()).log(Level.WARNING, "TCP Connection failed.", e);
+                            connection.close(key);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Logger.getLogger(SelectorTcpServer.class.getName()).log(Level.SEVERE, "TCP server failed.", e);
+        }
+    }
+
+    /**
+     * Makes the throttled connections whose bandwidth is available writable again
+     *
+     * @return the time until the next throttled connection is due in milliseconds (0 if there is none)
+     */
+    private long wakeThrottled() {
+
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        Iterator<Map.Entry<SelectionKey, Long>> iterator = throttled.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<SelectionKey, Long> entry = iterator.next();
+            if (entry.getValue() - now <= 0 || !entry.getKey().isValid()) {
+                if (entry.getKey().isValid()) {
+                    entry.getKey().interestOps(SelectionKey.OP_WRITE);
+                    ((Connection) entry.getKey().attachment()).lastActivity = now; // Held back, not idle
+                }
+                iterator.remove();
+            } else {
+                next = Math.min(next, entry.getValue() - now);
+            }
+        }
+        return (next == Long.MAX_VALUE) ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+    }
+
+    /**
+     * Starts the responses of the queued connections that got an upload slot
+     */
+    private void startGranted() {
+
+        SelectionKey key;
+        while ((key = granted.poll()) != null) {
+            if (key.isValid()) ((Connection) key.attachment()).onGranted(key);
+        }
+    }
+
+    /**
+     * Sends the queue notices that are due and computes how long the selector may block
+     *
+     * @param throttledTimeout the time until the next throttled connection is due in milliseconds (0 if there is none)
+     * @return the selector timeout in milliseconds (0 to block until a connection is ready)
+     */
+    private long nextTimeout(long throttledTimeout) {
+
+        if (queued.isEmpty()) return throttledTimeout;
+
+        long sinceNotice = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastQueueNotice);
+        if (sinceNotice >= Constants.QUEUE_NOTICE_INTERVAL) {
+            lastQueueNotice = System.nanoTime();
+            sinceNotice = 0;
+            for (SelectionKey key : queued) {
+                if (key.isValid()) ((Connection) key.attachment()).notifyPosition(key);
+            }
+        }
+        long noticeTimeout = Math.max(1, Constants.QUEUE_NOTICE_INTERVAL - sinceNotice);
+        return (throttledTimeout == 0) ? noticeTimeout : Math.min(throttledTimeout, noticeTimeout);
+    }
+
+    /**
+     * Closes the connections idle for longer than Constants.KEEP_ALIVE_TIMEOUT, if they are due to be checked
+     *
+     * @param selector the selector
+     * @return the time until the next check in milliseconds (0 if there is no connection)
+     */
+    private long closeIdle(Selector selector) {
+
+        if (selector.keys().size() <= 1) return 0; // Only the server channel
+
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(Constants.KEEP_ALIVE_TIMEOUT);
+        if (nextIdleCheck - now <= 0) {
+            long next = timeout;
+            for (SelectionKey key : selector.keys()) {
+                if (!key.isValid() || !(key.attachment() instanceof Connection)) continue;
+                Connection connection = (Connection) key.attachment();
+                if (connection.waiting || throttled.containsKey(key)) continue; // Not idle, held back
+
+                long idle = now - connection.lastActivity;
+                if (idle >= timeout) connection.close(key);
+                else next = Math.min(next, timeout - idle);
+            }
+            nextIdleCheck = now + next;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextIdleCheck - now));
+    }
+
+    /**
+     * Accepts every pending connection and registers it for reading its request
+     *
+     * @param selector the selector
+     * @throws IOException I/O error on the server socket
+     */
+    private void accept(Selector selector) throws IOException {
+
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+            } catch (IOException e) {
+                Logger.getLogger(SelectorTcpServer.class.getName()).log(Level.WARNING, "Accepting a connection failed.", e);
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * The state of a client connection
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer requestBuffer;
+        private final UploadThrottle.Limiter limiter;
+        private ByteBuffer header;
+        private FileChannel fileChannel;
+        private String filename;
+        private boolean keepAlive;
+        private long position;
+        private long remaining;
+        // Verified responses
+        private MessageDigest digest;
+        private ByteBuffer streamBuffer;
+        private ByteBuffer trailer;
+        // Compressed responses
+        private BlockCodec codec;
+        private byte[] block;
+        private boolean deflating;
+        private ByteBuffer outgoing;
+        // Upload slot
+        private UploadScheduler.Ticket ticket;
+        private boolean waiting;
+        private boolean queueAware;
+        private ByteBuffer notice;
+        private long lastActivity; // System.nanoTime of the last byte received or sent
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.lastActivity = System.nanoTime();
+            this.requestBuffer = ByteBuffer.allocate(FileTransferProtocol.MAX_REQUEST_SIZE);
+            this.limiter = uploadThrottle.open();
+        }
+
+        /**
+         * Receives request bytes and answers the requests completely received
+         *
+         * @param key the connection's selection key
+         * @throws IOException           I/O error
+         * @throws IllegalStateException request does not abide by the protocol
+         */
+        private void onReadable(SelectionKey key) throws IOException, IllegalStateException {
+
+            int read = channel.read(requestBuffer);
+            if (read < 0) {
+                if (waiting) {
+                    close(key); // Client left the queue
+                    return;
+                }
+                if (requestBuffer.position() == 0 && keepAlive) {
+                    close(key); // Keep-alive connection closed by the client
+                    return;
+                }
+                throw new IOException("Connection closed before the request was received.");
+            }
+            if (read > 0) lastActivity = System.nanoTime();
+            if (waiting) {
+                // Pipelined requests are answered after the waiting one (stop reading if they fill the buffer)
+                key.interestOps((key.interestOps() & SelectionKey.OP_WRITE) | waitingOps());
+                return;
+            }
+            nextRequest(key);
+        }
+
+        /**
+         * Prepares the response to the next received request, if it's complete
+         *
+         * @param key the connection's selection key
+         * @throws IOException           I/O error
+         * @throws IllegalStateException request does not abide by the protocol
+         */
+        private void nextRequest(SelectionKey key) throws IOException, IllegalStateException {
+
+            requestBuffer.flip();
+            FileTransferProtocol.Request request = FileTransferProtocol.parseRequest(requestBuffer);
+            requestBuffer.compact();
+            if (request == null) {
+                if (!requestBuffer.hasRemaining()) throw new IllegalStateException("Request is too long.");
+                key.interestOps(SelectionKey.OP_READ); // Wait for more bytes
+                return;
+            }
+
+            filename = request.getFilename();
+            keepAlive = request.isKeepAlive();
+            System.out.println("Requested the file: " + filename);
+            File requestFile = sharedDir.getFile(filename);
+            long fileSize = FileTransferProtocol.UNAVAILABLE;
+            if (requestFile != null) {
+                fileChannel = FileChannel.open(requestFile.toPath(), StandardOpenOption.READ);
+                fileSize = fileChannel.size();
+            }
+            FileTransferProtocol.Range range = FileTransferProtocol.resolveRange(request, Math.max(fileSize, 0));
+            boolean compressed = BlockCodec.choose(request, filename) == FileTransferProtocol.CODEC_DEFLATE;
+            header = FileTransferProtocol.encodeResponse(request, fileSize, range,
+                    compressed ? FileTransferProtocol.CODEC_DEFLATE : FileTransferProtocol.CODEC_NONE);
+            position = range.getOffset();
+            remaining = (fileChannel == null) ? 0 : range.getLength();
+            digest = (fileChannel != null && request.isVerified()) ? FileTransferProtocol.newDigest() : null;
+            trailer = null;
+            if (digest != null && streamBuffer == null) {
+                streamBuffer = ByteBuffer.allocateDirect(Constants.TRANSFER_BUFFER_SIZE);
+                streamBuffer.limit(0);
+            }
+            if (digest != null && compressed && codec == null) {
+                codec = new BlockCodec();
+                block = new byte[BlockCodec.BLOCK_SIZE];
+            }
+            deflating = digest != null && compressed;
+            outgoing = deflating ? ByteBuffer.allocate(0) : streamBuffer;
+
+            if (remaining > 0) {
+                ticket = uploadScheduler.ticket(fileSize, fileSize - range.getOffset(), () -> granted.add(key));
+                if (!uploadScheduler.tryAcquire(ticket)) {
+                    waiting = true;
+                    queueAware = request.isQueued();
+                    queued.add(key);
+                    notifyPosition(key);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+            onWritable(key); // Usually the socket can take the header right away
+        }
+
+        /**
+         * Sends the queue position of the waiting response (unless the last notice is still being sent)
+         *
+         * @param key the connection's selection key
+         */
+        private void notifyPosition(SelectionKey key) {
+
+            if (notice != null && notice.hasRemaining()) return; // Still sending the last one
+            int position = uploadScheduler.position(ticket);
+            if (queueAware && position > 0) {
+                notice = FileTransferProtocol.encodeQueued(position);
+                key.interestOps(waitingOps() | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(waitingOps());
+            }
+        }
+
+        /**
+         * Obtains the interest of a connection waiting for an upload slot: reading (to notice the client leaving) unless
+         * the request buffer is full of pipelined requests
+         *
+         * @return the interest set
+         */
+        private int waitingOps() {
+            return requestBuffer.hasRemaining() ? SelectionKey.OP_READ : 0;
+        }
+
+        /**
+         * Starts the waiting response once it got an upload slot
+         *
+         * @param key the connection's selection key
+         */
+        private void onGranted(SelectionKey key) {
+
+            waiting = false;
+            lastActivity = System.nanoTime();
+            queued.remove(key);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Sends the response header and then the next chunk of the file range
+         *
+         * @param key the connection's selection key
+         * @throws IOException I/O error
+         */
+        private void onWritable(SelectionKey key) throws IOException {
+
+            lastActivity = System.nanoTime(); // The socket took (or can take) more bytes
+            if (notice != null && notice.hasRemaining()) {
+                channel.write(notice);
+                if (notice.hasRemaining()) return; // Socket buffer full
+            }
+            if (waiting) {
+                key.interestOps(waitingOps()); // Wait for an upload slot
+                return;
+            }
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) return; // Socket buffer full
+            }
+
+            long granted = 0;
+            if (remaining > 0 || (digest != null && outgoing.hasRemaining())) {
+                granted = uploadThrottle.tryAcquire(limiter, Constants.TRANSFER_CHUNK_SIZE);
+                if (granted == 0) {
+                    // Wait for bandwidth without polling the socket
+                    key.interestOps(0);
+                    throttled.put(key, System.nanoTime() + uploadThrottle.nanosUntilGrant(limiter, Constants.TRANSFER_CHUNK_SIZE));
+                    return;
+                }
+            }
+
+            if (digest != null) {
+                if (!sendHashed(granted)) return; // Continue on the next writable turn
+            } else if (remaining > 0) {
+                long sent = fileChannel.transferTo(position, Math.min(granted, remaining), channel);
+                uploadThrottle.settle(limiter, granted, sent);
+                if (sent == 0 && position >= fileChannel.size()) throw new IOException("File shrank while uploading.");
+                position += sent;
+                remaining -= sent;
+                if (remaining > 0) return; // Continue on the next writable turn
+            }
+
+            if (fileChannel == null) {
+                Logger.getLogger(SelectorTcpServer.class.getName()).log(Level.WARNING, "Requested file not available: " + filename);
+            } else {
+                System.out.println("Uploaded the file: " + filename + " to: " + channel.socket().getInetAddress().getHostAddress());
+                fileChannel.close();
+                fileChannel = null;
+            }
+            uploadScheduler.release(ticket);
+            ticket = null;
+
+            if (keepAlive) {
+                nextRequest(key);
+            } else {
+                close(key);
+            }
+        }
+
+        /**
+         * Sends (at most a transfer chunk of) the file range through the stream buffer, hashing it (and deflating it
+         * for compressed responses), and then the trailer
+         *
+         * @param granted the bytes the upload throttle granted for this turn
+         * @return true if the whole range and the trailer were sent, false otherwise
+         * @throws IOException I/O error
+         */
+        private boolean sendHashed(long granted) throws IOException {
+
+            long written = 0;
+            try {
+                while (written < granted && (remaining > 0 || outgoing.hasRemaining())) {
+
+                    if (!outgoing.hasRemaining()) outgoing = deflating ? nextFrame() : nextBuffer();
+                    int sent = channel.write(outgoing);
+                    if (sent == 0) return false; // Socket buffer full
+                    written += sent;
+                }
+                if (remaining > 0 || outgoing.hasRemaining()) return false;
+
+                if (trailer == null) {
+                    byte[] hash = digest.digest();
+                    trailer = ByteBuffer.allocate(Integer.BYTES + hash.length);
+                    if (deflating) trailer.put(BlockCodec.endFrame());
+                    trailer.put(hash);
+                    trailer.flip();
+                }
+                written += channel.write(trailer);
+                return !trailer.hasRemaining();
+            } finally {
+                uploadThrottle.settle(limiter, granted, written);
+            }
+        }
+
+        /**
+         * Reads the next part of the file range into the stream buffer, hashing it
+         *
+         * @return the stream buffer (ready to be read)
+         * @throws IOException I/O error
+         */
+        private ByteBuffer nextBuffer() throws IOException {
+
+            streamBuffer.clear();
+            streamBuffer.limit((int) Math.min(streamBuffer.capacity(), remaining));
+            int read = fileChannel.read(streamBuffer, position);
+            if (read <= 0) throw new IOException("File shrank while uploading.");
+            streamBuffer.flip();
+            digest.update(streamBuffer.duplicate());
+            position += read;
+            remaining -= read;
+            return streamBuffer;
+        }
+
+        /**
+         * Reads the next block of the file range, hashing it, and deflates it into a frame
+         *
+         * @return the frame (ready to be read; valid until the next block is deflated)
+         * @throws IOException I/O error
+         */
+        private ByteBuffer nextFrame() throws IOException {
+
+            ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, remaining));
+            int read = fileChannel.read(buffer, position);
+            if (read <= 0) throw new IOException("File shrank while uploading.");
+            digest.update(block, 0, read);
+            position += read;
+            remaining -= read;
+            return codec.encode(block, read);
+        }
+
+        /**
+         * Closes the connection and its file
+         *
+         * @param key the connection's selection key
+         */
+        private void close(SelectionKey key) {
+
+            key.cancel();
+            throttled.remove(key);
+            queued.remove(key);
+            uploadScheduler.release(ticket);
+            ticket = null;
+            limiter.close();
+            if (codec != null) codec.end();
+            try {
+                if (fileChannel != null) fileChannel.close();
+                channel.close();
+            } catch (IOException e) {
+                Logger.getLogger(SelectorTcpServer.class.getName()).log(Level.WARNING, "Closing channels failed.", e);
+            }
+        }
+    }
+}
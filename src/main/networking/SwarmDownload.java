@@ -0,0 +1,356 @@
+package networking;
+
+import domain.RemoteFilename;
+import util.Constants;
+import util.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads one file from several peers at once, splitting it in chunks fetched in parallel.
+ * <p>
+ * Every source gets its own worker that keeps taking pending chunks. A failed chunk goes back to the queue,
+ * and once the queue is empty idle workers duplicate the oldest chunk still in progress, so a slow or stalled
+ * peer never holds back the end of the download. Chunks are written in place into the partial file, and the progress
+ * is reported chunk by chunk (so duplicated chunks are counted once). As soon as every chunk is received the workers
+ * still fetching duplicates are interrupted (closing their connections) and the file is committed.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+class SwarmDownload {
+
+    private static final int MAX_PEER_FAILURES = 3;
+    private static final long IDLE_WAIT = 200; // milliseconds
+
+    private final TcpCommunication tcp;
+    private final String filename;
+    private final List<RemoteFilename> sources;
+    private final File downloadedFile;
+    private final File partFile;
+    private final BlockingDeque<Chunk> pending;
+    private final List<Chunk> chunks;
+    private final Object lock;
+    private final TransferListener listener;
+    private int doneCount;
+    private int activeWorkers;
+
+    /**
+     * Creates a swarm download.
+     *
+     * @param tcp            the TCP communication used to request ranges
+     * @param sources        the peers announcing the file (all with the same content)
+     * @param downloadedFile the location of the download file
+     * @param listener       the listener of the download's progress (or null)
+     */
+    SwarmDownload(TcpCommunication tcp, List<RemoteFilename> sources, File downloadedFile, TransferListener listener) {
+
+        this.tcp = tcp;
+        this.filename = sources.get(0).getFilename();
+        this.sources = new ArrayList<>(sources);
+        this.downloadedFile = downloadedFile;
+        this.partFile = new File(downloadedFile.getPath() + Constants.PARTIAL_DOWNLOAD_EXTENSION);
+        this.pending = new LinkedBlockingDeque<>();
+        this.chunks = new ArrayList<>();
+        this.lock = new Object();
+        this.listener = listener;
+        this.doneCount = 0;
+        this.activeWorkers = 0;
+    }
+
+    /**
+     * Runs the download, blocking until it finishes.
+     *
+     * @throws IOException              I/O error or no source could finish the download (partial file kept)
+     * @throws IllegalArgumentException no source has the file available
+     */
+    void run() throws IOException, IllegalArgumentException {
+
+        ExecutorService workers = Threads.newExecutor(sources.size());
+        List<RemoteFilename> peers = new ArrayList<>();
+        try (FileChannel fileChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+
+            // Probe every source and keep the ones announcing the same content size
+            long fileSize = probe(workers, fileChannel, peers);
+            // Resume from whatever was received before
+            long start = fileChannel.size();
+            if (start > fileSize) {
+                fileChannel.truncate(0);
+                start = 0;
+            }
+            planChunks(start, fileSize);
+            if (listener != null) listener.onStarted(fileSize, start);
+            System.out.println("Swarm downloading the file: " + filename + " from " + peers.size() + " peers ("
+                    + chunks.size() + " chunks)");
+
+            synchronized (lock) {
+                activeWorkers = peers.size();
+            }
+            for (RemoteFilename peer : peers) {
+                workers.submit(new ChunkWorker(peer, fileChannel));
+            }
+            awaitWorkers();
+
+            // Settle the file before stopping the workers (an interrupted write closes the shared channel)
+            if (!isComplete()) {
+                fileChannel.truncate(completedPrefix(start));
+                throw new IOException("No peer could finish the download (kept to resume later).");
+            }
+            fileChannel.truncate(fileSize);
+        } finally {
+            stop(workers);
+        }
+        // Commit download
+        Files.move(partFile.toPath(), downloadedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Downloaded the file: " + filename + " from " + peers.size() + " peers");
+    }
+
+    /**
+     * Waits until every chunk is received or every worker has given up
+     *
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    private void awaitWorkers() throws InterruptedIOException {
+
+        synchronized (lock) {
+            try {
+                while (doneCount < chunks.size() && activeWorkers > 0) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Swarm download interrupted.");
+            }
+        }
+    }
+
+    /**
+     * Interrupts the workers still fetching (which closes their connections) and waits for them to exit
+     *
+     * @param workers the workers' executor
+     */
+    private void stop(ExecutorService workers) {
+
+        workers.shutdownNow();
+        try {
+            if (!workers.awaitTermination(Constants.READ_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Logger.getLogger(SwarmDownload.class.getName()).log(Level.WARNING, "Swarm workers didn't stop.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Asks every source for the file size (an empty range) and keeps the sources agreeing with the most common size.
+     * Sources that don't answer within Constants.READ_TIMEOUT are left out.
+     *
+     * The listener is told about the sources left out.
+     *
+     * @param workers     the executor to probe in parallel
+     * @param fileChannel the partial file (nothing is written to it)
+     * @param peers       the list to fill with the usable sources
+     * @return the file size
+     * @throws IllegalArgumentException no source has the file available
+     */
+    private long probe(ExecutorService workers, FileChannel fileChannel, List<RemoteFilename> peers)
+            throws IllegalArgumentException {
+
+        Map<RemoteFilename, Future<Long>> sizes = new LinkedHashMap<>();
+        for (RemoteFilename source : sources) {
+            sizes.put(source, workers.submit(() -> tcp.downloadRange(source.getFilename(), source.getHost(), source.getTcpPort(),
+                    fileChannel, 0, 0, null).getFileSize()));
+        }
+        Map<Long, Integer> votes = new HashMap<>();
+        Map<RemoteFilename, Long> answered = new LinkedHashMap<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Constants.READ_TIMEOUT);
+        for (Map.Entry<RemoteFilename, Future<Long>> entry : sizes.entrySet()) {
+            try {
+                Long size = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                answered.put(entry.getKey(), size);
+                votes.merge(size, 1, Integer::sum);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                entry.getValue().cancel(true); // Closes the connection of a probe still waiting
+                if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+                System.out.println("Swarm source unavailable: " + entry.getKey().getHost().getHostAddress());
+            }
+        }
+        if (votes.isEmpty()) throw new IllegalArgumentException("File is not available anymore.");
+
+        long fileSize = Collections.max(votes.entrySet(), Map.Entry.comparingByValue()).getKey();
+        for (Map.Entry<RemoteFilename, Long> entry : answered.entrySet()) {
+            if (entry.getValue() == fileSize) peers.add(entry.getKey());
+        }
+        if (listener != null) {
+            for (RemoteFilename source : sources) {
+                if (!peers.contains(source)) listener.onSourceDropped(source);
+            }
+        }
+        return fileSize;
+    }
+
+    /**
+     * Splits the range still missing into chunks.
+     *
+     * @param start    the position of the first missing byte
+     * @param fileSize the file size
+     */
+    private void planChunks(long start, long fileSize) {
+
+        for (long offset = start; offset < fileSize; offset += Constants.SWARM_CHUNK_SIZE) {
+            Chunk chunk = new Chunk(offset, Math.min(Constants.SWARM_CHUNK_SIZE, fileSize - offset));
+            chunks.add(chunk);
+            pending.add(chunk);
+        }
+    }
+
+    /**
+     * Checks if every chunk was received
+     *
+     * @return true if complete, false otherwise
+     */
+    private boolean isComplete() {
+
+        synchronized (lock) {
+            return doneCount == chunks.size();
+        }
+    }
+
+    /**
+     * Obtains the end of the contiguous range of received chunks (used to resume later).
+     *
+     * @param start the position of the first chunk
+     * @return the end of the received prefix
+     */
+    private long completedPrefix(long start) {
+
+        long end = start;
+        synchronized (lock) {
+            for (Chunk chunk : chunks) {
+                if (!chunk.done) break;
+                end = chunk.offset + chunk.length;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Takes the next chunk to fetch: a pending one, or (when none is left) the oldest chunk another peer is
+     * still fetching alone.
+     *
+     * @return the next chunk, or null if there is nothing left to fetch
+     * @throws InterruptedException interrupted while waiting
+     */
+    private Chunk nextChunk() throws InterruptedException {
+
+        while (!isComplete()) {
+
+            Chunk chunk = pending.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+            synchronized (lock) {
+                if (chunk == null) chunk = oldestInProgress();
+                if (chunk != null && !chunk.done) {
+                    chunk.holders++;
+                    if (chunk.startedAt == 0) chunk.startedAt = System.nanoTime();
+                    return chunk;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the chunk in progress for the longest time that is fetched by a single peer
+     *
+     * @return the chunk or null
+     */
+    private Chunk oldestInProgress() {
+
+        Chunk oldest = null;
+        for (Chunk chunk : chunks) {
+            if (!chunk.done && chunk.holders == 1 && (oldest == null || chunk.startedAt < oldest.startedAt)) {
+                oldest = chunk;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Represents a range of the file to fetch
+     */
+    private static class Chunk {
+
+        private final long offset;
+        private final long length;
+        private boolean done;
+        private int holders;
+        private long startedAt;
+
+        private Chunk(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Fetches chunks from one peer until nothing is left or the peer fails too often
+     */
+    private class ChunkWorker implements Runnable {
+
+        private final RemoteFilename peer;
+        private final FileChannel fileChannel;
+
+        private ChunkWorker(RemoteFilename peer, FileChannel fileChannel) {
+            this.peer = peer;
+            this.fileChannel = fileChannel;
+        }
+
+        @Override
+        public void run() {
+
+            int failures = 0;
+            try {
+                Chunk chunk;
+                while (failures < MAX_PEER_FAILURES && (chunk = nextChunk()) != null) {
+                    boolean fetched = false;
+                    try {
+                        tcp.downloadRange(peer.getFilename(), peer.getHost(), peer.getTcpPort(), fileChannel, chunk.offset,
+                                chunk.length, null);
+                        fetched = true;
+                    } catch (IOException | IllegalArgumentException e) {
+                        failures++;
+                        System.out.println("Swarm chunk failed from: " + peer.getHost().getHostAddress());
+                    }
+                    synchronized (lock) {
+                        chunk.holders--;
+                        if (fetched && !chunk.done) {
+                            chunk.done = true;
+                            doneCount++;
+                            if (listener != null) listener.onReceived(chunk.length);
+                            lock.notifyAll();
+                        } else if (!chunk.done && chunk.holders == 0) {
+                            chunk.startedAt = 0;
+                            pending.addFirst(chunk); // Reassign to another peer
+                        }
+                    }
+                }
+                if (failures >= MAX_PEER_FAILURES && listener != null) listener.onSourceDropped(peer);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (lock) {
+                    activeWorkers--;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -1,15 +1,37 @@
 package networking;
 
+import domain.ContentId;
 import domain.Directory;
+import domain.RemoteFilename;
+import settings.AppSettings;
 import settings.Application;
+import util.Constants;
+import util.Threads;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +47,12 @@ public class TcpCommunication {
     private final ServerSocket serverSocket;
     private final Thread serverThread;
     private final ExecutorService clientTaskPool;
+    private final int clientTaskThreads; // Connections served at once (the others wait for a thread)
+    private final AtomicInteger openConnections;
+    private final Queue<TcpConnection> idleConnections; // Keep-alive connections waiting for a request, oldest first
+    private final ConnectionPool connectionPool;
+    private final UploadThrottle uploadThrottle;
+    private final UploadScheduler uploadScheduler;
 
     /**
      * Creates a TCP Communication.
@@ -38,8 +66,20 @@ public class TcpCommunication {
         sharedDir = sharedDirectory;
         downloadDir = downloadDirectory;
         serverSocket = tcpSocket;
-        serverThread = new Thread(new TcpServer());
-        clientTaskPool = Executors.newFixedThreadPool(Application.settings().getMaxUploads());
+        boolean nonBlocking = AppSettings.SELECTOR_ENGINE.equals(Application.settings().getTcpServerEngine())
+                && tcpSocket.getChannel() != null;
+        uploadThrottle = new UploadThrottle();
+        uploadScheduler = new UploadScheduler(Application.settings().getMaxUploads(), Application.settings().getUploadQueuePolicy());
+        serverThread = new Thread(nonBlocking
+                ? new SelectorTcpServer(tcpSocket.getChannel(), sharedDir, uploadThrottle, uploadScheduler)
+                : new TcpServer());
+        // The scheduler limits the simultaneous uploads: the extra threads hold the connections waiting in its queue
+        int clientThreads = Application.settings().getMaxUploads() + Constants.UPLOAD_QUEUE_SIZE;
+        clientTaskPool = Threads.newExecutor(clientThreads);
+        clientTaskThreads = Threads.isVirtual() ? Integer.MAX_VALUE : clientThreads; // A virtual thread per connection
+        openConnections = new AtomicInteger();
+        idleConnections = new ConcurrentLinkedQueue<>();
+        connectionPool = new ConnectionPool();
     }
 
     /**
@@ -52,6 +92,8 @@ public class TcpCommunication {
 
     /**
      * Creates a TCP Server.
+     * An idle keep-alive connection holds a thread until its next request, so once every thread is taken the oldest
+     * idle connection is closed to free one for the new connection (its client reconnects when it needs it again).
      *
      * @throws IOException I/O error
      */
@@ -62,12 +104,19 @@ public class TcpCommunication {
         while (true) {
             Socket connectionSocket = serverSocket.accept();
 
+            if (openConnections.incrementAndGet() > clientTaskThreads) {
+                TcpConnection idle = idleConnections.poll();
+                if (idle != null) idle.closeIdle();
+            }
             clientTaskPool.submit(new TcpConnection(connectionSocket));
         }
     }
 
     /**
      * Requests a download to the peer's server.
+     * The file is received into a partial file next to the target (resuming from it if it already exists)
+     * and only moved to the target location once complete. A peer that sends the file in slices is asked for the
+     * rest until the whole file is received.
      *
      * @param filename the resquested file's name
      * @param host     the peer's host IPv4 Address
@@ -77,41 +126,529 @@ public class TcpCommunication {
      * @throws IllegalArgumentException Unavailable file error
      */
     public void download(String filename, InetAddress host, int tcpPort, File toFile) throws IOException, IllegalArgumentException {
+        download(filename, host, tcpPort, toFile, null);
+    }
+
+    /**
+     * Requests a download to the peer's server, reporting its progress.
+     *
+     * @param filename the resquested file's name
+     * @param host     the peer's host IPv4 Address
+     * @param tcpPort  the peer's TCP Port
+     * @param toFile   the File object representing the location of the download file (if null get location by default)
+     * @param listener the listener of the download's progress (or null)
+     * @throws IOException              I/O error
+     * @throws IllegalArgumentException Unavailable file error
+     */
+    public void download(String filename, InetAddress host, int tcpPort, File toFile, TransferListener listener)
+            throws IOException, IllegalArgumentException {
 
         File downloadedFile = (toFile == null) ? new File(downloadDir.getAbsoluteDirPath(), filename) : toFile;
+        File partFile = partFile(downloadedFile);
+        // Resume from whatever was received before
+        long offset = partFile.isFile() ? partFile.length() : 0;
+        if (offset > 0) System.out.println("Resuming the file: " + filename + " from byte: " + offset);
+
+        try (FileChannel fileChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+
+            FileTransferProtocol.Response response;
+            long end;
+            do {
+                try {
+                    response = downloadRange(filename, host, tcpPort, fileChannel, offset, FileTransferProtocol.UNTIL_END, listener);
+                } catch (TransferIntegrityException e) {
+                    fileChannel.truncate(e.getOffset()); // Drop the corrupted bytes, keep the verified ones
+                    throw e;
+                }
+                end = response.getRange().getOffset() + response.getRange().getLength();
+                if (response.getRange().getLength() == 0 && end < response.getFileSize()) {
+                    throw new IOException("Peer sent no bytes of the file.");
+                }
+                offset = end;
+            } while (end < response.getFileSize());
+            fileChannel.truncate(response.getFileSize());
+        }
+        // Commit download
+        Files.move(partFile.toPath(), downloadedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Downloaded the file: " + filename + " from: " + host.getHostAddress());
+    }
+
+    /**
+     * Downloads a file announced by one or more peers.
+     * With several sources announcing the same content the file is fetched in parallel chunks from all of them;
+     * a file whose content is unknown is only fetched from the first source (files with the same name and size
+     * may still differ, and their chunks must not be mixed).
+     * If the file's content is known and already in the downloads directory nothing is downloaded: to the default
+     * location the download is skipped, to another location the local copy is copied.
+     *
+     * @param sources the peers announcing the file (all with the same filename or content)
+     * @param toFile  the File object representing the location of the download file (if null get location by default)
+     * @throws IOException              I/O error
+     * @throws IllegalArgumentException Unavailable file error
+     */
+    public void download(List<RemoteFilename> sources, File toFile) throws IOException, IllegalArgumentException {
+        download(sources, toFile, null);
+    }
+
+    /**
+     * Downloads a file announced by one or more peers, reporting its progress.
+     *
+     * @param sources  the peers announcing the file (all with the same filename or content)
+     * @param toFile   the File object representing the location of the download file (if null get location by default)
+     * @param listener the listener of the download's progress (or null)
+     * @throws IOException              I/O error
+     * @throws IllegalArgumentException Unavailable file error
+     */
+    public void download(List<RemoteFilename> sources, File toFile, TransferListener listener)
+            throws IOException, IllegalArgumentException {
+
+        if (sources.isEmpty()) throw new IllegalArgumentException("File is not available anymore.");
+
+        RemoteFilename first = sources.get(0);
+        File localCopy = findDownloaded(first);
+        if (localCopy != null) {
+            if (toFile != null && !toFile.getAbsoluteFile().equals(localCopy.getAbsoluteFile())) {
+                Files.copy(localCopy.toPath(), toFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (listener != null) listener.onStarted(localCopy.length(), localCopy.length());
+            System.out.println("Already downloaded the file: " + first.getFilename() + " (as: " + localCopy.getName() + ")");
+            return;
+        }
+        List<RemoteFilename> swarm = new ArrayList<>();
+        for (RemoteFilename source : sources) {
+            if (first.getContent() != null && first.getContent().equals(source.getContent())) swarm.add(source);
+        }
+        if (swarm.size() < 2) {
+            download(first.getFilename(), first.getHost(), first.getTcpPort(), toFile, listener);
+            return;
+        }
+        File downloadedFile = (toFile == null) ? new File(downloadDir.getAbsoluteDirPath(), first.getFilename()) : toFile;
+        new SwarmDownload(this, swarm, downloadedFile, listener).run();
+    }
+
+    /**
+     * Looks in the downloads directory for a file with the same content as a remote file
+     *
+     * @param remoteFilename the remote file
+     * @return the downloaded file with the same content or null if there is none (or the content is unknown)
+     */
+    public File findDownloaded(RemoteFilename remoteFilename) {
+
+        ContentId content = remoteFilename.getContent();
+        Directory.Entry entry = (content == null) ? null : downloadDir.findByContent(content);
+        return (entry == null) ? null : entry.getFile();
+    }
+
+    /**
+     * Requests a range of a file to the peer's server and writes it at the same position of a local file.
+     * If the peer can't serve the requested offset (its file is smaller) the local file is truncated to the
+     * offset the peer accepted, unless a bounded range (a swarm chunk) was requested: then the request fails, as
+     * other ranges of the file may be written meanwhile. The peer may send less than requested (a slice): the
+     * response tells what was sent.
+     *
+     * @param filename    the requested file's name
+     * @param host        the peer's host IPv4 Address
+     * @param tcpPort     the peer's TCP Port
+     * @param fileChannel the local file to write to
+     * @param offset      the position of the first requested byte
+     * @param length      the number of requested bytes (or FileTransferProtocol.UNTIL_END)
+     * @param listener    the listener of the received bytes (or null)
+     * @return the peer's response header
+     * @throws IOException              I/O error or connection closed before the whole range was received
+     * @throws IllegalArgumentException Unavailable file error
+     */
+    FileTransferProtocol.Response downloadRange(String filename, InetAddress host, int tcpPort,
+                                                FileChannel fileChannel, long offset, long length,
+                                                TransferListener listener)
+            throws IOException, IllegalArgumentException {
+
+        InetSocketAddress peer = new InetSocketAddress(host, tcpPort);
+        if (connectionPool.isLegacy(peer)) return downloadRangeOnce(filename, peer, fileChannel, offset, length, listener);
+
+        //noinspection InfiniteLoopStatement
+        while (true) {
+
+            ConnectionPool.PeerConnection connection = connectionPool.acquire(peer);
+            FileTransferProtocol.Response response;
+            try {
+                // Send request & receive file size & range
+                FileTransferProtocol.writeRequest(connection.getOutput(), FileTransferProtocol.QUEUED_VERSION,
+                        filename, offset, length, BlockCodec.acceptedCodecs());
+                connection.getOutput().flush();
+                response = FileTransferProtocol.readResponse(connection.getInput(), FileTransferProtocol.QUEUED_VERSION,
+                        queueNotice(filename, peer));
+            } catch (IOException e) {
+                connection.close();
+                if (connection.isReused()) continue; // Closed by the peer while idle: retry on a new connection
+                if (e instanceof EOFException) {
+                    // The peer dropped a keep-alive request: it only serves one request per connection
+                    connectionPool.markLegacy(peer);
+                    return downloadRangeOnce(filename, peer, fileChannel, offset, length, listener);
+                }
+                throw e;
+            }
+
+            if (!response.isAvailable()) {
+                connectionPool.release(connection);
+                throw new IllegalArgumentException("File is not available anymore.");
+            }
+            try {
+                checkRange(response, offset, length);
+                receiveRange(connection.getInput(), fileChannel, offset, response, true, listener);
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+            connectionPool.release(connection);
+            return response;
+        }
+    }
+
+    /**
+     * Requests a range of a file on a new connection used for this request only (version 2 peers).
+     * A peer that closes the connection without answering only serves whole files (version 1): it is asked for the
+     * whole file from then on.
+     *
+     * @param filename    the requested file's name
+     * @param peer        the peer's address
+     * @param fileChannel the local file to write to
+     * @param offset      the position of the first requested byte
+     * @param length      the number of requested bytes (or FileTransferProtocol.UNTIL_END)
+     * @param listener    the listener of the received bytes (or null)
+     * @return the peer's response header
+     * @throws IOException              I/O error or connection closed before the whole range was received
+     * @throws IllegalArgumentException Unavailable file error
+     */
+    private FileTransferProtocol.Response downloadRangeOnce(String filename, InetSocketAddress peer,
+                                                            FileChannel fileChannel, long offset, long length,
+                                                            TransferListener listener)
+            throws IOException, IllegalArgumentException {
+
+        if (connectionPool.isRangeless(peer)) return downloadWhole(filename, peer, fileChannel, length, listener);
+
+        try (SocketChannel clientChannel = SocketChannel.open(peer)) {
+
+            Socket clientSocket = clientChannel.socket();
+            clientSocket.setKeepAlive(true);
+            clientSocket.setSoTimeout(Constants.READ_TIMEOUT);
+            DataOutputStream outcome = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            DataInputStream income = new DataInputStream(clientSocket.getInputStream());
+            FileTransferProtocol.Response response;
+            try {
+                // Send request & receive file size & range
+                FileTransferProtocol.writeRequest(outcome, filename, offset, length);
+                response = FileTransferProtocol.readResponse(income);
+            } catch (EOFException e) {
+                response = null; // The peer dropped a ranged request: it only serves whole files
+            }
+            if (response != null) {
+                if (!response.isAvailable()) throw new IllegalArgumentException("File is not available anymore.");
+                checkRange(response, offset, length);
+                receiveRange(income, fileChannel, offset, response, false, listener);
+                return response;
+            }
+        }
+        connectionPool.markRangeless(peer);
+        return downloadWhole(filename, peer, fileChannel, length, listener);
+    }
+
+    /**
+     * Checks that a peer accepted the requested offset of a bounded range (an open range may restart lower)
+     *
+     * @param response the peer's response header
+     * @param offset   the requested offset
+     * @param length   the number of requested bytes (or FileTransferProtocol.UNTIL_END)
+     * @throws IOException the peer can't serve the bounded range
+     */
+    private static void checkRange(FileTransferProtocol.Response response, long offset, long length) throws IOException {
+
+        if (length != FileTransferProtocol.UNTIL_END && response.getRange().getOffset() != offset) {
+            throw new IOException("Peer can't serve the requested range.");
+        }
+    }
+
+    /**
+     * Requests a whole file on a new connection used for this request only (version 1 peers).
+     * The file is received from its start, so a partial download restarts.
+     *
+     * @param filename    the requested file's name
+     * @param peer        the peer's address
+     * @param fileChannel the local file to write to
+     * @param length      the number of requested bytes (only FileTransferProtocol.UNTIL_END can be served)
+     * @param listener    the listener of the received bytes (or null)
+     * @return the peer's response header (the whole file as range)
+     * @throws IOException              I/O error, connection closed before the whole file was received or a range
+     *                                  was requested
+     * @throws IllegalArgumentException Unavailable file error
+     */
+    private FileTransferProtocol.Response downloadWhole(String filename, InetSocketAddress peer,
+                                                        FileChannel fileChannel, long length, TransferListener listener)
+            throws IOException, IllegalArgumentException {
+
+        if (length != FileTransferProtocol.UNTIL_END) throw new IOException("Peer only serves whole files.");
+
+        try (SocketChannel clientChannel = SocketChannel.open(peer)) {
+
+            Socket clientSocket = clientChannel.socket();
+            clientSocket.setSoTimeout(Constants.READ_TIMEOUT);
+            DataOutputStream outcome = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            DataInputStream income = new DataInputStream(clientSocket.getInputStream());
+            // Send filename & receive file size
+            FileTransferProtocol.writeLegacyRequest(outcome, filename);
+            FileTransferProtocol.Response response = FileTransferProtocol.readLegacyResponse(income);
+            if (!response.isAvailable()) throw new IllegalArgumentException("File is not available anymore.");
+            receiveRange(income, fileChannel, fileChannel.size(), response, false, listener);
+            return response;
+        }
+    }
+
+    /**
+     * Downloads several files from the same peer through one keep-alive connection, pipelining the requests
+     * (sent up to Constants.PIPELINE_DEPTH ahead of the responses, which arrive back-to-back).
+     * Each file is received into its partial file (resuming it) and moved to the downloads directory once complete;
+     * a file the peer sends in slices is requested again, after the others, until it's complete.
+     *
+     * @param host      the peer's host IPv4 Address
+     * @param tcpPort   the peer's TCP Port
+     * @param filenames the requested files' names
+     * @return the names of the files that weren't available
+     * @throws IOException I/O error (the files received until then are kept)
+     */
+    public List<String> downloadFiles(InetAddress host, int tcpPort, List<String> filenames) throws IOException {
+
+        InetSocketAddress peer = new InetSocketAddress(host, tcpPort);
+        List<String> unavailable = new ArrayList<>();
+        Deque<String> remaining = new ArrayDeque<>(filenames);
+
+        while (!remaining.isEmpty()) {
+
+            if (connectionPool.isLegacy(peer)) {
+                for (String filename : remaining) {
+                    try {
+                        download(filename, host, tcpPort, null);
+                    } catch (IllegalArgumentException e) {
+                        unavailable.add(filename);
+                    }
+                }
+                break;
+            }
+
+            ConnectionPool.PeerConnection connection = connectionPool.acquire(peer);
+            int before = remaining.size();
+            String head = remaining.peekFirst();
+            try {
+                pipeline(connection, remaining, unavailable);
+            } catch (IOException e) {
+                connection.close();
+                boolean progressed = remaining.size() < before || !head.equals(remaining.peekFirst());
+                if (!progressed && connection.isReused()) continue; // Closed by the peer while idle
+                if (!progressed && e instanceof EOFException) {
+                    connectionPool.markLegacy(peer);
+                    continue;
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+            connectionPool.release(connection);
+        }
+        return unavailable;
+    }
+
+    /**
+     * Sends pipelined requests for a list of files and receives the responses in order.
+     *
+     * @param connection  the keep-alive connection
+     * @param remaining   the files to download (each one is removed once received or found unavailable, or moved
+     *                    to the end if only a slice was received)
+     * @param unavailable the list to add the unavailable files to
+     * @throws IOException I/O error
+     */
+    private void pipeline(ConnectionPool.PeerConnection connection, Deque<String> remaining, List<String> unavailable)
+            throws IOException {
+
+        List<String> batch = new ArrayList<>(remaining);
+        long[] offsets = new long[batch.size()];
+        int sent = 0;
+        for (int received = 0; received < batch.size(); received++) {
+
+            // Keep the pipeline full
+            while (sent < batch.size() && sent - received < Constants.PIPELINE_DEPTH) {
+                offsets[sent] = partFile(new File(downloadDir.getAbsoluteDirPath(), batch.get(sent))).length();
+                FileTransferProtocol.writeRequest(connection.getOutput(), FileTransferProtocol.QUEUED_VERSION,
+                        batch.get(sent), offsets[sent], FileTransferProtocol.UNTIL_END, BlockCodec.acceptedCodecs());
+                sent++;
+            }
+            connection.getOutput().flush();
+
+            String filename = batch.get(received);
+            FileTransferProtocol.Response response = FileTransferProtocol.readResponse(connection.getInput(),
+                    FileTransferProtocol.QUEUED_VERSION, queueNotice(filename, connection.getPeer()));
+            if (response.isAvailable()) {
+                File downloadedFile = new File(downloadDir.getAbsoluteDirPath(), filename);
+                File partFile = partFile(downloadedFile);
+                FileTransferProtocol.Range range = response.getRange();
+                boolean complete = range.getOffset() + range.getLength() >= response.getFileSize();
+                try (FileChannel fileChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    try {
+                        receiveRange(connection.getInput(), fileChannel, offsets[received], response, true, null);
+                    } catch (TransferIntegrityException e) {
+                        fileChannel.truncate(e.getOffset()); // Drop the corrupted bytes, keep the verified ones
+                        throw e;
+                    }
+                    if (complete) fileChannel.truncate(response.getFileSize());
+                }
+                if (!complete) {
+                    remaining.addLast(remaining.pollFirst()); // Ask for the next slice after the other files
+                    continue;
+                }
+                Files.move(partFile.toPath(), downloadedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Downloaded the file: " + filename + " from: " + connection.getPeer().getAddress().getHostAddress());
+            } else {
+                unavailable.add(filename);
+            }
+            remaining.pollFirst();
+        }
+    }
+
+    /**
+     * Creates the action that reports the queue notices of a request
+     *
+     * @param filename the requested file's name
+     * @param peer     the peer's address
+     * @return the action (receives the queue position)
+     */
+    private static IntConsumer queueNotice(String filename, InetSocketAddress peer) {
+
+        int[] reported = {0}; // The server repeats the position while it waits
+        return position -> {
+            if (position == reported[0]) return;
+            reported[0] = position;
+            System.out.println("Queued the file: " + filename + " by: " + peer.getAddress().getHostAddress()
+                    + " at position: " + position);
+        };
+    }
+
+    /**
+     * Obtains the partial file of a download
+     *
+     * @param downloadedFile the download target
+     * @return the partial file
+     */
+    private static File partFile(File downloadedFile) {
+        return new File(downloadedFile.getPath() + Constants.PARTIAL_DOWNLOAD_EXTENSION);
+    }
+
+    /**
+     * Receives the range announced in a response header into the same position of a local file.
+     * If the peer can't serve the requested offset the local file is truncated to the offset the peer accepted.
+     * For verified requests the bytes are hashed while they're received and checked against the peer's trailer.
+     * Compressed responses are received frame by frame and inflated into the file.
+     *
+     * @param input       the connection input
+     * @param fileChannel the local file to write to
+     * @param offset      the requested offset
+     * @param response    the peer's response header
+     * @param verified    true if the response has a digest trailer (verified request), false otherwise
+     * @param listener    the listener of the received bytes (or null)
+     * @throws IOException                I/O error or connection closed before the whole range was received
+     * @throws TransferIntegrityException the received bytes don't match the peer's digest
+     */
+    private void receiveRange(DataInputStream input, FileChannel fileChannel, long offset,
+                              FileTransferProtocol.Response response, boolean verified, TransferListener listener)
+            throws IOException {
+
+        FileTransferProtocol.Range range = response.getRange();
+        if (range.getOffset() < offset) fileChannel.truncate(range.getOffset());
+        if (listener != null) listener.onStarted(response.getFileSize(), range.getOffset());
+        MessageDigest digest = verified ? FileTransferProtocol.newDigest() : null;
+        // Stream socket bytes straight into the file (memory stays flat regardless of file size)
+        long readBytes = (response.getCodec() == FileTransferProtocol.CODEC_DEFLATE)
+                ? inflateFromSocket(input, fileChannel, range.getOffset(), range.getLength(), digest, listener)
+                : transferFromSocket(input, fileChannel, range.getOffset(), range.getLength(), digest, listener);
+        if (readBytes < range.getLength()) {
+            throw new IOException("Connection closed before the whole file was received (kept to resume later).");
+        }
+        if (verified) {
+            byte[] expected = new byte[FileTransferProtocol.DIGEST_SIZE];
+            input.readFully(expected);
+            if (!MessageDigest.isEqual(expected, digest.digest())) {
+                throw new TransferIntegrityException("Received bytes don't match the peer's digest.", range.getOffset());
+            }
+        }
+    }
+
+    /**
+     * Streams bytes from a socket into a region of a file through a fixed-size buffer.
+     * The bytes are read through the socket's stream (a channel read would ignore the socket's read timeout).
+     * Positional writes allow several ranges of the same file to be received concurrently, in any order.
+     *
+     * @param source      the socket input to read from
+     * @param fileChannel the file to write to
+     * @param position    the file position of the first received byte
+     * @param count       the number of bytes to receive
+     * @param digest      the digest to update with the received bytes (or null)
+     * @param listener    the listener of the received bytes (or null)
+     * @return the number of bytes received (less than count if the peer closed the connection)
+     * @throws IOException I/O error or nothing received for Constants.READ_TIMEOUT
+     */
+    private long transferFromSocket(InputStream source, FileChannel fileChannel, long position, long count,
+                                    MessageDigest digest, TransferListener listener) throws IOException {
 
-        Socket clientSocket = new Socket(host, tcpPort);
+        ByteBuffer buffer = ByteBuffer.allocate(Constants.TRANSFER_BUFFER_SIZE);
+        long readBytes = 0;
+        while (readBytes < count) {
 
-        DataOutputStream outcome = new DataOutputStream(clientSocket.getOutputStream());
-        DataInputStream income = new DataInputStream(clientSocket.getInputStream());
-        // Send filename
-        outcome.writeInt(filename.length());
-        outcome.write(filename.getBytes(), 0, filename.length());
-        // Receive file size
-        Long lon = income.readLong();
-        int fileSize = lon.intValue();
+            int tmp = source.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), count - readBytes));
+            if (tmp < 0) break; // Peer closed the connection
+            buffer.clear();
+            buffer.limit(tmp);
+            if (digest != null) digest.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                readBytes += fileChannel.write(buffer, position + readBytes);
+            }
+            if (listener != null) listener.onReceived(tmp);
+        }
+        return readBytes;
+    }
+
+    /**
+     * Receives the Deflate frames of a compressed response into a region of a file.
+     *
+     * @param input       the connection input
+     * @param fileChannel the file to write to
+     * @param position    the file position of the first received byte
+     * @param count       the number of file bytes announced
+     * @param digest      the digest to update with the file bytes (or null)
+     * @param listener    the listener of the received bytes (or null)
+     * @return the number of file bytes received
+     * @throws IOException I/O error, invalid frame or more bytes than announced
+     */
+    private long inflateFromSocket(DataInputStream input, FileChannel fileChannel, long position, long count,
+                                   MessageDigest digest, TransferListener listener) throws IOException {
+
+        BlockCodec codec = new BlockCodec();
+        byte[] block = new byte[BlockCodec.BLOCK_SIZE];
+        long readBytes = 0;
         try {
-            if (fileSize < 0) throw new IllegalArgumentException("File is not available anymore.");
-            // Prepare file bytes
-            byte[] fileBytes = new byte[fileSize];
-            int readBytes = 0;
-            while (readBytes < fileSize) {
-                int offset = readBytes;
-                int tmp = income.read(fileBytes, offset, (fileBytes.length - offset));
-                if (tmp < 0) break;
-                readBytes += tmp;
-            }
-            System.out.println("READ BYTES: " + readBytes);
-            // Write to file
-            Files.write(downloadedFile.toPath(), fileBytes);
-            System.out.println("Downloaded the file: " + filename + " to: " + clientSocket.getInetAddress().getHostAddress());
-        } finally {
+            int length;
+            while ((length = codec.decode(input, block)) >= 0) {
 
-            // Close streams
-            outcome.close();
-            income.close();
-            clientSocket.close();
+                if (readBytes + length > count) throw new IOException("Received more bytes than announced.");
+                if (digest != null) digest.update(block, 0, length);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+                while (buffer.hasRemaining()) {
+                    readBytes += fileChannel.write(buffer, position + readBytes);
+                }
+                if (listener != null) listener.onReceived(length);
+            }
+        } catch (EOFException e) {
+            return readBytes; // Peer closed the connection
+        } finally {
+            codec.end();
         }
+        return readBytes;
     }
 
     /**
@@ -138,59 +675,109 @@ public class TcpCommunication {
     private class TcpConnection implements Runnable {
 
         private final Socket connectionSocket;
+        private volatile boolean closedIdle;
 
         private TcpConnection(Socket connectionSocket) {
             this.connectionSocket = connectionSocket;
         }
 
+        /**
+         * Closes the connection while it waits for its next request, so its thread serves another connection
+         */
+        private void closeIdle() {
+
+            closedIdle = true;
+            try {
+                connectionSocket.close(); // Fails the blocked read
+            } catch (IOException e) {
+                Logger.getLogger(Directory.class.getName()).log(Level.WARNING, "Closing an idle connection failed.", e);
+            }
+        }
+
         @Override
         public void run() {
+            upload();
+        }
 
-            FileInputStream fis = null;
-            BufferedInputStream bis = null;
+        /**
+         * Replies to the download request (or, on a keep-alive connection, to every request until the client
+         * closes the connection or it's idle for too long). Each response waits for an upload slot first.
+         */
+        private void upload() {
+
+            FileChannel fileChannel = null;
             DataInputStream income = null;
             DataOutputStream outcome = null;
+            UploadThrottle.Limiter limiter = uploadThrottle.open();
+            UploadScheduler.Ticket ticket = null;
+            int served = 0;
 
-            // Reply to download request
+            // Reply to download requests
             try {
                 // Open income & outcome connection
                 income = new DataInputStream(connectionSocket.getInputStream());
-                outcome = new DataOutputStream(connectionSocket.getOutputStream());
-                // Request file's name & size to download
-                int filenameSize = income.readInt();
-                byte[] stringBytes = new byte[filenameSize];
-                income.readFully(stringBytes, 0, stringBytes.length);
-                String filename = new String(stringBytes);
-                System.out.println("Requested the file: " + filename);
-                // Get File by received filename
-                File requestFile = sharedDir.getFile(filename);
-                // Send file size
-                long fileSize = (requestFile == null) ? -1 : requestFile.length();
-                outcome.writeLong(fileSize);
-                if (requestFile == null) throw new IllegalArgumentException("File not available anymore.");
-                // Send file
-                byte[] fileBytes = new byte[(int) fileSize];
-                fis = new FileInputStream(requestFile);
-                bis = new BufferedInputStream(fis);
-                int readBytes = 0;
-                while (readBytes < fileSize) {
-
-                    int offset = readBytes;
-                    int tmp = bis.read(fileBytes, offset, fileBytes.length);
-                    if (tmp < 0) break;
-                    readBytes += tmp;
-                }
-                outcome.write(fileBytes, 0, fileBytes.length); // Writes file to socket
-                // Flush stream
-                outcome.flush();
-                System.out.println("Uploaded the file: " + filename + " to: " + connectionSocket.getInetAddress().getHostAddress());
+                outcome = new DataOutputStream(new BufferedOutputStream(connectionSocket.getOutputStream()));
+                connectionSocket.setSoTimeout(Constants.KEEP_ALIVE_TIMEOUT);
+
+                FileTransferProtocol.Request request;
+                do {
+                    // Request file's name (and range) to download
+                    if (served > 0) idleConnections.add(this); // May be closed to free the thread meanwhile
+                    request = FileTransferProtocol.readRequest(income);
+                    idleConnections.remove(this);
+                    String filename = request.getFilename();
+                    System.out.println("Requested the file: " + filename);
+                    // Get File by received filename
+                    File requestFile = sharedDir.getFile(filename);
+                    // Send file size (and range)
+                    long fileSize = (requestFile == null) ? FileTransferProtocol.UNAVAILABLE : requestFile.length();
+                    FileTransferProtocol.Range range = FileTransferProtocol.resolveRange(request, Math.max(fileSize, 0));
+                    byte codec = BlockCodec.choose(request, filename);
+                    if (requestFile != null && range.getLength() > 0) ticket = awaitSlot(request, fileSize, range, outcome);
+                    FileTransferProtocol.writeResponse(outcome, request, fileSize, range, codec);
+                    served++;
+                    if (requestFile == null) {
+                        if (!request.isKeepAlive()) throw new IllegalArgumentException("File not available anymore.");
+                        System.out.println("Not available: " + filename);
+                        continue;
+                    }
+                    // Send file (streams from disk to socket without buffering the whole file in heap)
+                    fileChannel = FileChannel.open(requestFile.toPath(), StandardOpenOption.READ);
+                    MessageDigest digest = request.isVerified() ? FileTransferProtocol.newDigest() : null;
+                    long sentBytes;
+                    if (digest == null) {
+                        sentBytes = transferToSocket(fileChannel, range.getOffset(), range.getLength(), limiter);
+                    } else if (codec == FileTransferProtocol.CODEC_DEFLATE) {
+                        sentBytes = deflateToSocket(fileChannel, range.getOffset(), range.getLength(), digest, outcome, limiter);
+                    } else {
+                        sentBytes = streamToSocket(fileChannel, range.getOffset(), range.getLength(), digest, limiter);
+                    }
+                    fileChannel.close();
+                    fileChannel = null;
+                    if (sentBytes < range.getLength()) throw new IOException("File shrank while uploading.");
+                    if (digest != null) {
+                        // Trailer
+                        if (codec == FileTransferProtocol.CODEC_DEFLATE) outcome.write(BlockCodec.endFrame().array());
+                        outcome.write(digest.digest());
+                        outcome.flush();
+                    }
+                    uploadScheduler.release(ticket);
+                    ticket = null;
+                    System.out.println("Uploaded the file: " + filename + " to: " + connectionSocket.getInetAddress().getHostAddress());
+                } while (request.isKeepAlive());
 
-            } catch (IOException | IllegalArgumentException e) {
-                Logger.getLogger(Directory.class.getName()).log(Level.WARNING, "TCP Connection failed.", e);
+            } catch (EOFException | SocketTimeoutException e) {
+                // Keep-alive connection closed by the client or idle for too long
+                if (served == 0) Logger.getLogger(Directory.class.getName()).log(Level.WARNING, "TCP Connection failed.", e);
+            } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                if (!closedIdle) Logger.getLogger(Directory.class.getName()).log(Level.WARNING, "TCP Connection failed.", e);
             } finally {
+                idleConnections.remove(this);
+                openConnections.decrementAndGet();
+                uploadScheduler.release(ticket);
+                limiter.close();
                 try {
-                    if (fis != null) fis.close();
-                    if (bis != null) bis.close();
+                    if (fileChannel != null) fileChannel.close();
                     if (outcome != null) outcome.close();
                     if (income != null) income.close();
                     connectionSocket.close();
@@ -199,5 +786,148 @@ public class TcpCommunication {
                 }
             }
         }
+
+        /**
+         * Waits for an upload slot to send a response, sending the queue position to queued requests meanwhile
+         * (again every Constants.QUEUE_NOTICE_INTERVAL)
+         *
+         * @param request  the request
+         * @param fileSize the requested file's size
+         * @param range    the range that will be sent
+         * @param outcome  the connection output
+         * @return the ticket holding the slot (to be released once the response is sent)
+         * @throws IOException I/O error or interrupted while waiting
+         */
+        private UploadScheduler.Ticket awaitSlot(FileTransferProtocol.Request request, long fileSize,
+                                                 FileTransferProtocol.Range range, DataOutputStream outcome)
+                throws IOException {
+
+            UploadScheduler.Ticket ticket = uploadScheduler.ticket(fileSize, fileSize - range.getOffset(), null);
+            if (uploadScheduler.tryAcquire(ticket)) return ticket;
+
+            try {
+                do {
+                    int position = uploadScheduler.position(ticket);
+                    if (request.isQueued() && position > 0) FileTransferProtocol.writeQueued(outcome, position);
+                } while (!uploadScheduler.await(ticket, Constants.QUEUE_NOTICE_INTERVAL));
+                return ticket;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                uploadScheduler.release(ticket);
+                throw new InterruptedIOException("Interrupted while waiting for an upload slot.");
+            } catch (IOException e) {
+                uploadScheduler.release(ticket); // The requester went away while queued
+                throw e;
+            }
+        }
+
+        /**
+         * Streams a region of a file to the connection socket.
+         * Uses the socket channel when available so the kernel can copy straight from disk (zero-copy),
+         * otherwise falls back to a channel wrapping the socket output stream.
+         *
+         * @param fileChannel the file to send
+         * @param position    the position of the first byte to send
+         * @param count       the number of bytes to send
+         * @param limiter     the connection's upload bandwidth limiter
+         * @return the number of bytes sent
+         * @throws IOException I/O error
+         */
+        private long transferToSocket(FileChannel fileChannel, long position, long count,
+                                      UploadThrottle.Limiter limiter) throws IOException {
+
+            WritableByteChannel target = (connectionSocket.getChannel() != null)
+                    ? connectionSocket.getChannel()
+                    : Channels.newChannel(connectionSocket.getOutputStream());
+
+            long sentBytes = 0;
+            while (sentBytes < count) {
+
+                long chunk = uploadThrottle.acquire(limiter, Math.min(Constants.TRANSFER_CHUNK_SIZE, count - sentBytes));
+                long tmp = fileChannel.transferTo(position + sentBytes, chunk, target);
+                uploadThrottle.settle(limiter, chunk, Math.max(tmp, 0));
+                if (tmp <= 0) break; // End of file reached
+                sentBytes += tmp;
+            }
+            return sentBytes;
+        }
+
+        /**
+         * Streams a region of a file to the connection socket through a buffer, hashing the bytes on the way
+         * (a verified transfer can't be zero-copy, but the file is still read only once).
+         *
+         * @param fileChannel the file to send
+         * @param position    the position of the first byte to send
+         * @param count       the number of bytes to send
+         * @param digest      the digest to update with the sent bytes
+         * @param limiter     the connection's upload bandwidth limiter
+         * @return the number of bytes sent
+         * @throws IOException I/O error
+         */
+        private long streamToSocket(FileChannel fileChannel, long position, long count, MessageDigest digest,
+                                    UploadThrottle.Limiter limiter) throws IOException {
+
+            WritableByteChannel target = (connectionSocket.getChannel() != null)
+                    ? connectionSocket.getChannel()
+                    : Channels.newChannel(connectionSocket.getOutputStream());
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Constants.TRANSFER_BUFFER_SIZE);
+            long sentBytes = 0;
+            while (sentBytes < count) {
+
+                long granted = uploadThrottle.acquire(limiter, Math.min(buffer.capacity(), count - sentBytes));
+                buffer.clear();
+                buffer.limit((int) granted);
+                int tmp = fileChannel.read(buffer, position + sentBytes);
+                uploadThrottle.settle(limiter, granted, Math.max(tmp, 0));
+                if (tmp <= 0) break; // End of file reached
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    sentBytes += target.write(buffer);
+                }
+            }
+            return sentBytes;
+        }
+
+        /**
+         * Streams a region of a file to the connection as Deflate frames, hashing the file bytes on the way
+         * (the end frame isn't sent).
+         *
+         * @param fileChannel the file to send
+         * @param position    the position of the first byte to send
+         * @param count       the number of bytes to send
+         * @param digest      the digest to update with the file bytes
+         * @param outcome     the connection output
+         * @param limiter     the connection's upload bandwidth limiter (charged with the frame bytes)
+         * @return the number of file bytes sent
+         * @throws IOException I/O error
+         */
+        private long deflateToSocket(FileChannel fileChannel, long position, long count, MessageDigest digest,
+                                     DataOutputStream outcome, UploadThrottle.Limiter limiter) throws IOException {
+
+            BlockCodec codec = new BlockCodec();
+            byte[] block = new byte[BlockCodec.BLOCK_SIZE];
+            long sentBytes = 0;
+            try {
+                while (sentBytes < count) {
+
+                    ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, count - sentBytes));
+                    int tmp = fileChannel.read(buffer, position + sentBytes);
+                    if (tmp <= 0) break; // End of file reached
+                    digest.update(block, 0, tmp);
+                    ByteBuffer frame = codec.encode(block, tmp);
+                    while (frame.hasRemaining()) {
+                        int granted = (int) uploadThrottle.acquire(limiter, frame.remaining());
+                        outcome.write(frame.array(), frame.position(), granted);
+                        frame.position(frame.position() + granted);
+                    }
+                    sentBytes += tmp;
+                }
+            } finally {
+                codec.end();
+            }
+            return sentBytes;
+        }
     }
 }
@@ -0,0 +1,35 @@
+package networking;
+
+import java.io.IOException;
+
+/**
+ * Signals that the bytes received for a file range don't match the digest sent by the peer.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public class TransferIntegrityException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+
+    /**
+     * Creates the exception
+     *
+     * @param message the detail message
+     * @param offset  the file position of the first byte of the corrupted range
+     */
+    public TransferIntegrityException(String message, long offset) {
+        super(message);
+        this.offset = offset;
+    }
+
+    /**
+     * Obtains the file position of the first byte of the corrupted range (every byte before it was verified)
+     *
+     * @return the file position
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
@@ -0,0 +1,36 @@
+package networking;
+
+import domain.RemoteFilename;
+
+/**
+ * Receives the progress of a download, as the bytes are written to the file.
+ * <p>
+ * Methods may be called from several threads at once (multi-peer downloads) and should return quickly.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public interface TransferListener {
+
+    /**
+     * The file size is known and the peers start sending from a position (the bytes before it were received before).
+     * Called again if a download restarts from another position.
+     *
+     * @param fileSize the file size
+     * @param offset   the number of bytes already received
+     */
+    void onStarted(long fileSize, long offset);
+
+    /**
+     * More bytes were written to the file
+     *
+     * @param bytes the number of bytes
+     */
+    void onReceived(long bytes);
+
+    /**
+     * A source stopped taking part in the download (it didn't answer, announced another file size or failed too often)
+     *
+     * @param source the source
+     */
+    void onSourceDropped(RemoteFilename source);
+}
@@ -1,19 +1,25 @@
 package networking;
 
+import domain.ContentId;
 import domain.Directory;
-import domain.RemoteFilename;
 import domain.RemoteFilenameList;
+import settings.AppSettings;
 import settings.Application;
 import util.Constants;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static util.Constants.BROADCAST_STRING;
+import static util.Constants.LOCAL_ADDRESSES_REFRESH;
 import static util.Constants.SEND_LIST_DELAY;
 
 /**
@@ -21,15 +27,38 @@ import static util.Constants.SEND_LIST_DELAY;
  * <p>
  * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
  */
-public class UdpCommunication {
+public class UdpCommunication implements Observer {
 
     private final DatagramSocket udpSocket;
     private final Integer tcpPort;
     private final Thread receiverThread;
+    private final PacketPipeline pipeline;
     private final RemoteFilenameList filenames;
     private final Directory sharedDirectory;
     private final Timer sendingTimer;
-    private final Set<InetAddress> addresses;
+    private final Set<InetAddress> addresses; // Known addresses and peers heard from (announced to directly)
+    private final Set<InetAddress> seeds; // Known addresses (invited to join the membership)
+    private final Set<InetAddress> catalogPeers; // Peers heard speaking version 2 or later
+    private final boolean legacyDiscovery; // Version 1 peers may be listening (see discovery.legacy)
+    private final Membership membership;
+    private final LocalAddresses localAddresses;
+    private final String discoveryMode;
+    private final InetAddress discoveryAddress; // Broadcast address or multicast group (null: unicast only)
+    private final PeerCatalogs peerCatalogs;
+    // Own catalog (guarded by catalogLock)
+    private final Object catalogLock;
+    private Map<String, ContentId> announcedFiles;
+    private int catalogVersion;
+    // Encoded packets cache (guarded by catalogLock)
+    private final AtomicBoolean catalogChanged;
+    private List<byte[]> heartbeatPackets;
+    private List<byte[]> fullPackets;
+    private List<byte[]> deltaPackets;
+    private List<byte[]> listPackets;
+    private String encodedUsername;
+    // Pipeline counters at the last report (sender timer only)
+    private long reportedDropped;
+    private long reportedPeak;
 
     /**
      * Creates an UDP Connection
@@ -48,9 +77,80 @@ public class UdpCommunication {
         this.tcpPort = tcpPort;
         sendingTimer = new Timer();
         receiverThread = new Thread(new UdpReceiver());
+        pipeline = new PacketPipeline(Application.settings().getUdpWorkers(), Application.settings().getUdpQueueSize(),
+                this::handleReceived);
         sharedDirectory = sharedDir;
         this.filenames = filenames;
-        addresses = new HashSet<>();
+        addresses = ConcurrentHashMap.newKeySet();
+        localAddresses = new LocalAddresses();
+        discoveryMode = Application.settings().getDiscoveryMode();
+        discoveryAddress = openDiscovery();
+        peerCatalogs = new PeerCatalogs(filenames);
+        catalogLock = new Object();
+        announcedFiles = null;
+        catalogVersion = new Random().nextInt(Integer.MAX_VALUE); // Peers detect a restart as a version gap
+        catalogChanged = new AtomicBoolean(true);
+        seeds = ConcurrentHashMap.newKeySet();
+        catalogPeers = ConcurrentHashMap.newKeySet();
+        legacyDiscovery = Application.settings().isLegacyDiscovery();
+        membership = new Membership(this::send, new MembershipListener(), localAddresses::contains, catalogVersion);
+        sharedDirectory.addObserver(this);
+    }
+
+    /**
+     * Prepares the socket for the configured discovery mode: multicast joins the group on every interface (falling
+     * back to broadcast if it can't), broadcast and unicast need nothing else.
+     *
+     * @return the address every announcement is sent to or null if only sent to the known addresses
+     */
+    private InetAddress openDiscovery() {
+
+        if (AppSettings.UNICAST_DISCOVERY.equals(discoveryMode)) return null;
+        if (AppSettings.MULTICAST_DISCOVERY.equals(discoveryMode)) {
+            try {
+                InetAddress group = Application.settings().getMulticastGroup();
+                int joined = joinMulticastGroup(group);
+                if (joined > 0) {
+                    System.out.println("[Discovery] multicast group " + group.getHostAddress() + " on " + joined + " interfaces");
+                    return group;
+                }
+            } catch (IOException e) {
+                Logger.getLogger(UdpCommunication.class.getName()).log(Level.WARNING, "Joining the multicast group failed.", e);
+            }
+            System.out.println("[Discovery] multicast unavailable, using broadcast");
+        }
+        try {
+            return InetAddress.getByName(BROADCAST_STRING);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Broadcast address is invalid.", e);
+        }
+    }
+
+    /**
+     * Joins a multicast group on every interface that is up and supports multicast (the ones already joined are
+     * kept) and sets the announcements TTL
+     *
+     * @param group the multicast group
+     * @return the number of interfaces that joined the group
+     * @throws IOException the socket wasn't opened through a channel or setting the TTL failed
+     */
+    private int joinMulticastGroup(InetAddress group) throws IOException {
+
+        DatagramChannel channel = udpSocket.getChannel();
+        if (channel == null) throw new IOException("Multicast needs a socket opened through a datagram channel.");
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Application.settings().getMulticastTtl());
+
+        int joined = 0;
+        for (NetworkInterface anInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!anInterface.isUp() || !anInterface.supportsMulticast()) continue;
+            try {
+                channel.join(group, anInterface); // Returns the existing membership if already joined
+                joined++;
+            } catch (IOException | UnsupportedOperationException e) {
+                // Interface without an address of the group's family
+            }
+        }
+        return joined;
     }
 
     /**
@@ -58,12 +158,15 @@ public class UdpCommunication {
      */
     public void start() {
 
-        // Start Receiver
+        // Start Workers & Receiver
+        pipeline.start();
         receiverThread.start();
 
-        // Start Sender
+        // Start Sender & Membership
+        membership.start(sendingTimer);
         sendingTimer.scheduleAtFixedRate(
                 new UdpSender(), SEND_LIST_DELAY * 1000, Application.settings().getBroadcastTimeInterval() * 1000);
+        sendingTimer.schedule(new LocalAddressesRefresher(), LOCAL_ADDRESSES_REFRESH, LOCAL_ADDRESSES_REFRESH);
     }
 
     /**
@@ -73,114 +176,360 @@ public class UdpCommunication {
      */
     private void receiverServer() throws IOException {
 
-        byte[] data = new byte[Constants.PAYLOAD_SIZE];
-
         /*
-        A new DatagramPacket object is created, the constructor used defines only a
-        buffer and the buffer size. IP address and port number will be set when the
-        datagram is received (source IP address and source port number).
+        Every datagram is received into the same buffer and copied into a preallocated slot of the pipeline,
+        where a worker reads it in place: heartbeats and file lists of known files are handled without
+        allocating anything. This thread does nothing else, so the socket's receive buffer is drained
+        as fast as packets arrive.
+        A socket opened through a channel receives into a direct buffer (no copy from native memory);
+        otherwise a reused DatagramPacket fills the heap buffer.
         */
-        DatagramPacket udpPacket = new DatagramPacket(data, data.length);
+        DatagramChannel channel = udpSocket.getChannel();
+        ByteBuffer buffer;
+        DatagramPacket udpPacket = null;
+        if (channel != null) {
+            buffer = ByteBuffer.allocateDirect(Constants.PAYLOAD_SIZE);
+        } else {
+            buffer = ByteBuffer.allocate(Constants.PAYLOAD_SIZE);
+            udpPacket = new DatagramPacket(buffer.array(), buffer.capacity());
+        }
         //noinspection InfiniteLoopStatement
         while (true) {
 
-            udpPacket.setData(data);
-            udpPacket.setLength(data.length);
+            InetAddress host;
+            int port;
+            buffer.clear();
+            if (channel != null) {
+                // The channel reuses the sender's address object while the sender doesn't change
+                InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+                buffer.flip();
+                host = sender.getAddress();
+                port = sender.getPort();
+            } else {
+                udpPacket.setLength(buffer.capacity());
+                udpSocket.receive(udpPacket);
+                buffer.limit(udpPacket.getLength());
+                host = udpPacket.getAddress();
+                port = udpPacket.getPort();
+            }
 
-            /*
-            The receive() method is called to receive the datagram (client request),
-            if no datagram has been received, the thread will block until one arrives.
-            */
-            udpSocket.receive(udpPacket);
+            pipeline.offer(buffer, host, port);
+        }
+    }
 
-            if (!isLocalAddress(udpPacket.getAddress())) {
+    /**
+     * Handles a received packet (on a pipeline worker): heartbeats and version 1 file lists are applied in place,
+     * other announcements are copied and parsed
+     *
+     * @param packet  the packet view
+     * @param host    the sender's address
+     * @param udpPort the sender's UDP port
+     */
+    private void handleReceived(RemoteFilenameListProtocol.PacketView packet, InetAddress host, int udpPort) {
+
+        try {
+            if (localAddresses.contains(host)) return;
+            if (packet.isAnnouncement() || packet.isMembership() || packet.hasCatalogTrailer()) catalogPeers.add(host);
+
+            if (packet.isMembership()) {
+
+                byte[] data = packet.toArray();
+                membership.handle(MembershipProtocol.parse(data, data.length, host, udpPort));
+                return;
+            }
+            if (!membership.isMember(host)) {
+                addresses.add(host); // Announced to directly, unless it joins the membership
+                if (speaksCatalog(host)) membership.invite(host, udpPort);
+            }
 
-                addresses.add(udpPacket.getAddress());
+            if (packet.isHeartbeat() || packet.hasCatalogTrailer()) {
 
-                List<RemoteFilename> newItems = RemoteFilenameListProtocol.parsePacket(udpPacket.getData(), udpPacket.getAddress());
+                if (peerCatalogs.applyHeartbeat(host, packet)) requestResync(host, udpPort);
+            } else if (packet.isFileList()) {
 
-                if (!newItems.isEmpty()) {
-                    System.out.printf("[Received] <");
-                    for (RemoteFilename f :
-                            newItems) {
-                        System.out.printf(" %s;", f.getFilename());
+                int added = peerCatalogs.applyList(host, packet);
+                if (added > 0) System.out.println("[Received] " + added + " new files from: " + host.getHostAddress());
+            } else if (packet.isAnnouncement()) {
+
+                handleAnnouncement(packet.toArray(), host, udpPort);
+            }
+        } catch (IllegalStateException | IndexOutOfBoundsException e) {
+            Logger.getLogger(UdpCommunication.class.getName()).log(Level.WARNING, "Ignored a malformed packet.", e);
+        }
+    }
+
+    /**
+     * Checks if a peer can be sent version 2 (or later) packets: it was heard speaking them or no version 1 peer is
+     * expected (a version 1 peer stops receiving at the first packet of another version)
+     *
+     * @param host the peer's address
+     * @return true if it can, false otherwise
+     */
+    private boolean speaksCatalog(InetAddress host) {
+        return !legacyDiscovery || catalogPeers.contains(host);
+    }
+
+    /**
+     * Parses and handles a received catalog announcement
+     *
+     * @param data    the packet data
+     * @param host    the sender's address
+     * @param udpPort the sender's UDP port
+     */
+    private void handleAnnouncement(byte[] data, InetAddress host, int udpPort) {
+
+        try {
+            handleAnnouncement(RemoteFilenameListProtocol.parseAnnouncement(data, data.length, host), udpPort);
+        } catch (IllegalStateException e) {
+            Logger.getLogger(UdpCommunication.class.getName()).log(Level.WARNING, "Ignored a malformed packet.", e);
+        }
+    }
+
+    /**
+     * Handles a received catalog announcement (requesting or sending a whole catalog if needed).
+     *
+     * @param announcement the announcement
+     * @param udpPort      the sender's UDP port
+     */
+    private void handleAnnouncement(Announcement announcement, int udpPort) {
+
+        if (announcement.getType() == Announcement.Type.RESYNC) {
+
+            System.out.println("[Resync] requested by: " + announcement.getHost().getHostAddress());
+            synchronized (catalogLock) {
+                if (deltaPackets != null && announcement.getCatalogVersion() == catalogVersion - 1) {
+                    // The requester only missed the last change
+                    send(deltaPackets, Collections.singleton(announcement.getHost()), udpPort);
+                } else if (announcedFiles != null) {
+                    if (fullPackets == null) {
+                        fullPackets = RemoteFilenameListProtocol.encodeAnnouncement(Announcement.Type.FULL, catalogVersion,
+                                announcedFiles, Collections.emptySet(), tcpPort);
                     }
-                    System.out.println(" >");
-                    filenames.addAll(newItems);
+                    send(fullPackets, Collections.singleton(announcement.getHost()), udpPort);
                 }
             }
+            return;
         }
+
+        if (peerCatalogs.apply(announcement)) requestResync(announcement.getHost(), udpPort);
+    }
+
+    /**
+     * Requests the whole catalog of a peer (or only its last change, if the known catalog is just one version behind)
+     *
+     * @param host    the peer's address
+     * @param udpPort the peer's UDP port
+     */
+    private void requestResync(InetAddress host, int udpPort) {
+
+        System.out.println("[Resync] requesting from: " + host.getHostAddress());
+        send(RemoteFilenameListProtocol.encodeAnnouncement(Announcement.Type.RESYNC, peerCatalogs.getVersion(host),
+                Collections.emptySet(), Collections.emptySet(), tcpPort),
+                Collections.singleton(host), udpPort);
     }
 
     /**
-     * Sends the remote filenames list through broadcast and to any known IPv4 address by the app.
+     * Announces the shared files catalog through broadcast (or to the multicast group, see discovery.mode) and to any
+     * known IPv4 address by the app.
+     * The whole catalog is only sent on the first announcement; afterwards only the changes (with a new catalog
+     * version) or a heartbeat if nothing changed. Peers that miss something request the whole catalog.
+     * <p>
+     * The shared directory is only listed (and the packets encoded) again after the directory reported a change or
+     * the username changed; otherwise the cached heartbeat packets are resent as they are.
+     * <p>
+     * Members of the gossip membership aren't announced to: they learn the catalog version through gossip and request
+     * the catalog when it changes.
+     * <p>
+     * While version 1 peers may be listening (see discovery.legacy), broadcasts and the peers not heard speaking
+     * version 2 get the whole catalog as version 1 file lists instead, which upgraded peers read as heartbeats.
+     * Multicast announcements don't need them, as version 1 peers never join the group.
      *
      * @throws IOException I/O error
      */
     private void sendRemoteFiles() throws IOException {
 
-        addresses.add(InetAddress.getByName(BROADCAST_STRING));
+        List<byte[]> dataList;
+        List<byte[]> fileLists;
+        synchronized (catalogLock) {
+
+            String username = Application.settings().getUsername();
+            if (!username.equals(encodedUsername)) {
+                // Peers drop the catalog of a renamed peer, so announce it whole again
+                encodedUsername = username;
+                announcedFiles = null;
+                catalogVersion++; // So the members request it again
+                catalogChanged.set(true);
+            }
 
-        File[] files = this.sharedDirectory.getFiles();
+            if (catalogChanged.getAndSet(false)) {
+                dataList = announceCatalog(listSharedFiles());
+                membership.setCatalogVersion(catalogVersion); // Gossiped to the members
+                listPackets = legacyDiscovery ? RemoteFilenameListProtocol.encodeFileList(announcedFiles.keySet(),
+                        tcpPort, catalogVersion) : null;
+            } else {
+                dataList = heartbeatPackets;
+            }
+            fileLists = listPackets;
+        }
 
-        if (files.length > 0) { // If no files to send ignore
+        List<InetAddress> destination = new ArrayList<>();
+        List<InetAddress> listDestination = new ArrayList<>();
+        if (discoveryAddress != null) {
+            if (legacyDiscovery && !discoveryAddress.isMulticastAddress()) listDestination.add(discoveryAddress);
+            else destination.add(discoveryAddress);
+        }
+        for (InetAddress address : addresses) {
+            if (membership.isMember(address)) continue;
+            if (speaksCatalog(address)) destination.add(address);
+            else listDestination.add(address);
+        }
+        send(dataList, destination, udpSocket.getLocalPort());
+        if (!listDestination.isEmpty()) send(fileLists, listDestination, udpSocket.getLocalPort());
+    }
 
-            LinkedList<byte[]> dataList = new LinkedList<>(RemoteFilenameListProtocol.parseFileList(files, this.tcpPort));
+    /**
+     * Invites the known addresses that aren't members yet, keeps the catalogs of the members alive and requests the
+     * catalog of the members whose catalog version isn't the one known
+     */
+    private void refreshMembers() {
 
-            List<DatagramPacket> packets = new ArrayList<>();
-            for (InetAddress address :
-                    addresses) {
-                packets.add(new DatagramPacket(new byte[Constants.PAYLOAD_SIZE], Constants.PAYLOAD_SIZE, address, udpSocket.getLocalPort()));
+        for (InetAddress seed : seeds) {
+            if (!membership.isMember(seed) && speaksCatalog(seed)) membership.invite(seed, udpSocket.getLocalPort());
+        }
+        for (MembershipMessage.Update member : membership.getMembers()) {
+            if (peerCatalogs.refresh(member.getHost(), member.getCatalogVersion())) {
+                requestResync(member.getHost(), member.getPort());
             }
+        }
+    }
 
-            while (!dataList.isEmpty()) {
+    /**
+     * Obtains the names of the shared files with their content
+     *
+     * @return the names of the shared files with their content (null if not hashed yet)
+     */
+    private Map<String, ContentId> listSharedFiles() {
 
-                byte[] data = dataList.pop();
+        Map<String, ContentId> currentFiles = new HashMap<>();
+        for (Directory.Entry entry : this.sharedDirectory.getEntries()) {
+            currentFiles.put(entry.getFile().getName(), ContentId.of(entry));
+        }
+        return currentFiles;
+    }
 
-                for (DatagramPacket udpPacket :
-                        packets) {
-                    udpPacket.setData(data);
-                    udpPacket.setLength(data.length);
-                    // Send packet
-                    try {
-                        udpSocket.send(udpPacket);
-                    } catch (IOException e) {
-                        System.out.println("Couldn't send packet.");
-                    }
-                }
-            }
+    /**
+     * Encodes the announcement of a (possibly) changed catalog and rebuilds the cached packets (caller holds catalogLock).
+     *
+     * @param currentFiles the names of the shared files with their content
+     * @return the packets to send
+     */
+    private List<byte[]> announceCatalog(Map<String, ContentId> currentFiles) {
+
+        List<byte[]> dataList;
+        if (announcedFiles == null) {
+
+            fullPackets = RemoteFilenameListProtocol.encodeAnnouncement(Announcement.Type.FULL, catalogVersion,
+                    currentFiles, Collections.emptySet(), tcpPort);
+            deltaPackets = null;
+            dataList = fullPackets;
+            System.out.println("[Sent] catalog v" + catalogVersion + " (" + currentFiles.size() + " files)");
+        } else if (!currentFiles.equals(announcedFiles)) {
+
+            // Files whose content changed (or was just hashed) are announced again
+            Map<String, ContentId> added = new HashMap<>(currentFiles);
+            added.entrySet().removeAll(announcedFiles.entrySet());
+            Set<String> removed = new HashSet<>(announcedFiles.keySet());
+            removed.removeAll(currentFiles.keySet());
+            catalogVersion++;
+            fullPackets = null; // Encoded on the next resync request
+            dataList = RemoteFilenameListProtocol.encodeAnnouncement(Announcement.Type.DELTA, catalogVersion,
+                    added, removed, tcpPort);
+            deltaPackets = dataList;
+            System.out.println("[Sent] catalog v" + catalogVersion + " (+" + added.size() + " -" + removed.size() + ")");
+        } else {
+
+            dataList = null; // Same files with the same content
+        }
+        announcedFiles = currentFiles;
+        heartbeatPackets = RemoteFilenameListProtocol.encodeAnnouncement(Announcement.Type.HEARTBEAT, catalogVersion,
+                Collections.emptySet(), Collections.emptySet(), tcpPort);
 
-            System.out.printf("[Sent] <");
-            for (File f :
-                    files) {
-                System.out.printf(" %s;", f.getName());
+        return dataList == null ? heartbeatPackets : dataList;
+    }
+
+    /**
+     * Sends a list of datagram payloads to a set of addresses
+     *
+     * @param dataList    the payloads
+     * @param destination the addresses
+     * @param port        the destination UDP port
+     */
+    private void send(List<byte[]> dataList, Collection<InetAddress> destination, int port) {
+
+        for (byte[] data : dataList) {
+            for (InetAddress address : destination) {
+                // Send packet
+                try {
+                    udpSocket.send(new DatagramPacket(data, data.length, address, port));
+                } catch (IOException e) {
+                    System.out.println("Couldn't send packet.");
+                }
             }
-            System.out.println(" >");
         }
     }
 
     /**
-     * Checks if a address is a local address
+     * Sends a datagram payload to an address
      *
-     * @param address the address to check
-     * @return true if it is local, false otherwise
-     * @throws SocketException Create/Associate Socket exception
+     * @param data the payload
+     * @param host the address
+     * @param port the destination UDP port
      */
-    private boolean isLocalAddress(InetAddress address) throws SocketException {
+    private void send(byte[] data, InetAddress host, int port) {
 
-        Enumeration<NetworkInterface> list = NetworkInterface.getNetworkInterfaces();
-        while (list.hasMoreElements()) {
+        try {
+            udpSocket.send(new DatagramPacket(data, data.length, host, port));
+        } catch (IOException e) {
+            System.out.println("Couldn't send packet.");
+        }
+    }
 
-            NetworkInterface anInterface = list.nextElement();
-            Enumeration<InetAddress> addresses = anInterface.getInetAddresses();
+    /**
+     * Reports the receive pipeline counters if packets were dropped or the queues grew since the last report
+     */
+    private void reportPipeline() {
+
+        long dropped = pipeline.getDropped();
+        long peak = pipeline.getPeakQueued();
+        if (dropped == reportedDropped && peak <= reportedPeak) return;
+        reportedDropped = dropped;
+        reportedPeak = peak;
+        System.out.println("[Pipeline] " + pipeline.getQueued() + " queued, peak " + peak + " of "
+                + pipeline.getCapacity() + " per worker, " + dropped + " dropped");
+    }
 
-            while (addresses.hasMoreElements()) {
+    /**
+     * Obtains the number of received packets dropped because the receive pipeline was full
+     *
+     * @return the number of dropped packets
+     */
+    public long getDroppedPackets() {
+        return pipeline.getDropped();
+    }
 
-                InetAddress inetAddress = addresses.nextElement();
-                if (address.equals(inetAddress)) return true;
-            }
-        }
-        return false;
+    /**
+     * Obtains the number of received packets waiting to be handled
+     *
+     * @return the number of queued packets
+     */
+    public int getQueuedPackets() {
+        return pipeline.getQueued();
+    }
+
+    @Override
+    public void update(Observable o, Object arg) {
+
+        if (o == sharedDirectory) catalogChanged.set(true);
     }
 
     /**
@@ -189,7 +538,10 @@ public class UdpCommunication {
      * @throws UnknownHostException Unrecognized address error
      */
     public void loadKnownIps() throws UnknownHostException {
-        addresses.addAll(Application.settings().getKnownAddresses());
+
+        List<InetAddress> known = Application.settings().getKnownAddresses();
+        seeds.addAll(known);
+        addresses.addAll(known);
     }
 
     /**
@@ -200,6 +552,7 @@ public class UdpCommunication {
      */
     public void addAddress(InetAddress address) {
 
+        seeds.add(address);
         addresses.add(address);
     }
 
@@ -210,11 +563,15 @@ public class UdpCommunication {
      */
     public String[] getKnownIps() {
 
-        List<String> tmp = new ArrayList<>();
+        Set<String> tmp = new LinkedHashSet<>();
+        if (discoveryAddress != null) tmp.add(discoveryAddress.getHostAddress());
         for (InetAddress addr :
                 addresses) {
             tmp.add(addr.getHostAddress());
         }
+        for (MembershipMessage.Update member : membership.getMembers()) {
+            tmp.add(member.getHost().getHostAddress());
+        }
 
         String[] list = new String[tmp.size()];
 
@@ -247,9 +604,53 @@ public class UdpCommunication {
 
             try {
                 sendRemoteFiles(); // Send filenames to share in broadcast
+                refreshMembers();
+                reportPipeline();
             } catch (Exception e) {
                 Logger.getLogger(Directory.class.getName()).log(Level.SEVERE, "UDP Broadcast Sender failed.", e);
             }
         }
     }
+
+    /**
+     * Membership Changes Handler
+     */
+    private class MembershipListener implements Membership.Listener {
+
+        @Override
+        public void onCatalogVersion(MembershipMessage.Update member) {
+
+            if (peerCatalogs.refresh(member.getHost(), member.getCatalogVersion())) {
+                requestResync(member.getHost(), member.getPort());
+            }
+        }
+
+        @Override
+        public void onDead(InetAddress host) {
+
+            peerCatalogs.forget(host);
+            catalogPeers.remove(host); // Learnt again if it comes back
+            if (!seeds.contains(host)) addresses.remove(host);
+        }
+    }
+
+    /**
+     * Local Addresses Refresh Handler
+     */
+    private class LocalAddressesRefresher extends TimerTask {
+
+        @Override
+        public void run() {
+
+            if (!localAddresses.refresh()) return;
+            System.out.println("[Network] local addresses changed");
+            if (discoveryAddress != null && discoveryAddress.isMulticastAddress()) {
+                try {
+                    joinMulticastGroup(discoveryAddress); // New interfaces join the group too
+                } catch (IOException e) {
+                    Logger.getLogger(UdpCommunication.class.getName()).log(Level.WARNING, "Joining the multicast group failed.", e);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,193 @@
+package networking;
+
+import settings.AppSettings;
+import util.Constants;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the upload slots (max.upload.connections) to the responses of every connection, in a fair order.
+ * <p>
+ * A response that finds no free slot is queued. When a slot is freed the next response is chosen by the queue policy:
+ * arrival order (fifo), smallest file first or fewest bytes left to send first (shortest-remaining). A response waiting
+ * for longer than Constants.MAX_QUEUE_WAIT goes first whatever the policy, so large files are never starved.
+ * Slots are held per response (not per connection) and large ranges are sent in slices, so a peer pulling a huge file
+ * queues again between slices instead of holding its slot until the end.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+final class UploadScheduler {
+
+    private final int slots;
+    private final Comparator<Ticket> order;
+    private final List<Ticket> waiting;
+    private int busy;
+    private long arrivals;
+
+    /**
+     * Creates an upload scheduler
+     *
+     * @param slots  the number of responses sent at the same time
+     * @param policy the queue policy (AppSettings.FIFO_POLICY, SMALLEST_FIRST_POLICY or SHORTEST_REMAINING_POLICY)
+     */
+    UploadScheduler(int slots, String policy) {
+
+        this.slots = Math.max(1, slots);
+        this.waiting = new ArrayList<>();
+        Comparator<Ticket> arrival = Comparator.comparingLong(ticket -> ticket.arrival);
+        if (AppSettings.SMALLEST_FIRST_POLICY.equals(policy)) {
+            this.order = Comparator.<Ticket>comparingLong(ticket -> ticket.fileSize).thenComparing(arrival);
+        } else if (AppSettings.SHORTEST_REMAINING_POLICY.equals(policy)) {
+            this.order = Comparator.<Ticket>comparingLong(ticket -> ticket.remaining).thenComparing(arrival);
+        } else {
+            this.order = arrival;
+        }
+    }
+
+    /**
+     * Creates the ticket of a response
+     *
+     * @param fileSize  the requested file's size
+     * @param remaining the bytes of the file the requester still needs (from the requested offset to the end)
+     * @param onGranted the action to run when a queued ticket gets its slot (null to wait with await instead)
+     * @return the ticket
+     */
+    Ticket ticket(long fileSize, long remaining, Runnable onGranted) {
+        return new Ticket(fileSize, remaining, onGranted);
+    }
+
+    /**
+     * Takes a free slot for a ticket or queues it
+     *
+     * @param ticket the ticket
+     * @return true if it got a slot, false if it was queued (see await or the ticket's grant action)
+     */
+    synchronized boolean tryAcquire(Ticket ticket) {
+
+        ticket.arrival = arrivals++;
+        ticket.queuedAt = System.nanoTime();
+        if (busy < slots && waiting.isEmpty()) {
+            busy++;
+            ticket.granted = true;
+            return true;
+        }
+        waiting.add(ticket);
+        return false;
+    }
+
+    /**
+     * Waits for a queued ticket to get its slot
+     *
+     * @param ticket  the ticket
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if it got its slot, false if the time elapsed
+     * @throws InterruptedException interrupted while waiting
+     */
+    synchronized boolean await(Ticket ticket, long timeout) throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (!ticket.granted) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Obtains the position of a queued ticket
+     *
+     * @param ticket the ticket
+     * @return the position (1 is the next to get a slot) or 0 if it isn't queued
+     */
+    synchronized int position(Ticket ticket) {
+
+        if (!waiting.contains(ticket)) return 0;
+        long now = System.nanoTime();
+        int position = 1;
+        for (Ticket other : waiting) {
+            if (other != ticket && compare(other, ticket, now) < 0) position++;
+        }
+        return position;
+    }
+
+    /**
+     * Gives up a ticket: frees its slot (handing it to the next queued ticket) or leaves the queue
+     *
+     * @param ticket the ticket (may be null)
+     */
+    void release(Ticket ticket) {
+
+        if (ticket == null) return;
+        Ticket next;
+        synchronized (this) {
+            if (!ticket.granted) {
+                waiting.remove(ticket);
+                return;
+            }
+            ticket.granted = false;
+            busy--;
+            next = grantNext();
+        }
+        if (next != null && next.onGranted != null) next.onGranted.run();
+    }
+
+    /**
+     * Hands the free slot to the first queued ticket (caller holds the lock)
+     *
+     * @return the granted ticket or null if the queue is empty
+     */
+    private Ticket grantNext() {
+
+        if (waiting.isEmpty() || busy >= slots) return null;
+        long now = System.nanoTime();
+        Ticket next = waiting.get(0);
+        for (Ticket ticket : waiting) {
+            if (compare(ticket, next, now) < 0) next = ticket;
+        }
+        waiting.remove(next);
+        next.granted = true;
+        busy++;
+        notifyAll();
+        return next;
+    }
+
+    /**
+     * Compares two queued tickets: the ones waiting for too long first (by arrival), then by the policy
+     *
+     * @param a   a ticket
+     * @param b   another ticket
+     * @param now the current time (System.nanoTime)
+     * @return negative if a goes before b, positive otherwise
+     */
+    private int compare(Ticket a, Ticket b, long now) {
+
+        long maxWait = TimeUnit.MILLISECONDS.toNanos(Constants.MAX_QUEUE_WAIT);
+        boolean aOverdue = now - a.queuedAt > maxWait;
+        boolean bOverdue = now - b.queuedAt > maxWait;
+        if (aOverdue != bOverdue) return aOverdue ? -1 : 1;
+        return aOverdue ? Long.compare(a.arrival, b.arrival) : order.compare(a, b);
+    }
+
+    /**
+     * The place of a response in the scheduler (guarded by the scheduler's lock)
+     */
+    static final class Ticket {
+
+        private final long fileSize;
+        private final long remaining;
+        private final Runnable onGranted;
+        private long arrival;
+        private long queuedAt;
+        private boolean granted;
+
+        private Ticket(long fileSize, long remaining, Runnable onGranted) {
+            this.fileSize = fileSize;
+            this.remaining = remaining;
+            this.onGranted = onGranted;
+        }
+    }
+}
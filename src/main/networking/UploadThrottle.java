@@ -0,0 +1,239 @@
+package networking;
+
+import settings.Application;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shapes the upload bandwidth with token buckets: a global bucket shared by every upload and a bucket per connection.
+ * <p>
+ * Each grant is capped to a fair share of the global bucket (its capacity divided by the open uploads), so a single
+ * connection can't take the whole bucket while others wait. Granted bytes that end up unsent can be given back, and
+ * bytes sent beyond a grant are charged afterwards (the bucket goes into debt and the next grants wait for it).
+ * The rates are read from the settings again every second, so they can be changed while uploading.
+ * A rate of 0 means unlimited.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+final class UploadThrottle {
+
+    private static final long SETTINGS_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_GRANT = 4 * 1024; // bytes (no point waking up for fewer)
+    private static final long MIN_CAPACITY = 16 * 1024; // bytes
+    private static final int BURST_FRACTION = 5; // capacity = rate / BURST_FRACTION (200 ms of traffic)
+
+    private final Object lock;
+    private final Bucket global;
+    private long connectionRate;
+    private long lastSettingsRefresh;
+    private int openUploads;
+
+    /**
+     * Creates an upload throttle with the rates from the settings
+     */
+    UploadThrottle() {
+
+        this.lock = new Object();
+        this.global = new Bucket();
+        this.lastSettingsRefresh = System.nanoTime() - SETTINGS_REFRESH_INTERVAL;
+    }
+
+    /**
+     * Registers an upload connection
+     *
+     * @return the connection's limiter (must be closed when the connection ends)
+     */
+    Limiter open() {
+
+        synchronized (lock) {
+            openUploads++;
+            return new Limiter();
+        }
+    }
+
+    /**
+     * Obtains how many bytes a connection may send now, waiting until it may send some.
+     *
+     * @param limiter the connection's limiter
+     * @param wanted  the number of bytes the connection wants to send
+     * @return the number of bytes it may send (between 1 and wanted)
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    long acquire(Limiter limiter, long wanted) throws InterruptedIOException {
+
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            long waitNanos;
+            synchronized (lock) {
+                long granted = grant(limiter, wanted);
+                if (granted > 0) return granted;
+                waitNanos = nanosUntilGrant(limiter, wanted);
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload bandwidth.");
+            }
+        }
+    }
+
+    /**
+     * Obtains how many bytes a connection may send now, without waiting (non-blocking servers).
+     *
+     * @param limiter the connection's limiter
+     * @param wanted  the number of bytes the connection wants to send
+     * @return the number of bytes it may send (0 if it has to wait, see nanosUntilGrant)
+     */
+    long tryAcquire(Limiter limiter, long wanted) {
+
+        synchronized (lock) {
+            return grant(limiter, wanted);
+        }
+    }
+
+    /**
+     * Obtains how long a connection has to wait until it may send some bytes
+     *
+     * @param limiter the connection's limiter
+     * @param wanted  the number of bytes the connection wants to send
+     * @return the time to wait in nanoseconds (0 if it may send now)
+     */
+    long nanosUntilGrant(Limiter limiter, long wanted) {
+
+        synchronized (lock) {
+            long needed = Math.min(wanted, MIN_GRANT);
+            return Math.max(global.nanosUntil(needed), limiter.bucket.nanosUntil(needed));
+        }
+    }
+
+    /**
+     * Settles a grant with the bytes actually sent: unsent granted bytes are given back, bytes sent beyond the
+     * grant are charged.
+     *
+     * @param limiter the connection's limiter
+     * @param granted the granted bytes
+     * @param sent    the bytes actually sent
+     */
+    void settle(Limiter limiter, long granted, long sent) {
+
+        if (granted == sent) return;
+        synchronized (lock) {
+            global.take(sent - granted);
+            limiter.bucket.take(sent - granted);
+        }
+    }
+
+    /**
+     * Grants bytes to a connection (caller holds the lock)
+     *
+     * @param limiter the connection's limiter
+     * @param wanted  the number of bytes wanted
+     * @return the granted bytes (0 if it has to wait)
+     */
+    private long grant(Limiter limiter, long wanted) {
+
+        refreshRates();
+        limiter.bucket.setRate(connectionRate);
+
+        long granted = Math.min(wanted, global.available());
+        granted = Math.min(granted, limiter.bucket.available());
+        if (global.isLimited()) granted = Math.min(granted, Math.max(MIN_GRANT, global.capacity / Math.max(1, openUploads)));
+        if (granted < Math.min(wanted, MIN_GRANT)) return 0;
+
+        global.take(granted);
+        limiter.bucket.take(granted);
+        return granted;
+    }
+
+    /**
+     * Reads the rates from the settings again if they weren't read for a while (caller holds the lock)
+     */
+    private void refreshRates() {
+
+        long now = System.nanoTime();
+        if (now - lastSettingsRefresh < SETTINGS_REFRESH_INTERVAL) return;
+        lastSettingsRefresh = now;
+        global.setRate(Application.settings().getUploadRateLimit() * 1024L);
+        connectionRate = Application.settings().getConnectionUploadRateLimit() * 1024L;
+    }
+
+    /**
+     * The bandwidth limiter of an upload connection
+     */
+    final class Limiter implements AutoCloseable {
+
+        private final Bucket bucket;
+        private boolean closed;
+
+        private Limiter() {
+            this.bucket = new Bucket();
+            this.bucket.setRate(connectionRate);
+        }
+
+        @Override
+        public void close() {
+
+            synchronized (lock) {
+                if (closed) return;
+                closed = true;
+                openUploads--;
+            }
+        }
+    }
+
+    /**
+     * A token bucket (not thread-safe; guarded by the throttle's lock)
+     */
+    private static final class Bucket {
+
+        private long rate; // bytes per second, 0 if unlimited
+        private long capacity;
+        private double tokens;
+        private long lastRefill;
+
+        private Bucket() {
+            this.lastRefill = System.nanoTime();
+        }
+
+        private boolean isLimited() {
+            return rate > 0;
+        }
+
+        private void setRate(long rate) {
+
+            if (rate == this.rate) return;
+            refill();
+            this.rate = Math.max(0, rate);
+            this.capacity = Math.max(MIN_CAPACITY, this.rate / BURST_FRACTION);
+            this.tokens = Math.min(tokens, capacity);
+        }
+
+        private void refill() {
+
+            long now = System.nanoTime();
+            if (isLimited()) tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+        }
+
+        private long available() {
+
+            if (!isLimited()) return Long.MAX_VALUE;
+            refill();
+            return (long) Math.max(0, tokens);
+        }
+
+        private void take(long bytes) {
+            if (isLimited()) tokens -= bytes;
+        }
+
+        private long nanosUntil(long bytes) {
+
+            if (!isLimited()) return 0;
+            refill();
+            double missing = bytes - tokens;
+            return (missing <= 0) ? 0 : (long) Math.ceil(missing * 1e9 / rate);
+        }
+    }
+}
@@ -72,6 +72,7 @@ public class DirectoryTableView extends TableView<File> implements Observer {
     @Override
     public void update(Observable o, Object arg) {
 
+        if (arg == Directory.CONTENT_HASHES_UPDATED) return; // Same files
         // Refresh data
         setData();
         refresh();
@@ -1,5 +1,8 @@
 package presentation;
 
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
@@ -18,6 +21,7 @@ import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 import javafx.stage.Window;
+import util.Threads;
 
 import java.util.function.Consumer;
 import java.util.function.ToIntFunction;
@@ -33,6 +37,8 @@ public class DownloadingDialog<P> {
     private final ProgressIndicator progressIndicator = new ProgressIndicator(ProgressIndicator.INDETERMINATE_PROGRESS);
     private final Stage dialog = new Stage(StageStyle.UNDECORATED);
     private final Label label = new Label();
+    private final Label detail = new Label();
+    private final DoubleProperty progress = new SimpleDoubleProperty(ProgressIndicator.INDETERMINATE_PROGRESS);
     private final Group root = new Group();
     private final Scene scene = new Scene(root, 330, 120, Color.WHITE);
     private final BorderPane mainPane = new BorderPane();
@@ -43,7 +49,6 @@ public class DownloadingDialog<P> {
      */
     private final ObservableList<Integer> resultNotificationList = FXCollections.observableArrayList();
     private Integer resultValue;
-    private Task animationWorker;
     private Task<Integer> taskWorker;
 
     /**
@@ -60,6 +65,24 @@ public class DownloadingDialog<P> {
         this.label.setText(label);
     }
 
+    /**
+     * Obtains the progress shown by the indicator (update it on the JavaFX thread)
+     *
+     * @return the progress property (0 to 1, or ProgressIndicator.INDETERMINATE_PROGRESS)
+     */
+    public DoubleProperty progressProperty() {
+        return progress;
+    }
+
+    /**
+     * Obtains the detail text shown below the indicator (update it on the JavaFX thread)
+     *
+     * @return the detail text property
+     */
+    public StringProperty detailProperty() {
+        return detail.textProperty();
+    }
+
     /**
      * Adds the task ended notification
      *
@@ -81,7 +104,6 @@ public class DownloadingDialog<P> {
     @SuppressWarnings("SameParameterValue")
     public void exec(P parameter, ToIntFunction func) {
         setupDialog();
-        setupAnimationThread();
         //noinspection unchecked
         setupWorkerThread(parameter, func);
     }
@@ -94,7 +116,8 @@ public class DownloadingDialog<P> {
         vbox.setSpacing(5);
         vbox.setAlignment(Pos.CENTER);
         vbox.setMinSize(330, 120);
-        vbox.getChildren().addAll(label, progressIndicator);
+        vbox.getChildren().addAll(label, progressIndicator, detail);
+        progressIndicator.progressProperty().bind(progress);
         mainPane.setTop(vbox);
         dialog.setScene(scene);
 
@@ -106,39 +129,6 @@ public class DownloadingDialog<P> {
         dialog.show();
     }
 
-    /**
-     *
-     */
-    private void setupAnimationThread() {
-
-        animationWorker = new Task() {
-            @Override
-            protected Object call() throws Exception {
-                /*
-                This is activated when we have a "progressing" indicator.
-                This thread is used to advance progress every XXX milliseconds.
-                In case of an INDETERMINATE_PROGRESS indicator, it's not of use.
-                for (int i=1;i<=100;i++) {
-                    Thread.sleep(500);
-                    updateMessage();
-                    updateProgress(i,100);
-                }
-                */
-                return true;
-            }
-        };
-
-        progressIndicator.setProgress(0);
-        progressIndicator.progressProperty().unbind();
-        progressIndicator.progressProperty().bind(animationWorker.progressProperty());
-
-        animationWorker.messageProperty().addListener((observable, oldValue, newValue) -> {
-            // Do something when the animation value ticker has changed
-        });
-
-        new Thread(animationWorker).start();
-    }
-
     /**
      *
      */
@@ -152,7 +142,6 @@ public class DownloadingDialog<P> {
         };
 
         EventHandler<WorkerStateEvent> eh = event -> {
-            animationWorker.cancel(true);
             progressIndicator.progressProperty().unbind();
             dialog.close();
             try {
@@ -166,6 +155,6 @@ public class DownloadingDialog<P> {
         taskWorker.setOnSucceeded(eh);
         taskWorker.setOnFailed(eh);
 
-        new Thread(taskWorker).start();
+        Threads.execute(taskWorker);
     }
 }
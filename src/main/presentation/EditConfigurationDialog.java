@@ -32,11 +32,16 @@ public class EditConfigurationDialog extends Dialog<Map<String, String>> {
     private static final Integer PORT_MIN = 1;
     private static final Integer PORT_MAX = 65535;
     private static final Integer MIN_WIDTH_TXTFDS = 150;
+    private static final Integer MAX_RATE_LIMIT = 1000000; // KB/s
     private ToggleGroup tcpToggle;
     private ToggleGroup udpToggle;
     private Spinner<Integer> maxUpSpinner;
     private Spinner<Integer> refreshSpinner;
     private Spinner<Integer> sendSpinner;
+    private Spinner<Integer> uploadRateSpinner;
+    private Spinner<Integer> connectionRateSpinner;
+    private Spinner<Integer> maxDownloadsSpinner;
+    private Spinner<Integer> maxPeerDownloadsSpinner;
     private TextField textfieldShared;
     private TextField textfieldDownload;
     private TextField textfieldUsername;
@@ -143,6 +148,28 @@ public class EditConfigurationDialog extends Dialog<Map<String, String>> {
                     }
                 }
 
+                Integer uploadRate = uploadRateSpinner.getValue();
+                if (uploadRate != null && uploadRate >= 0 && !uploadRate.equals(Application.settings().getUploadRateLimit())) {
+                    result.put(AppSettings.UPLOAD_RATE_LIMIT_KEY, uploadRate.toString());
+                }
+
+                Integer connectionRate = connectionRateSpinner.getValue();
+                if (connectionRate != null && connectionRate >= 0
+                        && !connectionRate.equals(Application.settings().getConnectionUploadRateLimit())) {
+                    result.put(AppSettings.CONNECTION_UPLOAD_RATE_LIMIT_KEY, connectionRate.toString());
+                }
+
+                Integer maxDownloads = maxDownloadsSpinner.getValue();
+                if (maxDownloads != null && maxDownloads > 0 && !maxDownloads.equals(Application.settings().getMaxDownloads())) {
+                    result.put(AppSettings.MAX_DOWNLOADS_KEY, maxDownloads.toString());
+                }
+
+                Integer maxPeerDownloads = maxPeerDownloadsSpinner.getValue();
+                if (maxPeerDownloads != null && maxPeerDownloads > 0
+                        && !maxPeerDownloads.equals(Application.settings().getMaxPeerDownloads())) {
+                    result.put(AppSettings.MAX_PEER_DOWNLOADS_KEY, maxPeerDownloads.toString());
+                }
+
                 List<String> items = extsListView.getItems();
                 String[] exts = new String[items.size()];
                 exts = items.toArray(exts);
@@ -173,6 +200,10 @@ public class EditConfigurationDialog extends Dialog<Map<String, String>> {
         labelMaxUp.setAlignment(Pos.CENTER_RIGHT);
         Label labelRefresh = new Label("Remote File Refresh Limit (in seconds): ");
         Label labelSend = new Label("Send Remote File Announcement Time Interval (in seconds): ");
+        Label labelUploadRate = new Label("Upload Rate Limit, all uploads (in KB/s, 0 for unlimited): ");
+        Label labelConnectionRate = new Label("Upload Rate Limit, each upload (in KB/s, 0 for unlimited): ");
+        Label labelMaxDownloads = new Label("Max Downloads (at once): ");
+        Label labelMaxPeerDownloads = new Label("Max Downloads from the same peer (at once): ");
 
         tcpToggle = new ToggleGroup();
         Pane tcpPane = createToggleSelection(tcpToggle, Application.settings().getTcpPort());
@@ -181,6 +212,10 @@ public class EditConfigurationDialog extends Dialog<Map<String, String>> {
         maxUpSpinner = createSpinner(1, 20, Application.settings().getMaxUploads());
         refreshSpinner = createSpinner(1, 120, Application.settings().getFileRefreshTime());
         sendSpinner = createSpinner(1, 120, Application.settings().getBroadcastTimeInterval());
+        uploadRateSpinner = createSpinner(0, MAX_RATE_LIMIT, Application.settings().getUploadRateLimit());
+        connectionRateSpinner = createSpinner(0, MAX_RATE_LIMIT, Application.settings().getConnectionUploadRateLimit());
+        maxDownloadsSpinner = createSpinner(1, 20, Application.settings().getMaxDownloads());
+        maxPeerDownloadsSpinner = createSpinner(1, 20, Application.settings().getMaxPeerDownloads());
 
         GridPane grid = new GridPane();
         Label title = new Label("Network Configuration");
@@ -195,6 +230,14 @@ public class EditConfigurationDialog extends Dialog<Map<String, String>> {
         grid.add(refreshSpinner, 0, 5);
         grid.add(labelSend, 0, 6, 2, 1);
         grid.add(sendSpinner, 0, 7);
+        grid.add(labelUploadRate, 0, 8, 2, 1);
+        grid.add(uploadRateSpinner, 0, 9);
+        grid.add(labelConnectionRate, 0, 10, 2, 1);
+        grid.add(connectionRateSpinner, 0, 11);
+        grid.add(labelMaxDownloads, 0, 12, 2, 1);
+        grid.add(maxDownloadsSpinner, 0, 13);
+        grid.add(labelMaxPeerDownloads, 0, 14, 2, 1);
+        grid.add(maxPeerDownloadsSpinner, 0, 15);
         grid.add(tcpPane, 1, 1);
         grid.add(udpPane, 1, 2);
         grid.add(maxUpSpinner, 1, 3);
@@ -1,9 +1,15 @@
 package presentation;
 
 import domain.RemoteFilename;
-import javafx.collections.ObservableList;
+import domain.RemoteFilenameList;
+import javafx.scene.control.TableCell;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
+import javafx.scene.control.Tooltip;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
 
 /**
  * Represents a filename item tableview.
@@ -12,18 +18,18 @@ import javafx.scene.control.TableView;
  */
 public class RemoteFilenamesTableView extends TableView<RemoteFilename> {
 
-
     /**
-     * Creates a remote file table view.
+     * Creates a remote file table view (identical content shared by several peers is shown once, with every peer
+     * sharing it listed in the tooltip of its User and Sources cells).
      *
-     * @param set remote filenames
+     * @param filenames remote filenames
      */
-    public RemoteFilenamesTableView(ObservableList<RemoteFilename> set) {
+    public RemoteFilenamesTableView(RemoteFilenameList filenames) {
 
         // define the table columns.
         createColumns();
         // Set table's items
-        setItems(set);
+        setItems(filenames.getList());
     }
 
 
@@ -37,13 +43,52 @@ public class RemoteFilenamesTableView extends TableView<RemoteFilename> {
         fileColumn.setCellValueFactory(cellData -> cellData.getValue().filenameProperty());
         fileColumn.setMinWidth(250);
 
-        TableColumn<RemoteFilename, String> usernameColumn = new TableColumn<>("User");
-        usernameColumn.setCellValueFactory(cellData -> cellData.getValue().usernameProperty());
+        TableColumn<RemoteFilename, List<RemoteFilename>> usernameColumn = new TableColumn<>("User");
+        usernameColumn.setCellValueFactory(cellData -> cellData.getValue().sourcesProperty());
+        usernameColumn.setCellFactory(column -> new SourcesCell(sources -> (sources.size() == 1)
+                ? sources.get(0).getUsername() : sources.get(0).getUsername() + " (+" + (sources.size() - 1) + ")"));
+        usernameColumn.setComparator(Comparator.comparing(sources -> sources.get(0).getUsername()));
         usernameColumn.setMinWidth(250);
 
-        setMinWidth(fileColumn.getMinWidth() + usernameColumn.getMinWidth());
+        TableColumn<RemoteFilename, List<RemoteFilename>> sourcesColumn = new TableColumn<>("Sources");
+        sourcesColumn.setCellValueFactory(cellData -> cellData.getValue().sourcesProperty());
+        sourcesColumn.setCellFactory(column -> new SourcesCell(sources -> String.valueOf(sources.size())));
+        sourcesColumn.setComparator(Comparator.comparingInt(List::size));
+        sourcesColumn.setMinWidth(80);
+
+        setMinWidth(fileColumn.getMinWidth() + usernameColumn.getMinWidth() + sourcesColumn.getMinWidth());
 
-        getColumns().setAll(fileColumn, usernameColumn);
+        getColumns().setAll(fileColumn, usernameColumn, sourcesColumn);
         setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
     }
+
+    /**
+     * Shows a summary of a file's sources, listing every source (user & host) in its tooltip
+     */
+    private static class SourcesCell extends TableCell<RemoteFilename, List<RemoteFilename>> {
+
+        private final Function<List<RemoteFilename>, String> summary;
+
+        private SourcesCell(Function<List<RemoteFilename>, String> summary) {
+            this.summary = summary;
+        }
+
+        @Override
+        protected void updateItem(List<RemoteFilename> sources, boolean empty) {
+
+            super.updateItem(sources, empty);
+            if (empty || sources == null || sources.isEmpty()) {
+                setText(null);
+                setTooltip(null);
+                return;
+            }
+            setText(summary.apply(sources));
+            StringBuilder text = new StringBuilder();
+            for (RemoteFilename source : sources) {
+                if (text.length() > 0) text.append('\n');
+                text.append(source.getUsername()).append(" (").append(source.getHost().getHostAddress()).append(')');
+            }
+            setTooltip(new Tooltip(text.toString()));
+        }
+    }
 }
@@ -27,8 +27,35 @@ public class AppSettings {
     public final static String FILE_EXTENSIONS_KEY = "file.extensions";
     public final static String MAX_UPLOADS_KEY = "max.upload.connections";
     public final static String KNOWN_IPS_KEY = "known.ips";
+    public final static String TCP_SERVER_ENGINE_KEY = "tcp.server.engine";
+    public final static String EXECUTION_MODE_KEY = "execution.mode";
+    public final static String TRANSFER_COMPRESSION_KEY = "transfer.compression";
+    public final static String COMPRESSION_BYPASS_KEY = "compression.bypass.extensions";
+    public final static String UPLOAD_RATE_LIMIT_KEY = "upload.rate.limit";
+    public final static String CONNECTION_UPLOAD_RATE_LIMIT_KEY = "upload.connection.rate.limit";
+    public final static String UPLOAD_QUEUE_POLICY_KEY = "upload.queue.policy";
+    public final static String MAX_DOWNLOADS_KEY = "max.downloads";
+    public final static String MAX_PEER_DOWNLOADS_KEY = "max.downloads.per.peer";
+    public final static String UDP_WORKERS_KEY = "udp.workers";
+    public final static String UDP_QUEUE_SIZE_KEY = "udp.queue.size";
+    public final static String DISCOVERY_MODE_KEY = "discovery.mode";
+    public final static String MULTICAST_GROUP_KEY = "multicast.group";
+    public final static String MULTICAST_TTL_KEY = "multicast.ttl";
+    public final static String LEGACY_DISCOVERY_KEY = "discovery.legacy";
     // MISC
     public final static String DEFAULT_SEPARATOR = ",";
+    public final static String BLOCKING_ENGINE = "blocking";
+    public final static String SELECTOR_ENGINE = "selector";
+    public final static String PLATFORM_THREADS = "platform";
+    public final static String VIRTUAL_THREADS = "virtual";
+    public final static String NO_COMPRESSION = "none";
+    public final static String DEFLATE_COMPRESSION = "deflate";
+    public final static String FIFO_POLICY = "fifo";
+    public final static String SMALLEST_FIRST_POLICY = "smallest-first";
+    public final static String SHORTEST_REMAINING_POLICY = "shortest-remaining";
+    public final static String BROADCAST_DISCOVERY = "broadcast";
+    public final static String MULTICAST_DISCOVERY = "multicast";
+    public final static String UNICAST_DISCOVERY = "unicast";
     private final static String PROPERTIES_RESOURCE = "settings.properties";
     // PROPERTY DEFAULTS
     private final static String USERNAME_DEFAULT = System.getProperty("user.name", "unknown");
@@ -41,6 +68,21 @@ public class AppSettings {
     private final static String FILE_EXTENSIONS_DEFAULT = "jpg,png,txt,mp3,mov,avi,doc,docx,xls,xlsx";
     private final static Integer MAX_UPLOADS_DEFAULT = 10;
     private final static String IPS_DEFAULT = "";
+    private final static String TCP_SERVER_ENGINE_DEFAULT = BLOCKING_ENGINE;
+    private final static String EXECUTION_MODE_DEFAULT = PLATFORM_THREADS;
+    private final static String TRANSFER_COMPRESSION_DEFAULT = DEFLATE_COMPRESSION;
+    private final static Integer UPLOAD_RATE_LIMIT_DEFAULT = 0;
+    private final static Integer CONNECTION_UPLOAD_RATE_LIMIT_DEFAULT = 0;
+    private final static String UPLOAD_QUEUE_POLICY_DEFAULT = SHORTEST_REMAINING_POLICY;
+    private final static Integer MAX_DOWNLOADS_DEFAULT = 4;
+    private final static Integer MAX_PEER_DOWNLOADS_DEFAULT = 2;
+    private final static Integer UDP_WORKERS_DEFAULT = 2;
+    private final static Integer UDP_QUEUE_SIZE_DEFAULT = 1024;
+    private final static String DISCOVERY_MODE_DEFAULT = BROADCAST_DISCOVERY;
+    private final static String MULTICAST_GROUP_DEFAULT = "239.255.32.35";
+    private final static Integer MULTICAST_TTL_DEFAULT = 4;
+    private final static Boolean LEGACY_DISCOVERY_DEFAULT = true;
+    private final static String COMPRESSION_BYPASS_DEFAULT = "jpg,jpeg,png,gif,mp3,mp4,mov,avi,mkv,zip,rar,7z,gz,jar,docx,xlsx,pptx,pdf";
     private final Properties applicationProperties = new Properties();
 
     /**
@@ -58,6 +100,14 @@ public class AppSettings {
         return new File("config.properties");
     }
 
+    /**
+     * Loads the configurations again (the settings read while running, like the upload rate limits,
+     * take effect right away; the others on the next start)
+     */
+    public void reload() {
+        loadProperties();
+    }
+
     private void loadProperties() {
         InputStream propertiesStream = null;
         try {
@@ -98,6 +148,21 @@ public class AppSettings {
         this.applicationProperties.setProperty(FILE_EXTENSIONS_KEY, FILE_EXTENSIONS_DEFAULT);
         this.applicationProperties.setProperty(MAX_UPLOADS_KEY, MAX_UPLOADS_DEFAULT.toString());
         this.applicationProperties.setProperty(KNOWN_IPS_KEY, IPS_DEFAULT);
+        this.applicationProperties.setProperty(TCP_SERVER_ENGINE_KEY, TCP_SERVER_ENGINE_DEFAULT);
+        this.applicationProperties.setProperty(EXECUTION_MODE_KEY, EXECUTION_MODE_DEFAULT);
+        this.applicationProperties.setProperty(TRANSFER_COMPRESSION_KEY, TRANSFER_COMPRESSION_DEFAULT);
+        this.applicationProperties.setProperty(COMPRESSION_BYPASS_KEY, COMPRESSION_BYPASS_DEFAULT);
+        this.applicationProperties.setProperty(UPLOAD_RATE_LIMIT_KEY, UPLOAD_RATE_LIMIT_DEFAULT.toString());
+        this.applicationProperties.setProperty(CONNECTION_UPLOAD_RATE_LIMIT_KEY, CONNECTION_UPLOAD_RATE_LIMIT_DEFAULT.toString());
+        this.applicationProperties.setProperty(UPLOAD_QUEUE_POLICY_KEY, UPLOAD_QUEUE_POLICY_DEFAULT);
+        this.applicationProperties.setProperty(MAX_DOWNLOADS_KEY, MAX_DOWNLOADS_DEFAULT.toString());
+        this.applicationProperties.setProperty(MAX_PEER_DOWNLOADS_KEY, MAX_PEER_DOWNLOADS_DEFAULT.toString());
+        this.applicationProperties.setProperty(UDP_WORKERS_KEY, UDP_WORKERS_DEFAULT.toString());
+        this.applicationProperties.setProperty(UDP_QUEUE_SIZE_KEY, UDP_QUEUE_SIZE_DEFAULT.toString());
+        this.applicationProperties.setProperty(DISCOVERY_MODE_KEY, DISCOVERY_MODE_DEFAULT);
+        this.applicationProperties.setProperty(MULTICAST_GROUP_KEY, MULTICAST_GROUP_DEFAULT);
+        this.applicationProperties.setProperty(MULTICAST_TTL_KEY, MULTICAST_TTL_DEFAULT.toString());
+        this.applicationProperties.setProperty(LEGACY_DISCOVERY_KEY, LEGACY_DISCOVERY_DEFAULT.toString());
     }
 
     public String getUsername() {
@@ -139,6 +204,66 @@ public class AppSettings {
         return new Integer(this.applicationProperties.getProperty(MAX_UPLOADS_KEY, MAX_UPLOADS_DEFAULT.toString()));
     }
 
+    public String getTcpServerEngine() {
+        return this.applicationProperties.getProperty(TCP_SERVER_ENGINE_KEY, TCP_SERVER_ENGINE_DEFAULT).trim().toLowerCase();
+    }
+
+    public String getExecutionMode() {
+        return this.applicationProperties.getProperty(EXECUTION_MODE_KEY, EXECUTION_MODE_DEFAULT).trim().toLowerCase();
+    }
+
+    public String getTransferCompression() {
+        return this.applicationProperties.getProperty(TRANSFER_COMPRESSION_KEY, TRANSFER_COMPRESSION_DEFAULT).trim().toLowerCase();
+    }
+
+    public Integer getUploadRateLimit() {
+        return new Integer(this.applicationProperties.getProperty(UPLOAD_RATE_LIMIT_KEY, UPLOAD_RATE_LIMIT_DEFAULT.toString()).trim());
+    }
+
+    public Integer getConnectionUploadRateLimit() {
+        return new Integer(this.applicationProperties.getProperty(CONNECTION_UPLOAD_RATE_LIMIT_KEY, CONNECTION_UPLOAD_RATE_LIMIT_DEFAULT.toString()).trim());
+    }
+
+    public Integer getMaxDownloads() {
+        return new Integer(this.applicationProperties.getProperty(MAX_DOWNLOADS_KEY, MAX_DOWNLOADS_DEFAULT.toString()).trim());
+    }
+
+    public Integer getMaxPeerDownloads() {
+        return new Integer(this.applicationProperties.getProperty(MAX_PEER_DOWNLOADS_KEY, MAX_PEER_DOWNLOADS_DEFAULT.toString()).trim());
+    }
+
+    public Integer getUdpWorkers() {
+        return new Integer(this.applicationProperties.getProperty(UDP_WORKERS_KEY, UDP_WORKERS_DEFAULT.toString()).trim());
+    }
+
+    public Integer getUdpQueueSize() {
+        return new Integer(this.applicationProperties.getProperty(UDP_QUEUE_SIZE_KEY, UDP_QUEUE_SIZE_DEFAULT.toString()).trim());
+    }
+
+    public String getDiscoveryMode() {
+        return this.applicationProperties.getProperty(DISCOVERY_MODE_KEY, DISCOVERY_MODE_DEFAULT).trim().toLowerCase();
+    }
+
+    public InetAddress getMulticastGroup() throws UnknownHostException {
+        return InetAddress.getByName(this.applicationProperties.getProperty(MULTICAST_GROUP_KEY, MULTICAST_GROUP_DEFAULT).trim());
+    }
+
+    public Integer getMulticastTtl() {
+        return new Integer(this.applicationProperties.getProperty(MULTICAST_TTL_KEY, MULTICAST_TTL_DEFAULT.toString()).trim());
+    }
+
+    public Boolean isLegacyDiscovery() {
+        return Boolean.valueOf(this.applicationProperties.getProperty(LEGACY_DISCOVERY_KEY, LEGACY_DISCOVERY_DEFAULT.toString()).trim());
+    }
+
+    public String getUploadQueuePolicy() {
+        return this.applicationProperties.getProperty(UPLOAD_QUEUE_POLICY_KEY, UPLOAD_QUEUE_POLICY_DEFAULT).trim().toLowerCase();
+    }
+
+    public String[] getCompressionBypassExtensions() {
+        return this.applicationProperties.getProperty(COMPRESSION_BYPASS_KEY, COMPRESSION_BYPASS_DEFAULT).split(DEFAULT_SEPARATOR);
+    }
+
     public List<InetAddress> getKnownAddresses() throws UnknownHostException {
 
         List<InetAddress> addresses = new ArrayList<>();
@@ -1,12 +1,23 @@
 package tests.domain;
 
+import domain.ContentId;
 import domain.RemoteFilename;
 import domain.RemoteFilenameList;
+import networking.Announcement;
 import networking.RemoteFilenameListProtocol;
+import settings.Application;
 
 import java.io.File;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
@@ -26,7 +37,7 @@ public class RemoteFilenameListProtocolTest {
     @org.junit.Before
     public void setUp() throws Exception {
 
-        username = "user";
+        username = Application.settings().getUsername(); // The protocol announces the configured username
         addr = InetAddress.getByName("127.0.0.1");
         tcpPort = 32035;
 
@@ -42,7 +53,7 @@ public class RemoteFilenameListProtocolTest {
     public void ensureSetIsEqualAfterParsing() throws Exception {
 
         System.out.println("ensureSetIsEqualAfterParsing");
-        RemoteFilenameList fnSet1 = new RemoteFilenameList();
+        RemoteFilenameList fnSet1 = new RemoteFilenameList(Runnable::run); // No JavaFX toolkit in tests
         fnSet1.add(new RemoteFilename("file1", username, addr, tcpPort));
         fnSet1.add(new RemoteFilename("file2", username, addr, tcpPort));
         fnSet1.add(new RemoteFilename("file3", username, addr, tcpPort));
@@ -51,7 +62,7 @@ public class RemoteFilenameListProtocolTest {
 
         List<byte[]> bytes = RemoteFilenameListProtocol.parseFileList(files, tcpPort);
 
-        RemoteFilenameList fnSet2 = new RemoteFilenameList();
+        RemoteFilenameList fnSet2 = new RemoteFilenameList(Runnable::run); // No JavaFX toolkit in tests
 
         for (byte[] packet :
                 bytes) {
@@ -60,4 +71,125 @@ public class RemoteFilenameListProtocolTest {
 
         assertThat(fnSet1, is(fnSet2));
     }
-}
\ No newline at end of file
+
+    @org.junit.Test
+    public void ensureDeltaAnnouncementIsEqualAfterParsing() throws Exception {
+
+        System.out.println("ensureDeltaAnnouncementIsEqualAfterParsing");
+        Set<String> added = new HashSet<>(Arrays.asList("file1", "file2", "file3"));
+        Set<String> removed = Collections.singleton("file4");
+
+        List<byte[]> packets = RemoteFilenameListProtocol.encodeAnnouncement(Announcement.Type.DELTA, 42, added, removed, tcpPort);
+
+        Set<String> parsedAdded = new HashSet<>();
+        Set<String> parsedRemoved = new HashSet<>();
+        for (byte[] packet :
+                packets) {
+            assertThat(RemoteFilenameListProtocol.isAnnouncement(packet, packet.length), is(true));
+            Announcement announcement = RemoteFilenameListProtocol.parseAnnouncement(packet, packet.length, addr);
+            assertThat(announcement.getType(), is(Announcement.Type.DELTA));
+            assertThat(announcement.getCatalogVersion(), is(42));
+            assertThat(announcement.getTcpPort(), is(tcpPort.intValue()));
+            assertThat(announcement.getUsername(), is(username));
+            parsedAdded.addAll(announcement.getAdded());
+            parsedRemoved.addAll(announcement.getRemoved());
+        }
+
+        assertThat(parsedAdded, is(added));
+        assertThat(parsedRemoved, is(removed));
+    }
+
+    @org.junit.Test
+    public void ensureAnnouncedContentIsEqualAfterParsing() throws Exception {
+
+        System.out.println("ensureAnnouncedContentIsEqualAfterParsing");
+        ContentId content = new ContentId(1234, "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+        Map<String, ContentId> added = new LinkedHashMap<>();
+        added.put("file1", content);
+        added.put("file2", null); // Not hashed yet
+
+        List<byte[]> packets = RemoteFilenameListProtocol.encodeAnnouncement(Announcement.Type.FULL, 7, added,
+                Collections.emptySet(), tcpPort);
+
+        assertThat(packets.size(), is(1));
+        Announcement announcement = RemoteFilenameListProtocol.parseAnnouncement(packets.get(0), packets.get(0).length, addr);
+        assertThat(announcement.getAdded(), is(Arrays.asList("file1", "file2")));
+        assertThat(announcement.getContent("file1"), is(content));
+        assertThat(announcement.getContent("file2") == null, is(true));
+    }
+
+    @org.junit.Test
+    public void ensureViewedFileListIsEqualAfterParsing() throws Exception {
+
+        System.out.println("ensureViewedFileListIsEqualAfterParsing");
+        RemoteFilenameListProtocol.PacketView view = new RemoteFilenameListProtocol.PacketView();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(512);
+
+        for (byte[] packet :
+                RemoteFilenameListProtocol.parseFileList(files, tcpPort)) {
+
+            buffer.clear();
+            buffer.put(packet).flip();
+            view.wrap(buffer);
+            assertThat(view.isFileList(), is(true));
+            assertThat(view.getTcpPort(), is(tcpPort.intValue()));
+            assertThat(view.getUsername(), is(username));
+
+            List<String> viewed = new ArrayList<>();
+            while (view.nextRecord()) {
+                assertThat(view.nameEquals(view.getNameBytes()), is(true));
+                viewed.add(view.getName());
+            }
+            List<String> parsed = new ArrayList<>();
+            for (RemoteFilename filename : RemoteFilenameListProtocol.parsePacket(packet, addr)) {
+                parsed.add(filename.getFilename());
+            }
+            assertThat(viewed, is(parsed));
+        }
+    }
+
+    @org.junit.Test
+    public void ensureViewedHeartbeatIsEqualAfterParsing() throws Exception {
+
+        System.out.println("ensureViewedHeartbeatIsEqualAfterParsing");
+        byte[] packet = RemoteFilenameListProtocol.encodeAnnouncement(Announcement.Type.HEARTBEAT, 42,
+                Collections.emptySet(), Collections.emptySet(), tcpPort).get(0);
+
+        RemoteFilenameListProtocol.PacketView view = new RemoteFilenameListProtocol.PacketView();
+        view.wrap(ByteBuffer.wrap(packet));
+        assertThat(view.isHeartbeat(), is(true));
+        assertThat(view.isFileList(), is(false));
+        assertThat(view.getCatalogVersion(), is(42));
+        assertThat(view.getTcpPort(), is(tcpPort.intValue()));
+        assertThat(view.usernameEquals(username.getBytes("UTF-8")), is(true));
+        assertThat(view.nextRecord(), is(false));
+    }
+
+    @org.junit.Test
+    public void ensureFileListWithTrailerIsReadByBothVersions() throws Exception {
+
+        System.out.println("ensureFileListWithTrailerIsReadByBothVersions");
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) names.add("shared-file-number-" + i + ".txt");
+
+        List<byte[]> packets = RemoteFilenameListProtocol.encodeFileList(names, tcpPort, 42);
+        assertThat(packets.size() > 1, is(true));
+
+        RemoteFilenameListProtocol.PacketView view = new RemoteFilenameListProtocol.PacketView();
+        List<String> parsed = new ArrayList<>();
+        for (byte[] packet :
+                packets) {
+            for (RemoteFilename filename : RemoteFilenameListProtocol.parsePacket(packet, addr)) {
+                parsed.add(filename.getFilename());
+            }
+            view.wrap(ByteBuffer.wrap(packet));
+            assertThat(view.hasCatalogTrailer(), is(true));
+            assertThat(view.getCatalogVersion(), is(42));
+        }
+        assertThat(parsed, is(names));
+
+        // Lists of version 1 encoders have no trailer
+        view.wrap(ByteBuffer.wrap(RemoteFilenameListProtocol.parseFileList(files, tcpPort).get(0)));
+        assertThat(view.hasCatalogTrailer(), is(false));
+    }
+}
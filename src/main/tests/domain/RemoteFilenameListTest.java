@@ -0,0 +1,106 @@
+package tests.domain;
+
+import domain.ContentId;
+import domain.RemoteFilename;
+import domain.RemoteFilenameList;
+
+import java.net.InetAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the batched view updates of a remote file list
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public class RemoteFilenameListTest {
+
+    private LinkedBlockingQueue<Runnable> frames;
+    private RemoteFilenameList filenames;
+    private InetAddress addr;
+
+    @org.junit.Before
+    public void setUp() throws Exception {
+
+        frames = new LinkedBlockingQueue<>();
+        filenames = new RemoteFilenameList(frames::add); // The test runs each view update (frame) itself
+        addr = InetAddress.getByName("192.0.2.1");
+    }
+
+    @org.junit.Test
+    public void ensureReplacedItemIsRemovedFromView() throws Exception {
+
+        System.out.println("ensureReplacedItemIsRemovedFromView");
+        RemoteFilename first = new RemoteFilename("file1", "user", addr, 32035);
+        filenames.add(first);
+        runFrame();
+        assertThat(filenames.getList().size(), is(1));
+        assertThat(filenames.getList().get(0), is(sameInstance(first)));
+
+        // Within one frame: the shown item is removed, an equal one is added and removed again
+        RemoteFilename second = new RemoteFilename("file1", "user", addr, 32035);
+        filenames.remove(first);
+        filenames.add(second);
+        filenames.remove(second);
+        runFrame();
+        assertThat(filenames.getList().isEmpty(), is(true));
+        assertThat(filenames.size(), is(0));
+    }
+
+    @org.junit.Test
+    public void ensureReplacingItemIsShown() throws Exception {
+
+        System.out.println("ensureReplacingItemIsShown");
+        RemoteFilename first = new RemoteFilename("file1", "user", addr, 32035);
+        filenames.add(first);
+        runFrame();
+
+        // Within one frame: the shown item is removed and an equal one is added
+        RemoteFilename second = new RemoteFilename("file1", "user", addr, 32035);
+        filenames.remove(first);
+        filenames.add(second);
+        runFrame();
+        assertThat(filenames.getList().size(), is(1));
+        assertThat(filenames.getList().get(0), is(sameInstance(second)));
+    }
+
+    @org.junit.Test
+    public void ensureSourcesFollowContentGroup() throws Exception {
+
+        System.out.println("ensureSourcesFollowContentGroup");
+        ContentId content = new ContentId(1000, "ab");
+        RemoteFilename first = new RemoteFilename("file1", "user1", addr, 32035, content);
+        filenames.add(first);
+        runFrame();
+        assertThat(first.sourcesProperty().get().size(), is(1));
+
+        // Joining the group only changes the shown item's sources
+        RemoteFilename second = new RemoteFilename("copy1", "user2", InetAddress.getByName("192.0.2.2"), 32035, content);
+        filenames.add(second);
+        runFrame();
+        assertThat(filenames.getList().size(), is(1));
+        assertThat(first.sourcesProperty().get().size(), is(2));
+        assertThat(first.sourcesProperty().get().get(1), is(sameInstance(second)));
+
+        filenames.remove(second);
+        runFrame();
+        assertThat(first.sourcesProperty().get().size(), is(1));
+    }
+
+    /**
+     * Waits for the next view update and runs it
+     *
+     * @throws InterruptedException interrupted while waiting
+     */
+    private void runFrame() throws InterruptedException {
+
+        Runnable frame = frames.poll(5, TimeUnit.SECONDS);
+        assertThat(frame, is(notNullValue()));
+        frame.run();
+    }
+}
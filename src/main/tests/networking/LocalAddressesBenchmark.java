@@ -0,0 +1,86 @@
+package tests.networking;
+
+import networking.LocalAddresses;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * Compares checking if a received packet's sender is local by listing the interfaces (as the receiver did for every
+ * packet) against the cached local addresses. Run it with: java tests.networking.LocalAddressesBenchmark [iterations]
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public final class LocalAddressesBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 20000;
+    private static final int WARM_UP_ROUNDS = 3;
+
+    /**
+     * The benchmark is only run through main.
+     */
+    private LocalAddressesBenchmark() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Runs the benchmark
+     *
+     * @param args the number of checks per round (optional)
+     * @throws Exception listing the interfaces failed
+     */
+    public static void main(String[] args) throws Exception {
+
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        InetAddress remote = InetAddress.getByName("192.0.2.1"); // Never local: every address is compared
+        LocalAddresses localAddresses = new LocalAddresses();
+
+        int interfaces = Collections.list(NetworkInterface.getNetworkInterfaces()).size();
+        System.out.println("Interfaces: " + interfaces + ", checks per round: " + iterations);
+        for (int round = 0; round <= WARM_UP_ROUNDS; round++) {
+
+            boolean report = round == WARM_UP_ROUNDS;
+            int found = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (isLocalAddress(remote)) found++;
+            }
+            long enumerated = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (localAddresses.contains(remote)) found++;
+            }
+            long cached = System.nanoTime() - start;
+
+            if (report) {
+                System.out.printf("Enumerating interfaces: %,.0f ns/check%n", (double) enumerated / iterations);
+                System.out.printf("Cached addresses:       %,.1f ns/check%n", (double) cached / iterations);
+                System.out.printf("Speed up: %,.0fx (%d local)%n", (double) enumerated / Math.max(1, cached), found);
+            }
+        }
+    }
+
+    /**
+     * Checks if an address is local by listing every interface address (the former per packet check)
+     *
+     * @param address the address to check
+     * @return true if it is local, false otherwise
+     * @throws SocketException listing the interfaces failed
+     */
+    private static boolean isLocalAddress(InetAddress address) throws SocketException {
+
+        Enumeration<NetworkInterface> list = NetworkInterface.getNetworkInterfaces();
+        while (list.hasMoreElements()) {
+
+            Enumeration<InetAddress> addresses = list.nextElement().getInetAddresses();
+            while (addresses.hasMoreElements()) {
+                if (address.equals(addresses.nextElement())) return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,33 @@
+package tests.networking;
+
+import networking.LocalAddresses;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the cached local interface addresses
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public class LocalAddressesTest {
+
+    @org.junit.Test
+    public void ensureEveryInterfaceAddressIsLocal() throws Exception {
+
+        System.out.println("ensureEveryInterfaceAddressIsLocal");
+        LocalAddresses localAddresses = new LocalAddresses();
+
+        for (NetworkInterface anInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            for (InetAddress address : Collections.list(anInterface.getInetAddresses())) {
+                assertThat(localAddresses.contains(address), is(true));
+            }
+        }
+        assertThat(localAddresses.contains(InetAddress.getByName("192.0.2.1")), is(false)); // Documentation range
+        assertThat(localAddresses.refresh(), is(false)); // Same interfaces
+    }
+}
@@ -0,0 +1,78 @@
+package tests.networking;
+
+import networking.MembershipMessage;
+import networking.MembershipProtocol;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the gossip membership protocol
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public class MembershipProtocolTest {
+
+    @org.junit.Test
+    public void ensureMessageSurvivesEncoding() throws Exception {
+
+        System.out.println("ensureMessageSurvivesEncoding");
+        InetAddress sender = InetAddress.getByName("192.0.2.1");
+        InetAddress target = InetAddress.getByName("192.0.2.2");
+        MembershipMessage.Update update = new MembershipMessage.Update(InetAddress.getByName("192.0.2.3"), 32000,
+                MembershipMessage.State.SUSPECT, 7, -42);
+        MembershipMessage.Update ipv6 = new MembershipMessage.Update(InetAddress.getByName("::1"), 32000,
+                MembershipMessage.State.ALIVE, 1, 1);
+        MembershipMessage message = new MembershipMessage(MembershipMessage.Type.PING_REQ, 99, null, 0,
+                123456, 65000, target, 32001, Arrays.asList(update, ipv6));
+
+        byte[] data = MembershipProtocol.encode(message);
+        assertThat(MembershipProtocol.isMessage(data, data.length), is(true));
+
+        MembershipMessage parsed = MembershipProtocol.parse(data, data.length, sender, 32002);
+        assertThat(parsed.getType(), is(MembershipMessage.Type.PING_REQ));
+        assertThat(parsed.getSequence(), is(99));
+        assertThat(parsed.getHost(), is(sender));
+        assertThat(parsed.getPort(), is(32002));
+        assertThat(parsed.getIncarnation(), is(123456));
+        assertThat(parsed.getCatalogVersion(), is(65000));
+        assertThat(parsed.getTarget(), is(target));
+        assertThat(parsed.getTargetPort(), is(32001));
+        assertThat(parsed.getUpdates().size(), is(1)); // Only IPv4 members are gossiped
+        MembershipMessage.Update parsedUpdate = parsed.getUpdates().get(0);
+        assertThat(parsedUpdate.getHost(), is(update.getHost()));
+        assertThat(parsedUpdate.getPort(), is(32000));
+        assertThat(parsedUpdate.getState(), is(MembershipMessage.State.SUSPECT));
+        assertThat(parsedUpdate.getIncarnation(), is(7));
+        assertThat(parsedUpdate.getCatalogVersion(), is(-42));
+    }
+
+    @org.junit.Test
+    public void ensurePingWithoutTargetHasNoTarget() throws Exception {
+
+        System.out.println("ensurePingWithoutTargetHasNoTarget");
+        MembershipMessage message = new MembershipMessage(MembershipMessage.Type.PING, 1, null, 0, 1, 1,
+                null, 0, Collections.emptyList());
+
+        byte[] data = MembershipProtocol.encode(message);
+        MembershipMessage parsed = MembershipProtocol.parse(data, data.length, InetAddress.getByName("192.0.2.1"), 1);
+        assertThat(parsed.getTarget(), is(nullValue()));
+        assertThat(parsed.getUpdates().isEmpty(), is(true));
+    }
+
+    @org.junit.Test(expected = IllegalStateException.class)
+    public void ensureTruncatedMessageIsRejected() throws Exception {
+
+        System.out.println("ensureTruncatedMessageIsRejected");
+        MembershipMessage message = new MembershipMessage(MembershipMessage.Type.ACK, 1, null, 0, 1, 1,
+                null, 0, Collections.emptyList());
+
+        byte[] data = MembershipProtocol.encode(message);
+        MembershipProtocol.parse(data, data.length - 1, InetAddress.getByName("192.0.2.1"), 1);
+    }
+}
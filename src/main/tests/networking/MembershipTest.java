@@ -0,0 +1,147 @@
+package tests.networking;
+
+import networking.Membership;
+import networking.MembershipMessage;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the gossip membership failure detection
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public class MembershipTest {
+
+    private static final int PORT = 32035;
+    private static final long PROBE_INTERVAL = 50; // milliseconds
+
+    private InetAddress member;
+    private InetAddress other;
+    private BlockingQueue<InetAddress> dead;
+    private BlockingQueue<MembershipMessage.Update> versions;
+    private Membership membership;
+
+    @org.junit.Before
+    public void setUp() throws Exception {
+
+        member = InetAddress.getByName("192.0.2.1");
+        other = InetAddress.getByName("192.0.2.2");
+        dead = new LinkedBlockingQueue<>();
+        versions = new LinkedBlockingQueue<>();
+        Membership.Listener listener = new Membership.Listener() {
+            @Override
+            public void onCatalogVersion(MembershipMessage.Update update) {
+                versions.add(update);
+            }
+
+            @Override
+            public void onDead(InetAddress host) {
+                dead.add(host);
+            }
+        };
+        membership = new Membership((data, host, port) -> {
+            // Every message is lost
+        }, listener, address -> false, 1);
+    }
+
+    @org.junit.Test
+    public void ensureUnansweredMemberIsSuspectedThenDead() throws Exception {
+
+        System.out.println("ensureUnansweredMemberIsSuspectedThenDead");
+        membership.handle(ping(member, 7, Collections.emptyList()));
+        assertThat(stateOf(member), is(MembershipMessage.State.ALIVE));
+
+        Timer timer = new Timer(true);
+        try {
+            membership.start(timer, PROBE_INTERVAL);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (stateOf(member) == MembershipMessage.State.ALIVE && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertThat(stateOf(member), is(MembershipMessage.State.SUSPECT));
+            assertThat(dead.poll(5, TimeUnit.SECONDS), is(member));
+            assertThat(membership.isMember(member), is(false));
+        } finally {
+            timer.cancel();
+        }
+    }
+
+    @org.junit.Test
+    public void ensureHigherIncarnationRefutesSuspicion() throws Exception {
+
+        System.out.println("ensureHigherIncarnationRefutesSuspicion");
+        membership.handle(ping(member, 7, Collections.emptyList()));
+        membership.handle(ping(other, 3, Collections.singletonList(
+                new MembershipMessage.Update(member, PORT, MembershipMessage.State.SUSPECT, 7, 1))));
+        assertThat(stateOf(member), is(MembershipMessage.State.SUSPECT));
+
+        // Being alive at the suspected incarnation doesn't refute it
+        membership.handle(ping(other, 3, Collections.singletonList(
+                new MembershipMessage.Update(member, PORT, MembershipMessage.State.ALIVE, 7, 1))));
+        assertThat(stateOf(member), is(MembershipMessage.State.SUSPECT));
+
+        membership.handle(ping(other, 3, Collections.singletonList(
+                new MembershipMessage.Update(member, PORT, MembershipMessage.State.ALIVE, 8, 1))));
+        assertThat(stateOf(member), is(MembershipMessage.State.ALIVE));
+        assertThat(dead.isEmpty(), is(true));
+    }
+
+    @org.junit.Test
+    public void ensureRestartedPeerIsRevived() throws Exception {
+
+        System.out.println("ensureRestartedPeerIsRevived");
+        membership.handle(ping(member, 7, Collections.emptyList()));
+        membership.handle(ping(other, 3, Collections.singletonList(
+                new MembershipMessage.Update(member, PORT, MembershipMessage.State.DEAD, 7, 1))));
+        assertThat(dead.poll(), is(member));
+        assertThat(membership.isMember(member), is(false));
+
+        // Its old incarnation stays dead
+        membership.handle(ping(other, 3, Collections.singletonList(
+                new MembershipMessage.Update(member, PORT, MembershipMessage.State.ALIVE, 7, 1))));
+        assertThat(membership.isMember(member), is(false));
+
+        versions.clear();
+        membership.handle(ping(member, 1000, Collections.emptyList())); // Restarted: a higher incarnation
+        assertThat(membership.isMember(member), is(true));
+        assertThat(stateOf(member), is(MembershipMessage.State.ALIVE));
+        MembershipMessage.Update revived = versions.poll();
+        assertThat(revived.getHost(), is(member));
+        assertThat(revived.getIncarnation(), is(1000));
+    }
+
+    /**
+     * Creates a ping received from a peer
+     *
+     * @param host        the sender's address
+     * @param incarnation the sender's incarnation
+     * @param updates     the piggybacked updates
+     * @return the message
+     */
+    private static MembershipMessage ping(InetAddress host, int incarnation, List<MembershipMessage.Update> updates) {
+        return new MembershipMessage(MembershipMessage.Type.PING, 1, host, PORT, incarnation, 1, null, 0, updates);
+    }
+
+    /**
+     * Obtains what the membership believes about a peer
+     *
+     * @param host the peer's address
+     * @return the peer's state or null if it isn't a member
+     */
+    private MembershipMessage.State stateOf(InetAddress host) {
+
+        for (MembershipMessage.Update update : membership.getMembers()) {
+            if (update.getHost().equals(host)) return update.getState();
+        }
+        return null;
+    }
+}
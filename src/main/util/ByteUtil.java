@@ -67,6 +67,41 @@ public final class ByteUtil {
         return ByteBuffer.allocate(INTEGER_SIZE).order(ByteOrder.BIG_ENDIAN).putInt(value).array();
     }
 
+    /**
+     * Converts an array of bytes to a lower case hexadecimal string
+     *
+     * @param value the array of bytes
+     * @return the hexadecimal string
+     */
+    public static String toHex(byte[] value) {
+
+        StringBuilder builder = new StringBuilder(value.length * 2);
+        for (byte b : value) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Converts a hexadecimal string to a byte array
+     *
+     * @param hex the hexadecimal string (even length)
+     * @return the byte array
+     * @throws IllegalArgumentException not an hexadecimal string
+     */
+    public static byte[] fromHex(String hex) {
+
+        if (hex.length() % 2 != 0) throw new IllegalArgumentException("Odd hexadecimal length.");
+        byte[] value = new byte[hex.length() / 2];
+        for (int i = 0; i < value.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) throw new IllegalArgumentException("Not an hexadecimal string.");
+            value[i] = (byte) ((high << 4) | low);
+        }
+        return value;
+    }
+
     /**
      * Creates a string with a human readable scale to represent a size in bytes (ex. 5 MB or 6 kB)
      *
@@ -13,6 +13,23 @@ public final class Constants {
     public static final int SEND_LIST_DELAY = 1; // Send list Timer schedule delay
     public static final String WARNING_PANE_TITLE = "SYSTEM FAILURE";
     public static final String CONFIG_FILENAME = "config.properties";
+    public static final String PARTIAL_DOWNLOAD_EXTENSION = ".part"; // Suffix of incomplete downloads
+    public static final int TRANSFER_CHUNK_SIZE = 1024 * 1024; // Max bytes moved per file channel transfer
+    public static final int TRANSFER_BUFFER_SIZE = 64 * 1024; // Receive buffer of a download
+    public static final long SWARM_CHUNK_SIZE = 4 * 1024 * 1024; // Bytes fetched per request in a multi-peer download
+    public static final int KEEP_ALIVE_TIMEOUT = 15000; // Milliseconds a server keeps an idle keep-alive connection
+    public static final long CONNECTION_IDLE_TIME = 10000; // Milliseconds a client keeps an idle pooled connection
+    public static final int PIPELINE_DEPTH = 8; // Requests sent ahead of the responses on a pipelined connection
+    public static final String HASH_INDEX_FILENAME = ".hashindex"; // Content hash index kept in each directory
+    public static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+    public static final long HASH_INDEX_SAVE_DELAY = 2000; // Milliseconds to gather index changes before saving
+    public static final long HASH_QUIET_TIME = 1000; // Milliseconds a file must stay unchanged before it's hashed
+    public static final int UPLOAD_QUEUE_SIZE = 32; // Connections a blocking server keeps waiting for an upload slot
+    public static final long UPLOAD_SLICE_SIZE = 32 * 1024 * 1024; // Max bytes sent per upload slot before queueing again
+    public static final long QUEUE_NOTICE_INTERVAL = 5000; // Milliseconds between queue position updates
+    public static final int READ_TIMEOUT = 30000; // Milliseconds a download waits for the peer to send anything
+    public static final long MAX_QUEUE_WAIT = 60000; // Milliseconds after which a queued upload goes first
+    public static final long LOCAL_ADDRESSES_REFRESH = 10000; // Milliseconds between local interface address listings
 
     /**** EXIT STATUS ****/
     public static final int EXIT_SUCCESS = 0;
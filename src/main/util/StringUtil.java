@@ -32,4 +32,36 @@ public final class StringUtil {
 
         return tmp.toString();
     }
+
+    /**
+     * Formats a number of bytes with the largest fitting unit (e.g. 1.5 MB)
+     *
+     * @param bytes the number of bytes
+     * @return the formatted size
+     */
+    public static String formatBytes(long bytes) {
+
+        if (bytes < 1024) return bytes + " B";
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
+    /**
+     * Formats a duration as hours, minutes and seconds (e.g. 1h 05m 03s, 4m 10s, 9s)
+     *
+     * @param seconds the duration in seconds
+     * @return the formatted duration
+     */
+    public static String formatDuration(long seconds) {
+
+        if (seconds < 60) return seconds + "s";
+        if (seconds < 3600) return String.format("%dm %02ds", seconds / 60, seconds % 60);
+        return String.format("%dh %02dm %02ds", seconds / 3600, (seconds % 3600) / 60, seconds % 60);
+    }
 }
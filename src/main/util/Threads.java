@@ -0,0 +1,103 @@
+package util;
+
+import settings.AppSettings;
+import settings.Application;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executors of the app according to the configured execution mode.
+ * <p>
+ * In "virtual" mode every task (connection, download) runs on its own virtual thread, when the JDK provides
+ * them (Java 21+); otherwise, and in "platform" mode, the usual platform thread pools are used.
+ * <p>
+ * Created by 2DD - Group SNOW WHITE {1151452, 1151031, 1141570, 1151088}
+ */
+public final class Threads {
+
+    private static final Method VIRTUAL_EXECUTOR_FACTORY = findVirtualExecutorFactory();
+    private static final boolean VIRTUAL = AppSettings.VIRTUAL_THREADS.equals(Application.settings().getExecutionMode())
+            && VIRTUAL_EXECUTOR_FACTORY != null;
+    private static final ExecutorService TASKS = VIRTUAL ? newVirtualExecutor() : null;
+
+    /**
+     * The caller references the static methods using <tt>Threads.newExecutor</tt>,
+     * and so on. Thus, the caller should be prevented from constructing objects of
+     * this class, by declaring this private constructor.
+     */
+    private Threads() {
+        //this prevents even the native class from
+        //calling this constructor as well :
+        throw new AssertionError();
+    }
+
+    /**
+     * Checks if tasks run on virtual threads
+     *
+     * @return true if in virtual mode (and supported), false otherwise
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Creates an executor for a group of tasks.
+     *
+     * @param platformThreads the number of threads of the pool used in platform mode
+     * @return a virtual thread per task executor (virtual mode) or a fixed thread pool
+     */
+    public static ExecutorService newExecutor(int platformThreads) {
+
+        return VIRTUAL ? newVirtualExecutor() : Executors.newFixedThreadPool(platformThreads);
+    }
+
+    /**
+     * Runs a one-off task in its own thread (virtual in virtual mode).
+     *
+     * @param task the task
+     */
+    public static void execute(Runnable task) {
+
+        if (VIRTUAL) {
+            TASKS.execute(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    /**
+     * Creates a virtual thread per task executor
+     *
+     * @return the executor
+     */
+    private static ExecutorService newVirtualExecutor() {
+
+        try {
+            return (ExecutorService) VIRTUAL_EXECUTOR_FACTORY.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Creating a virtual thread executor failed.", e);
+        }
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor (the app still builds & runs on JDKs without it)
+     *
+     * @return the factory method or null if virtual threads aren't available
+     */
+    private static Method findVirtualExecutorFactory() {
+
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            if (AppSettings.VIRTUAL_THREADS.equals(Application.settings().getExecutionMode())) {
+                Logger.getLogger(Threads.class.getName()).log(Level.WARNING,
+                        "Virtual threads need Java 21 or later, using platform threads.");
+            }
+            return null;
+        }
+    }
+}